@@ -0,0 +1,54 @@
+/*
+ * Classname: AgentRandom
+ */
+
+package commuterSim;
+
+/**
+ * Counter-based pseudo-random numbers for individual commuters.
+ * Each value is a pure function of (seed, person, day, stream), so any
+ * number of threads can draw random numbers for different people without
+ * sharing state, and results do not depend on how work is split up.
+ */
+public final class AgentRandom {
+
+	/**
+	 * Separate streams of random numbers for different kinds of decision
+	 */
+	public static final int STREAM_INIT_PREFERENCE = 0;
+	public static final int STREAM_SLOT_REVISION = 1;
+	public static final int STREAM_SLOT_TOLERANCE = 2;
+	public static final int STREAM_NETWORK_SIZE = 3;
+	public static final int STREAM_NETWORK_LOCAL = 4;
+	public static final int STREAM_NETWORK_PERSON = 5;
+	public static final int STREAM_OD_PAIR = 6;
+
+	private AgentRandom() {
+	}
+
+	/**
+	 * Uniformly distributed random number in the range 0.0 (inclusive)
+	 * to 1.0 (exclusive)
+	 *
+	 * @param seed		seed for the whole population
+	 * @param person	person (P) index
+	 * @param day		simulation day
+	 * @param stream	which stream of random numbers (STREAM_xxx)
+	 */
+	public static double uniform(long seed, int person, int day, int stream) {
+		long z = seed;
+		z = mix(z + 0x9E3779B97F4A7C15L * (person + 1));
+		z = mix(z + 0xC2B2AE3D27D4EB4FL * (day + 1));
+		z = mix(z + 0x165667B19E3779F9L * stream);
+		return (z >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * SplitMix64 finalising function (scrambles all 64 bits)
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
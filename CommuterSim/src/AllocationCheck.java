@@ -0,0 +1,268 @@
+/*
+ * Classname: AllocationCheck
+ */
+
+package commuterSim;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Regression test that SimEngine.step() allocates no memory once warmed
+ * up, so that long runs make no garbage to collect. Run it with
+ * <pre>
+ * java -cp ... commuterSim.AllocationCheck [DAYS]
+ * </pre>
+ * to warm up and then step a set of standard configurations covering
+ * each path through the day step (departure time slots, road congestion
+ * with several rounds a day, frequent weather and roadworks boundaries,
+ * the multi-mode model, a social network, a population synthesised from
+ * zones, an origin-destination matrix)
+ * for DAYS days each (default 1000). Exits with status 0 if none of them
+ * allocated anything, 1 if any did, or 2 if this JVM cannot measure it.
+ * BatchRun --check-alloc measures the configuration given on its command
+ * line (with any --zones or --od) in the same way.
+ * <p>
+ * Allocation is measured per thread (for the stepping thread and the
+ * engine's worker threads) through the com.sun.management extension of
+ * ThreadMXBean, which HotSpot and OpenJ9 based JVMs provide. On any other
+ * JVM the check reports that it cannot run rather than failing.
+ * <p>
+ * Worker threads (SimEngine.runChunks()) are only used with more than one
+ * processor and at least 20000 residents per worker, so on a single
+ * processor only the single-threaded step is measured. To measure the
+ * multi-threaded one there, run with -XX:ActiveProcessorCount=4 (HotSpot).
+ */
+public class AllocationCheck {
+
+	public static final int NO_ALLOCATION = 0;
+	public static final int ALLOCATED = 1;
+	public static final int UNSUPPORTED = 2;
+
+	/**
+	 * Days stepped before measuring (so that histories, queues and so on
+	 * reach their working size and the JIT compiles the step)
+	 */
+	public static final int WARM_UP_DAYS = 5000;
+
+	private static final int DEFAULT_DAYS = 1000;
+
+	/**
+	 * Residents per location in the standard configurations (enough for
+	 * more than one worker thread, given the processors)
+	 */
+	private static final int POPULATION_PER_LOC = 5000;
+
+	private final ThreadMXBean threads;
+
+	private AllocationCheck(ThreadMXBean threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Allocation check for this JVM
+	 *
+	 * @return null if this JVM cannot measure allocation per thread
+	 */
+	public static AllocationCheck create() {
+		try {
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (!(threads instanceof com.sun.management.ThreadMXBean))
+				return null;
+			com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+			if (!sunThreads.isThreadAllocatedMemorySupported())
+				return null;
+			sunThreads.setThreadAllocatedMemoryEnabled(true);
+			return new AllocationCheck(threads);
+		} catch (LinkageError e) {
+			// (No com.sun.management classes at all)
+			return null;
+		} catch (UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Warm up an engine (after initSim()) and then measure the memory
+	 * allocated by some more days' steps, printing a line of results
+	 * (see printHeader()). The engine's Prefs must allow WARM_UP_DAYS +
+	 * days days and no steady state.
+	 *
+	 * @param name		name of the configuration (for the results)
+	 * @param days		days to measure
+	 * @return bytes allocated
+	 */
+	public long measure(String name, SimEngine engine, int days) {
+		for (int d = 0; d < WARM_UP_DAYS; d++) {
+			engine.step();
+		}
+
+		// This thread and any worker threads (all started by now)
+		List<Long> ids = new ArrayList<Long>();
+		ids.add(Thread.currentThread().getId());
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("Simulator worker")) {
+				ids.add(thread.getId());
+			}
+		}
+		long threadIds[] = new long[ids.size()];
+		for (int i = 0; i < threadIds.length; i++) {
+			threadIds[i] = ids.get(i);
+		}
+
+		// Allocated by measuring alone (subtracted from the steps' total),
+		// once any first time costs are out of the way
+		allocatedBytes(threadIds);
+		long overhead = -allocatedBytes(threadIds);
+		overhead += allocatedBytes(threadIds);
+
+		long startBytes = allocatedBytes(threadIds);
+		for (int d = 0; d < days; d++) {
+			engine.step();
+		}
+		long bytes = allocatedBytes(threadIds) - startBytes - overhead;
+		bytes = Math.max(0L, bytes);
+
+		System.out.println(name + "," + threadIds.length + "," + days + ","
+				+ engine.getTotalPopulation() + "," + bytes + ","
+				+ String.format("%.1f", (double) bytes / days));
+		return bytes;
+	}
+
+	public static void printHeader() {
+		System.out.println("configuration,threads,days,population,bytesAllocated,bytesPerDay");
+	}
+
+	/**
+	 * Total bytes allocated so far by some threads (a thread that has
+	 * finished counts as nothing)
+	 */
+	private long allocatedBytes(long threadIds[]) {
+		com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+		long total = 0L;
+		for (long id : threadIds) {
+			total += Math.max(0L, sunThreads.getThreadAllocatedBytes(id));
+		}
+		return total;
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Run the standard configurations (see class description)
+	 */
+	public static void main(String args[]) {
+		int days = DEFAULT_DAYS;
+		if (args.length > 0) {
+			try {
+				days = Prefs.parseInt("DAYS", args[0], 1, SimEngine.MAX_SIM_DAYS - WARM_UP_DAYS);
+			} catch (IllegalArgumentException e) {
+				System.err.println("Error: " + e.getMessage());
+				System.err.println("Usage: AllocationCheck [DAYS]");
+				System.exit(UNSUPPORTED);
+			}
+		}
+		System.exit(runStandard(days));
+	}
+
+	/**
+	 * Measure each standard configuration for some days
+	 *
+	 * @return NO_ALLOCATION, ALLOCATED or UNSUPPORTED
+	 */
+	public static int runStandard(int days) {
+		AllocationCheck check = create();
+		if (check == null) {
+			System.out.println("# allocation check skipped: this JVM cannot measure"
+					+ " allocation per thread");
+			return UNSUPPORTED;
+		}
+
+		// Some origins commuting to other locations, in both directions
+		double demand[][] = new double[SimEngine.TOTAL_LOCATIONS][SimEngine.TOTAL_LOCATIONS + 1];
+		for (int o = 0; o < SimEngine.TOTAL_LOCATIONS; o++) {
+			demand[o][0] = 2.0;
+			demand[o][(o + 3) % SimEngine.TOTAL_LOCATIONS + 1] = 1.0;
+		}
+		ODMatrix od = ODMatrix.fromDemand(SimEngine.TOTAL_LOCATIONS, demand);
+
+		// Zones of differing sizes and car ownership, spread along the road
+		int zoneCount = 500;
+		int population[] = new int[zoneCount];
+		float distance[] = new float[zoneCount];
+		float carOwnership[] = new float[zoneCount];
+		for (int z = 0; z < zoneCount; z++) {
+			population[z] = 2 * POPULATION_PER_LOC * SimEngine.TOTAL_LOCATIONS / zoneCount
+					* (1 + z % 3) / 3;
+			distance[z] = (float) z / zoneCount * 10.0f;
+			carOwnership[z] = 0.2f + 0.6f * (z % 7) / 6;
+		}
+		ZoneTable zones = ZoneTable.fromZones(population, distance, carOwnership);
+
+		printHeader();
+		boolean allocated = false;
+		allocated |= check.measureStandard("default", days, null, null);
+		allocated |= check.measureStandard("slots", days, null, null, "departureSlots=5");
+		allocated |= check.measureStandard("roadCongestion", days, null, null,
+				"departureSlots=5", "roadCapacity=0.3", "congestionIterations=4");
+		allocated |= check.measureStandard("events", days, null, null, "rainAuto=true",
+				"roadworksAuto=true", "rainStartProbability=0.2", "rainMaxDays=3",
+				"roadworksStartProbability=0.2", "roadworksMaxDays=5");
+		allocated |= check.measureStandard("multiMode", days, null, null,
+				"multiModeChoice=true", "departureSlots=3");
+		allocated |= check.measureStandard("social", days, null, null, "socialNeighbours=10",
+				"slideValSocial=30");
+		allocated |= check.measureStandard("zones", days, zones, null, "departureSlots=3",
+				"roadCapacity=0.3", "socialNeighbours=5", "slideValSocial=30");
+		allocated |= check.measureStandard("od", days, null, od, "departureSlots=3",
+				"roadCapacity=0.3", "congestionIterations=2", "roadworksAuto=true",
+				"roadworksStartProbability=0.2");
+		System.out.println(allocated ? "# day step allocates memory"
+				: "# no allocation in the day step");
+		return allocated ? ALLOCATED : NO_ALLOCATION;
+	}
+
+	/**
+	 * Measure a standard configuration: the default Prefs and ModelParams
+	 * with some settings changed
+	 *
+	 * @param zones			zones to synthesise the population from, or null
+	 * @param od			origin-destination matrix, or null
+	 * @param settings		key=value Prefs (or rainAuto, roadworksAuto, or
+	 * 						ModelParams) settings
+	 * @return true if anything was allocated
+	 */
+	private boolean measureStandard(String name, int days, ZoneTable zones, ODMatrix od,
+			String... settings) {
+		Prefs prefs = new Prefs();
+		ModelParams modelParams = new ModelParams();
+		prefs.set("populationPerLoc", Integer.toString(POPULATION_PER_LOC));
+		prefs.set("maxSimDays", Integer.toString(WARM_UP_DAYS + days));
+		prefs.set("steadyStateTolerance", "0");
+		prefs.set("useRandSeed", "true");
+		boolean rainAuto = false;
+		boolean roadworksAuto = false;
+		for (String setting : settings) {
+			int eq = setting.indexOf('=');
+			String key = setting.substring(0, eq);
+			String value = setting.substring(eq + 1);
+			if (key.equals("rainAuto")) {
+				rainAuto = Prefs.parseBoolean(key, value);
+			} else if (key.equals("roadworksAuto")) {
+				roadworksAuto = Prefs.parseBoolean(key, value);
+			} else if (!modelParams.set(key, value) && !prefs.set(key, value)) {
+				throw new IllegalArgumentException("unknown setting: " + key);
+			}
+		}
+
+		SimEngine engine = new SimEngine(modelParams, prefs);
+		engine.setRainAuto(rainAuto);
+		engine.setRoadworksAuto(roadworksAuto);
+		engine.setZoneTable(zones);
+		engine.setODMatrix(od);
+		engine.initSim();
+		return measure(name, engine, days) > 0;
+	}
+}
@@ -0,0 +1,646 @@
+/*
+ * Classname: BatchRun
+ */
+
+package commuterSim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless command line front end. Sets Prefs, ModelParams and ModeParams
+ * values from a properties file and/or "key=value" arguments, runs one or
+ * more replicas of the simulation and writes each one's daily results to
+ * a CSV file. Only uses the Swing-free classes (SimEngine and friends), so
+ * no AWT/Swing/JFreeChart classes are ever loaded.
+ * <p>
+ * Repeated runs of the same configuration (with a fixed random seed) are
+ * served from a ResultCache, which can be kept on disk between runs.
+ * <p>
+ * With --charts, each replica's results chart and last day's bar snapshot
+ * are also exported (see ChartExport); only then are AWT and JFreeChart
+ * loaded, headless, so no display is needed. With --frames, each
+ * replica's per-location results are also rendered as an animation (see
+ * FrameExporter). With --trips, every person's decisions each day are
+ * logged to trips_<replica>.bin (see TripLog); cached results have no
+ * decisions to log, so every day is then simulated (and cached afresh).
+ * <p>
+ * With --zones, the population is synthesised from a table of zones
+ * (see ZoneTable), loaded once and shared by all replicas, rather than
+ * populationPerLoc residents at every location. With --od, commuters
+ * travel between the origins and destinations of a matrix (see ODMatrix),
+ * likewise shared by all replicas, rather than all to the work area.
+ * <p>
+ * With --solve nothing is simulated: the equilibria of the configuration
+ * (or of each value of a --sweep) and their stability are found directly
+ * by EquilibriumSolver instead. With --calibrate, the ModelParams sliders
+ * are instead fitted to observed counts (see Calibrator) and the fitted
+ * values written to calibrated.properties.
+ * <p>
+ * With --check-alloc, nothing is written: the configuration given (with
+ * any zones, origin-destination matrix and random events) is warmed up and
+ * then the memory allocated by each further day's step is measured, which
+ * should be none (so long runs make no garbage to collect). The exit status
+ * is 0 if none was, 1 if some was, or 2 if this JVM cannot measure it.
+ * AllocationCheck is the test of this for a standard set of configurations.
+ * <p>
+ * Usage: Top [--config=FILE] [--days=N] [--replicas=N] [--out=DIR]
+ *            [--cache=DIR] [--cache-mb=N] [--charts=png,svg] [--frames=STEP]
+ *            [--trips=BITS]
+ *            [--zones=FILE] [--od=FILE]
+ *            [--solve] [--sweep=KEY:FROM:TO:STEP]
+ *            [--calibrate=FILE] [--fit=KEY,...] [--max-sims=N]
+ *            [--check-alloc=DAYS]
+ *            [rainAuto=true] [roadworksAuto=true] [key=value ...]
+ */
+public class BatchRun {
+
+	private static final String USAGE =
+			"Usage: Top [options] [key=value ...]\n"
+			+ "  --config=FILE     read key=value settings from a properties file\n"
+			+ "  --days=N          number of days to simulate (same as maxSimDays=N)\n"
+			+ "  --replicas=N      number of runs, with random seeds randSeed, randSeed+1, ...\n"
+			+ "  --out=DIR         directory for results_<replica>.csv (default \".\")\n"
+			+ "  --cache=DIR       keep cached results in this directory between runs\n"
+			+ "  --cache-mb=N      size limit of cache directory in MB (default 512)\n"
+			+ "  --charts=FORMATS  also write chart_<replica> and bars_<replica> images,\n"
+			+ "                    as png, svg or png,svg\n"
+			+ "  --frames=STEP     also write frames_<replica>/frame_NNNNN.png, animating\n"
+			+ "                    the bars every STEP days\n"
+			+ "  --trips=BITS      also write trips_<replica>.bin, logging each person's\n"
+			+ "                    departure slot and car share (to BITS bits, 1-16) every\n"
+			+ "                    day (simulates every day, even if results are cached)\n"
+			+ "  --zones=FILE      synthesise the population from a zone table (CSV:\n"
+			+ "                    zone,population,distance,carOwnership)\n"
+			+ "  --od=FILE         commute between the origins and destinations of a\n"
+			+ "                    matrix (CSV: origin,destination,demand; destination\n"
+			+ "                    may be \"work\"), rather than all to the work area\n"
+			+ "  --solve           find equilibria and their stability without simulating\n"
+			+ "                    (no bad weather or roadworks, one departure slot)\n"
+			+ "  --sweep=KEY:FROM:TO:STEP  with --solve, repeat for each value of a setting\n"
+			+ "  --calibrate=FILE  fit sliders to observed counts (CSV: day,location,cars,bikes\n"
+			+ "                    [,rain,roadworks]; location may be \"all\")\n"
+			+ "  --fit=KEY,...     sliders to fit (default all but slideValAveragerLen)\n"
+			+ "  --max-sims=N      most simulations when calibrating (default 400)\n"
+			+ "  --check-alloc=DAYS  check that DAYS days' steps (after warming up) allocate\n"
+			+ "                    no memory; exit status 1 if they do, 2 if the JVM\n"
+			+ "                    cannot tell (see also AllocationCheck)\n"
+			+ "  --help            show this message\n"
+			+ "  rainAuto=true     generate random periods of bad weather\n"
+			+ "  roadworksAuto=true  generate random roadworks\n"
+			+ "  key=value         any Prefs setting (e.g. populationPerLoc=5000),\n"
+			+ "                    ModelParams slider (e.g. slideValWeather=40) or\n"
+			+ "                    mode weight (e.g. modeWeight.Bus.Expense=-10)\n"
+			+ "With no arguments at all the GUI is started instead.\n";
+
+	private final Prefs prefs = new Prefs();
+	private final ModelParams modelParams = new ModelParams();
+
+	/**
+	 * Settings for ModeParams, which each replica has its own copy of
+	 */
+	private final Map<String, String> modeWeights = new LinkedHashMap<String, String>();
+
+	private boolean rainAuto = false;
+	private boolean roadworksAuto = false;
+	private int replicas = 1;
+	private File outDir = new File(".");
+	private File cacheDir = null;
+	private long cacheMaxMb = 512;
+	private ResultCache cache;
+	private String chartFormats[] = new String[0];
+	private int frameStep = 0;
+	private int tripBits = 0;
+	private File zoneFile = null;
+	private ZoneTable zones = null;
+	private File odFile = null;
+	private ODMatrix odMatrix = null;
+	private boolean solve = false;
+	private File observations = null;
+	private String fitParams[] = Calibrator.DEFAULT_PARAMS;
+	private int maxSimulations = 400;
+	private int allocCheckDays = 0;
+	private String sweepKey = null;
+	private double sweepFrom;
+	private double sweepTo;
+	private double sweepStep;
+
+	/**
+	 * Limit on results cached in memory
+	 */
+	private static final long CACHE_MEMORY_BYTES = 64L << 20;
+
+	/**
+	 * Results of one replica (and whether they came from the cache)
+	 */
+	private static class ReplicaResult {
+		final SimCheckpoint results;
+		final int days;
+		final String source;
+
+		ReplicaResult(SimCheckpoint results, int days, String source) {
+			this.results = results;
+			this.days = days;
+			this.source = source;
+		}
+	}
+
+	/**
+	 * Command line entry point (normally reached via Top.main)
+	 *
+	 * @param args		options and settings (see USAGE)
+	 */
+	public static void main(String[] args) {
+		BatchRun batch = new BatchRun();
+		try {
+			if (!batch.parseArgs(args)) {
+				System.out.print(USAGE);
+				return;
+			}
+			batch.run();
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Apply command line options and settings (in order, so later settings
+	 * override earlier ones, including those from a --config file)
+	 *
+	 * @return false if only help was requested
+	 * @throws IllegalArgumentException for unknown or malformed settings
+	 */
+	private boolean parseArgs(String[] args) throws IOException {
+		for (String arg : args) {
+			if (arg.equals("--help") || arg.equals("-h")) {
+				return false;
+			}
+			if (arg.equals("--solve")) {
+				solve = true;
+				continue;
+			}
+			int eq = arg.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("expected key=value: " + arg);
+			String key = arg.substring(0, eq);
+			String value = arg.substring(eq + 1);
+
+			switch (key) {
+			case "--config":
+				loadConfig(new File(value));
+				break;
+			case "--days":
+				prefs.set("maxSimDays", value);
+				break;
+			case "--replicas":
+				replicas = Prefs.parseInt(key, value);
+				if (replicas < 1)
+					throw new IllegalArgumentException(key + ": must be at least 1");
+				break;
+			case "--out":
+				outDir = new File(value);
+				break;
+			case "--cache":
+				cacheDir = new File(value);
+				break;
+			case "--cache-mb":
+				cacheMaxMb = Prefs.parseInt(key, value, 1, Integer.MAX_VALUE);
+				break;
+			case "--charts":
+				chartFormats = value.split(",");
+				for (String format : chartFormats) {
+					if (!format.equals("png") && !format.equals("svg"))
+						throw new IllegalArgumentException(key + ": unknown format " + format);
+				}
+				setHeadless();
+				break;
+			case "--frames":
+				frameStep = Prefs.parseInt(key, value, 1, Integer.MAX_VALUE);
+				setHeadless();
+				break;
+			case "--trips":
+				tripBits = Prefs.parseInt(key, value, 1, TripLog.MAX_SHARE_BITS);
+				break;
+			case "--zones":
+				zoneFile = new File(value);
+				break;
+			case "--od":
+				odFile = new File(value);
+				break;
+			case "--calibrate":
+				observations = new File(value);
+				break;
+			case "--fit":
+				fitParams = value.split(",");
+				break;
+			case "--max-sims":
+				maxSimulations = Prefs.parseInt(key, value, 1, Integer.MAX_VALUE);
+				break;
+			case "--check-alloc":
+				allocCheckDays = Prefs.parseInt(key, value, 1,
+						SimEngine.MAX_SIM_DAYS - AllocationCheck.WARM_UP_DAYS);
+				break;
+			case "--sweep":
+				parseSweep(value);
+				break;
+			default:
+				setting(key, value);
+			}
+		}
+		if (sweepKey != null && !solve)
+			throw new IllegalArgumentException("--sweep: only with --solve");
+		if (zoneFile != null && (solve || observations != null))
+			throw new IllegalArgumentException("--zones: not with --solve or --calibrate");
+		if (odFile != null && (solve || observations != null))
+			throw new IllegalArgumentException("--od: not with --solve or --calibrate");
+		return true;
+	}
+
+	/**
+	 * Render off screen (must be set before AWT is first used)
+	 */
+	private static void setHeadless() {
+		if (System.getProperty("java.awt.headless") == null) {
+			System.setProperty("java.awt.headless", "true");
+		}
+	}
+
+	/**
+	 * Parse KEY:FROM:TO:STEP for a sweep
+	 */
+	private void parseSweep(String value) {
+		String parts[] = value.split(":");
+		if (parts.length != 4)
+			throw new IllegalArgumentException("--sweep: expected KEY:FROM:TO:STEP: " + value);
+		sweepKey = parts[0];
+		sweepFrom = Prefs.parseDouble("--sweep", parts[1]);
+		sweepTo = Prefs.parseDouble("--sweep", parts[2]);
+		sweepStep = Prefs.parseDouble("--sweep", parts[3]);
+		if (!(sweepStep > 0.0))
+			throw new IllegalArgumentException("--sweep: STEP must be positive");
+
+		// Check the key (and starting value) now rather than part way through
+		setting(sweepKey, sweepValue(sweepFrom));
+	}
+
+	/**
+	 * Sweep value as a setting (integer if the sweep is in whole numbers, as
+	 * sliders and counts need)
+	 */
+	private String sweepValue(double value) {
+		if (sweepFrom == Math.rint(sweepFrom) && sweepStep == Math.rint(sweepStep))
+			return Long.toString(Math.round(value));
+		return Double.toString(value);
+	}
+
+	/**
+	 * Apply every setting in a properties file
+	 */
+	private void loadConfig(File file) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		for (String key : props.stringPropertyNames()) {
+			setting(key, props.getProperty(key).trim());
+		}
+	}
+
+	/**
+	 * Apply a single key=value setting to whichever class it belongs to
+	 */
+	private void setting(String key, String value) {
+		switch (key) {
+		case "rainAuto":
+			rainAuto = Prefs.parseBoolean(key, value);
+			return;
+		case "roadworksAuto":
+			roadworksAuto = Prefs.parseBoolean(key, value);
+			return;
+		}
+		if (prefs.set(key, value) || modelParams.set(key, value))
+			return;
+		if (new ModeParams().set(key, value)) {
+			// Valid, so remember it for each replica's own ModeParams
+			modeWeights.put(key, value);
+			return;
+		}
+		throw new IllegalArgumentException("unknown setting: " + key);
+	}
+
+	/**
+	 * Run all replicas (in parallel if there are several) and write results
+	 */
+	private void run() throws IOException {
+		if (solve) {
+			solve();
+			return;
+		}
+		if (odFile != null) {
+			odMatrix = ODMatrix.load(odFile, SimEngine.TOTAL_LOCATIONS);
+			System.out.println("# " + odMatrix.getPairCount() + " origin-destination pairs");
+		}
+		if (zoneFile != null) {
+			long startTime = System.nanoTime();
+			zones = ZoneTable.load(zoneFile);
+			System.out.println("# " + zones.getZoneCount() + " zones, "
+					+ zones.getTotalPopulation() + " residents, loaded in "
+					+ (System.nanoTime() - startTime) / 1000000 + " ms");
+		}
+		if (allocCheckDays > 0) {
+			int status = checkAllocation();
+			if (status != AllocationCheck.NO_ALLOCATION) {
+				System.exit(status);
+			}
+			return;
+		}
+		if (!outDir.isDirectory() && !outDir.mkdirs())
+			throw new IOException("cannot create output directory " + outDir);
+		if (observations != null) {
+			calibrate();
+			return;
+		}
+
+		cache = new ResultCache(CACHE_MEMORY_BYTES, cacheDir, cacheMaxMb << 20);
+
+		long startTime = System.nanoTime();
+		List<Callable<ReplicaResult>> tasks = new ArrayList<Callable<ReplicaResult>>();
+		for (int r = 0; r < replicas; r++) {
+			final int replica = r;
+			tasks.add(new Callable<ReplicaResult>() {
+				public ReplicaResult call() throws IOException {
+					return runReplica(replica);
+				}
+			});
+		}
+
+		int threads = Math.min(replicas, Runtime.getRuntime().availableProcessors());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<ReplicaResult> results = new ArrayList<ReplicaResult>();
+		try {
+			for (Future<ReplicaResult> future : pool.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		long elapsedMs = (System.nanoTime() - startTime) / 1000000;
+
+		// Summary of each replica (mean over all days simulated)
+		System.out.println("replica,days,population,meanCars,meanBikes,finalCars,finalBikes,source");
+		for (int r = 0; r < results.size(); r++) {
+			ReplicaResult result = results.get(r);
+			int days = result.days;
+			int carTotals[] = result.results.getCarTotalsHistory();
+			int bikeTotals[] = result.results.getBikeTotalsHistory();
+			double sumCars = 0.0;
+			double sumBikes = 0.0;
+			for (int d = 0; d < days; d++) {
+				sumCars += carTotals[d];
+				sumBikes += bikeTotals[d];
+			}
+			System.out.println(r + "," + days + "," + result.results.getTotalPopulation() + ","
+					+ String.format("%.1f,%.1f", sumCars / days, sumBikes / days) + ","
+					+ carTotals[days - 1] + "," + bikeTotals[days - 1] + "," + result.source);
+		}
+		System.out.println("# " + replicas + " replica(s) in " + elapsedMs + " ms, results in "
+				+ outDir.getPath());
+	}
+
+	/**
+	 * Print the equilibria (and their stability) of the configuration, or of
+	 * each configuration in the sweep, without simulating
+	 */
+	private void solve() {
+		ModeParams modeParams = new ModeParams();
+		for (Map.Entry<String, String> weight : modeWeights.entrySet()) {
+			modeParams.set(weight.getKey(), weight.getValue());
+		}
+		if (rainAuto || roadworksAuto || prefs.getDepartureSlots() > 1) {
+			System.out.println("# solver assumes no bad weather or roadworks, one departure slot");
+		}
+		if (prefs.getSocialNeighbours() > 0 && modelParams.getSnapshot().getSocial() != 0) {
+			System.out.println("# solver ignores social influence");
+		}
+		if (prefs.getRoadCapacity() > 0.0) {
+			System.out.println("# solver uses congestion from total cars, not road segments");
+		}
+
+		String column = (sweepKey == null) ? "config" : sweepKey;
+		System.out.println(column + ",equilibrium,cars,carShare,spectralRadius,regime");
+		double population = (double) prefs.getPopulationPerLoc() * SimEngine.TOTAL_LOCATIONS;
+		int configs = (sweepKey == null) ? 1
+				: (int) Math.floor((sweepTo - sweepFrom) / sweepStep + 1e-9) + 1;
+		long startTime = System.nanoTime();
+		for (int c = 0; c < configs; c++) {
+			String label = "0";
+			if (sweepKey != null) {
+				label = sweepValue(sweepFrom + c * sweepStep);
+				setting(sweepKey, label);
+			}
+			EquilibriumSolver solver = new EquilibriumSolver(prefs, modelParams.getSnapshot(),
+					modeParams);
+			List<EquilibriumSolver.Equilibrium> equilibria = solver.solve();
+			for (int e = 0; e < equilibria.size(); e++) {
+				EquilibriumSolver.Equilibrium equilibrium = equilibria.get(e);
+				System.out.println(label + "," + e + ","
+						+ String.format("%.1f,%.4f,%.4f", equilibrium.getCarTotal(),
+						equilibrium.getCarTotal() / population, equilibrium.getSpectralRadius())
+						+ "," + equilibrium.getRegime());
+			}
+		}
+		long elapsedUs = (System.nanoTime() - startTime) / 1000;
+		System.out.println("# " + configs + " configuration(s) in " + elapsedUs + " us");
+	}
+
+	/**
+	 * Fit sliders to the observations and save them as a properties file
+	 * (usable as --config)
+	 */
+	private void calibrate() throws IOException {
+		Calibrator calibrator = new Calibrator(prefs, modelParams, modeWeights, fitParams,
+				Runtime.getRuntime().availableProcessors());
+		calibrator.loadObservations(observations);
+
+		long startTime = System.nanoTime();
+		Calibrator.Result result;
+		try {
+			result = calibrator.calibrate(maxSimulations);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		long elapsedMs = (System.nanoTime() - startTime) / 1000000;
+
+		Properties fitted = new Properties();
+		for (Map.Entry<String, Integer> value : result.getValues().entrySet()) {
+			System.out.println(value.getKey() + "=" + value.getValue());
+			fitted.setProperty(value.getKey(), value.getValue().toString());
+		}
+		File file = new File(outDir, "calibrated.properties");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			fitted.store(out, String.format("Calibrated to %s, RMS error %.3f",
+					observations.getName(), result.getError()));
+		} finally {
+			out.close();
+		}
+		System.out.println(String.format("# RMS error %.3f after %d simulations"
+				+ " (%d iterations) in %d ms, saved in %s", result.getError(),
+				result.getSimulations(), result.getIterations(), elapsedMs, file.getPath()));
+	}
+
+	/**
+	 * Measure the memory allocated by a number of days' steps of the
+	 * configuration, after warming up, by the stepping thread and the
+	 * simulator's worker threads (see AllocationCheck). Runs without
+	 * stopping at a steady state, so that every day is stepped.
+	 *
+	 * @return AllocationCheck.NO_ALLOCATION, ALLOCATED or UNSUPPORTED
+	 */
+	private int checkAllocation() {
+		AllocationCheck check = AllocationCheck.create();
+		if (check == null) {
+			System.out.println("# allocation check skipped: this JVM cannot measure"
+					+ " allocation per thread");
+			return AllocationCheck.UNSUPPORTED;
+		}
+
+		Prefs checkPrefs = new Prefs(prefs);
+		checkPrefs.set("maxSimDays", Integer.toString(AllocationCheck.WARM_UP_DAYS + allocCheckDays));
+		checkPrefs.set("steadyStateTolerance", "0");
+		SimEngine engine = new SimEngine(modelParams, checkPrefs);
+		for (Map.Entry<String, String> weight : modeWeights.entrySet()) {
+			engine.getModeParams().set(weight.getKey(), weight.getValue());
+		}
+		engine.setRainAuto(rainAuto);
+		engine.setRoadworksAuto(roadworksAuto);
+		engine.setZoneTable(zones);
+		engine.setODMatrix(odMatrix);
+		engine.initSim();
+
+		AllocationCheck.printHeader();
+		long bytes = check.measure("configured", engine, allocCheckDays);
+		System.out.println((bytes == 0) ? "# no allocation in the day step"
+				: "# day step allocates memory");
+		return (bytes == 0) ? AllocationCheck.NO_ALLOCATION : AllocationCheck.ALLOCATED;
+	}
+
+	/**
+	 * Run one replica to the end (or fetch its results from the cache, or
+	 * carry on from shorter cached results) and write its results file
+	 *
+	 * @param replica	replica number (added to the random seed)
+	 */
+	private ReplicaResult runReplica(int replica) throws IOException {
+
+		// Each replica gets its own copy of the preferences and its own seed
+		Prefs replicaPrefs = new Prefs(prefs);
+		replicaPrefs.setRandSeed(true, prefs.getRandSeed() + replica);
+		int days = replicaPrefs.getMaxSimDays();
+
+		SimEngine engine = new SimEngine(modelParams, replicaPrefs);
+		for (Map.Entry<String, String> weight : modeWeights.entrySet()) {
+			engine.getModeParams().set(weight.getKey(), weight.getValue());
+		}
+		engine.setRainAuto(rainAuto);
+		engine.setRoadworksAuto(roadworksAuto);
+		engine.setZoneTable(zones);
+		engine.setODMatrix(odMatrix);
+		engine.initSim();
+
+		String key = ResultCache.key(replicaPrefs, modelParams.getSnapshot(),
+				engine.getModeParams(), engine.getEventScheduler(), zones, odMatrix);
+		SimCheckpoint results = (tripBits > 0) ? null : cache.get(key);
+		String source;
+		if (results != null && results.isComplete(days)) {
+			source = "cached";
+		} else {
+			source = "run";
+			if (results != null) {
+				engine.restore(results);
+				source = "extended from day " + results.getDays();
+			}
+			TripLog trips = null;
+			if (tripBits > 0) {
+				trips = new TripLog(new File(outDir, "trips_" + replica + ".bin"), tripBits);
+				engine.setTripLog(trips);
+			}
+			try {
+				while (engine.step()) {
+					// Keep going until the end of the simulation buffer
+				}
+			} finally {
+				if (trips != null) {
+					trips.close();
+				}
+			}
+			results = engine.checkpoint();
+			cache.put(key, results);
+		}
+		
+		// (Fewer days if stopped early at a steady state)
+		days = Math.min(days, results.getDays());
+
+		File file = new File(outDir, "results_" + replica + ".csv");
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("day,cars,bikes,carsAv,rain,roadworks");
+			for (int d = 0; d < days; d++) {
+				out.println(d + "," + results.getCarTotalsHistory()[d] + ","
+						+ results.getBikeTotalsHistory()[d] + ","
+						+ String.format("%.2f", results.getTotalCarsAvHistory()[d]) + ","
+						+ (results.getRainHistory()[d] ? 1 : 0) + ","
+						+ (results.getRoadworksHistory()[d] ? 1 : 0));
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError())
+			throw new IOException("error writing " + file);
+
+		// (Rendered on this replica's thread, so in parallel with the others)
+		for (String format : chartFormats) {
+			ChartExport.writeChart(results, days, "Replica " + replica + " (seed "
+					+ replicaPrefs.getRandSeed() + ")", new File(outDir, "chart_" + replica
+					+ "." + format));
+			ChartExport.writeBars(results, new File(outDir, "bars_" + replica + "." + format));
+		}
+		if (frameStep > 0) {
+			FrameExporter.writeFrames(results, days, frameStep,
+					new File(outDir, "frames_" + replica));
+		}
+		return new ReplicaResult(results, days, source);
+	}
+}
@@ -0,0 +1,562 @@
+/*
+ * Classname: Calibrator
+ */
+
+package commuterSim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fits ModelParams slider values to observed daily commuter counts, by
+ * Nelder-Mead (downhill simplex) minimisation of the RMS difference between
+ * simulated and observed counts. Each candidate is a headless simulation
+ * (SimEngine) of the observed days, with any observed bad weather and
+ * roadworks as scenario events.
+ * <p>
+ * All candidates are simulated with the same fixed random seed (common
+ * random numbers), so differences between them come from the parameters
+ * alone. Sliders are whole numbers, so each candidate is rounded and each
+ * distinct set of values only simulated once. Candidates are simulated in
+ * parallel: the starting simplex and any shrink all at once, and in each
+ * step the reflection, expansion and both contractions speculatively
+ * together (only one is kept, but the wall clock time is that of one).
+ * <p>
+ * Observations are CSV with a header line naming the columns day,
+ * location, cars, bikes and optionally rain and roadworks (0 or 1). A
+ * location of "all" compares against the whole-road totals. Bikes means
+ * every mode other than car.
+ */
+public class Calibrator {
+
+	/**
+	 * Sliders fitted unless told otherwise (not the averager length, which
+	 * has a different range and little effect on long run counts)
+	 */
+	public static final String DEFAULT_PARAMS[] = { "slideValExpense", "slideValTimeEffort",
+			"slideValIndividual", "slideValCongestion", "slideValRoadworks", "slideValWeather" };
+
+	/**
+	 * All ModelParams keys (so a candidate can copy the rest unchanged)
+	 */
+	private static final String ALL_PARAMS[] = { "slideValExpense", "slideValTimeEffort",
+			"slideValIndividual", "slideValCongestion", "slideValRoadworks", "slideValWeather",
+			"slideValAveragerLen", "slideValSocial" };
+
+	private static final int SLIDER_MIN = ModelParams.SLIDER_MIN;
+	private static final int SLIDER_MAX = ModelParams.SLIDER_MAX;
+	private static final int AVERAGER_MIN = ModelParams.AVERAGER_MIN;
+	private static final int AVERAGER_MAX = ModelParams.AVERAGER_MAX;
+
+	/**
+	 * Size of the starting simplex along each slider
+	 */
+	private static final double INITIAL_STEP = 20.0;
+
+	/**
+	 * Nelder-Mead reflection factor (expansion, contraction and shrink
+	 * factors depend on the number of sliders, see Calibrator())
+	 */
+	private static final double REFLECT = 1.0;
+
+	private static final int TOTAL_LOCATIONS = SimEngine.TOTAL_LOCATIONS;
+
+	/**
+	 * Location value for whole-road totals
+	 */
+	private static final int ALL_LOCATIONS = -1;
+
+	private final Prefs prefs;
+	private final ModelParams start;
+	private final Map<String, String> modeWeights;
+	private final String params[];
+	private final int threads;
+	private final double expand;
+	private final double contract;
+	private final double shrink;
+
+	// Observations, one entry per CSV row
+	private int obsDay[];
+	private int obsLocation[];
+	private double obsCars[];
+	private double obsBikes[];
+	private int days = 0;
+	private final List<SimEvent> events = new ArrayList<SimEvent>();
+
+	/**
+	 * Error of every distinct candidate simulated, by rounded slider values
+	 */
+	private final Map<String, Double> errors = new ConcurrentHashMap<String, Double>();
+
+	/**
+	 * Outcome of a calibration
+	 */
+	public static final class Result {
+		private final Map<String, Integer> values;
+		private final double error;
+		private final int simulations;
+		private final int iterations;
+
+		Result(Map<String, Integer> values, double error, int simulations, int iterations) {
+			this.values = values;
+			this.error = error;
+			this.simulations = simulations;
+			this.iterations = iterations;
+		}
+
+		/**
+		 * Fitted slider values, by ModelParams key
+		 */
+		public Map<String, Integer> getValues() {
+			return values;
+		}
+
+		/**
+		 * RMS difference between simulated and observed counts
+		 */
+		public double getError() {
+			return error;
+		}
+
+		/**
+		 * Distinct candidates simulated
+		 */
+		public int getSimulations() {
+			return simulations;
+		}
+
+		public int getIterations() {
+			return iterations;
+		}
+	}
+
+	/**
+	 * Create a calibrator
+	 *
+	 * @param prefs			preferences (population, seed, etc.; copied)
+	 * @param start			slider values to start from (and for any not fitted)
+	 * @param modeWeights	ModeParams settings for every candidate
+	 * @param params		ModelParams keys of the sliders to fit
+	 * @param threads		candidates to simulate at once
+	 */
+	public Calibrator(Prefs prefs, ModelParams start, Map<String, String> modeWeights,
+			String params[], int threads) {
+		this.prefs = new Prefs(prefs);
+		this.start = start;
+		this.modeWeights = modeWeights;
+		this.params = params.clone();
+		this.threads = Math.max(1, threads);
+
+		// Adaptive factors (Gao and Han, 2012), which cope better than the
+		// standard ones (2, 0.5, 0.5) with more than a couple of sliders
+		int n = Math.max(2, params.length);
+		expand = 1.0 + 2.0 / n;
+		contract = 0.75 - 0.5 / n;
+		shrink = 1.0 - 1.0 / n;
+		for (String param : params) {
+			if (!Arrays.asList(ALL_PARAMS).contains(param))
+				throw new IllegalArgumentException("not a ModelParams slider: " + param);
+		}
+	}
+
+	/**
+	 * Read observations from a CSV file
+	 *
+	 * @throws IllegalArgumentException if the file is malformed
+	 */
+	public void loadObservations(File file) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		Map<String, Integer> columns = new LinkedHashMap<String, Integer>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String header = in.readLine();
+			if (header == null)
+				throw new IllegalArgumentException(file + ": empty");
+			String names[] = header.split(",");
+			for (int c = 0; c < names.length; c++) {
+				columns.put(names[c].trim(), c);
+			}
+			for (String column : new String[] { "day", "location", "cars", "bikes" }) {
+				if (!columns.containsKey(column))
+					throw new IllegalArgumentException(file + ": no " + column + " column");
+			}
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.trim().isEmpty()) {
+					rows.add(line.split(","));
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		int n = rows.size();
+		obsDay = new int[n];
+		obsLocation = new int[n];
+		obsCars = new double[n];
+		obsBikes = new double[n];
+		Integer rainColumn = columns.get("rain");
+		Integer roadworksColumn = columns.get("roadworks");
+		days = 0;
+		for (int i = 0; i < n; i++) {
+			String row[] = rows.get(i);
+			if (row.length < columns.size())
+				throw new IllegalArgumentException(file + ": short line " + (i + 2));
+			obsDay[i] = Prefs.parseInt("day", row[columns.get("day")].trim(), 0,
+					SimEngine.MAX_SIM_DAYS - 1);
+			String location = row[columns.get("location")].trim();
+			obsLocation[i] = location.equals("all") ? ALL_LOCATIONS
+					: Prefs.parseInt("location", location, 0, TOTAL_LOCATIONS - 1);
+			obsCars[i] = Prefs.parseDouble("cars", row[columns.get("cars")].trim());
+			obsBikes[i] = Prefs.parseDouble("bikes", row[columns.get("bikes")].trim());
+			days = Math.max(days, obsDay[i] + 1);
+		}
+
+		// Observed weather and roadworks, as scenario events (merging runs
+		// of consecutive days)
+		boolean rain[] = new boolean[days];
+		boolean roadworks[][] = new boolean[TOTAL_LOCATIONS][days];
+		for (int i = 0; i < n; i++) {
+			String row[] = rows.get(i);
+			if (rainColumn != null) {
+				rain[obsDay[i]] |= Prefs.parseBoolean("rain", flag(row[rainColumn]));
+			}
+			if (roadworksColumn != null && obsLocation[i] != ALL_LOCATIONS) {
+				roadworks[obsLocation[i]][obsDay[i]] |=
+						Prefs.parseBoolean("roadworks", flag(row[roadworksColumn]));
+			}
+		}
+		events.clear();
+		addEvents(SimEvent.Type.RAIN, rain, 0);
+		for (int location = 0; location < TOTAL_LOCATIONS; location++) {
+			addEvents(SimEvent.Type.ROADWORKS, roadworks[location], location);
+		}
+	}
+
+	/**
+	 * Run the calibration
+	 *
+	 * @param maxSimulations	stop after this many distinct candidates
+	 */
+	public Result calibrate(int maxSimulations) throws InterruptedException {
+		if (days == 0)
+			throw new IllegalStateException("no observations loaded");
+		prefs.setMaxSimDays(days);
+		prefs.setRandSeed(true, prefs.getRandSeed());
+		errors.clear();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			int n = params.length;
+			double best[] = new double[n];
+			ParamSnapshot snapshot = start.getSnapshot();
+			for (int j = 0; j < n; j++) {
+				best[j] = value(snapshot, params[j]);
+			}
+
+			// Restart from the best so far until a restart finds nothing
+			// better (rounding to whole numbers can stall a simplex early)
+			double bestError = Double.POSITIVE_INFINITY;
+			int iterations[] = new int[1];
+			while (errors.size() < maxSimulations) {
+				double simplex[][] = new double[n + 1][];
+				double f[] = search(pool, best, maxSimulations, simplex, iterations);
+				if (!(f[0] < bestError))
+					break;
+				best = simplex[0];
+				bestError = f[0];
+			}
+
+			Map<String, Integer> values = new LinkedHashMap<String, Integer>();
+			for (int j = 0; j < n; j++) {
+				values.put(params[j], (int) Math.round(best[j]));
+			}
+			return new Result(values, bestError, errors.size(), iterations[0]);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * One Nelder-Mead search from a starting point, until the simplex
+	 * shrinks to a single (rounded) candidate or enough simulations
+	 *
+	 * @param simplex		set to the final simplex, best first
+	 * @param iterations	iteration count to add to
+	 * @return errors of the final simplex vertices
+	 */
+	private double[] search(ExecutorService pool, double from[], int maxSimulations,
+			double simplex[][], int iterations[]) throws InterruptedException {
+		int n = params.length;
+
+		// Starting simplex: the starting point and a step along each slider
+		// (towards the middle of its range)
+		simplex[0] = clamp(from.clone());
+		for (int i = 1; i <= n; i++) {
+			simplex[i] = simplex[0].clone();
+			int j = i - 1;
+			simplex[i][j] += (simplex[i][j] > midpoint(params[j])) ? -INITIAL_STEP
+					: INITIAL_STEP;
+			simplex[i] = clamp(simplex[i]);
+		}
+		double f[] = evaluateAll(pool, simplex);
+
+		while (errors.size() < maxSimulations && !converged(simplex)) {
+			iterations[0]++;
+			sort(simplex, f);
+
+			// Centroid of all but the worst
+			double centroid[] = new double[n];
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					centroid[j] += simplex[i][j] / n;
+				}
+			}
+
+			// Reflection, expansion, outside and inside contraction, all
+			// simulated at once (though at most one will be used)
+			double worst[] = simplex[n];
+			double candidates[][] = {
+					towards(centroid, worst, -REFLECT),
+					towards(centroid, worst, -REFLECT * expand),
+					towards(centroid, worst, -REFLECT * contract),
+					towards(centroid, worst, contract) };
+			double fc[] = evaluateAll(pool, candidates);
+			double fReflect = fc[0];
+
+			int accept;
+			if (fReflect < f[0]) {
+				accept = (fc[1] < fReflect) ? 1 : 0;
+			} else if (fReflect < f[n - 1]) {
+				accept = 0;
+			} else if (fReflect < f[n]) {
+				accept = (fc[2] <= fReflect) ? 2 : -1;
+			} else {
+				accept = (fc[3] < f[n]) ? 3 : -1;
+			}
+
+			if (accept >= 0) {
+				simplex[n] = candidates[accept];
+				f[n] = fc[accept];
+			} else {
+				// Shrink everything towards the best
+				double shrunk[][] = new double[n][];
+				for (int i = 1; i <= n; i++) {
+					shrunk[i - 1] = towards(simplex[0], simplex[i], shrink);
+				}
+				double fs[] = evaluateAll(pool, shrunk);
+				for (int i = 1; i <= n; i++) {
+					simplex[i] = shrunk[i - 1];
+					f[i] = fs[i - 1];
+				}
+			}
+		}
+		sort(simplex, f);
+		return f;
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Errors of several candidates, simulating any not already simulated
+	 * in parallel
+	 */
+	private double[] evaluateAll(ExecutorService pool, double points[][])
+			throws InterruptedException {
+		List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+		for (final double point[] : points) {
+			tasks.add(new Callable<Double>() {
+				public Double call() {
+					return evaluate(point);
+				}
+			});
+		}
+		double f[] = new double[points.length];
+		try {
+			List<Future<Double>> results = pool.invokeAll(tasks);
+			for (int i = 0; i < f.length; i++) {
+				f[i] = results.get(i).get();
+			}
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return f;
+	}
+
+	/**
+	 * Error of one candidate (simulated unless already known)
+	 */
+	private double evaluate(double point[]) {
+		int rounded[] = new int[point.length];
+		for (int j = 0; j < point.length; j++) {
+			rounded[j] = (int) Math.round(point[j]);
+		}
+		String key = Arrays.toString(rounded);
+		Double known = errors.get(key);
+		if (known != null)
+			return known;
+
+		// Candidate parameters (the rest as the start values)
+		ModelParams candidate = new ModelParams();
+		ParamSnapshot snapshot = start.getSnapshot();
+		for (String param : ALL_PARAMS) {
+			candidate.set(param, Integer.toString(value(snapshot, param)));
+		}
+		for (int j = 0; j < params.length; j++) {
+			candidate.set(params[j], Integer.toString(rounded[j]));
+		}
+
+		SimEngine engine = new SimEngine(candidate, new Prefs(prefs));
+		for (Map.Entry<String, String> weight : modeWeights.entrySet()) {
+			engine.getModeParams().set(weight.getKey(), weight.getValue());
+		}
+		for (SimEvent event : events) {
+			engine.getEventScheduler().schedule(event);
+		}
+		engine.initSim();
+		while (engine.step()) {
+			// Simulate all the observed days
+		}
+		double error = error(engine);
+		errors.put(key, error);
+		return error;
+	}
+
+	/**
+	 * RMS difference between simulated and observed car and bike counts
+	 */
+	private double error(SimEngine engine) {
+		int carTotals[] = engine.getCarTotalsHistory();
+		int bikeTotals[] = engine.getBikeTotalsHistory();
+		float carsByLocation[] = engine.getCarsByLocationHistory();
+		int residents[] = engine.getResidentsByLocation();
+		// (If stopped early at a steady state, the last day carries on)
+		int lastDay = engine.getSimDay() - 1;
+
+		double sumSquares = 0.0;
+		for (int i = 0; i < obsDay.length; i++) {
+			int day = Math.min(obsDay[i], lastDay);
+			double cars;
+			double bikes;
+			if (obsLocation[i] == ALL_LOCATIONS) {
+				cars = carTotals[day];
+				bikes = bikeTotals[day];
+			} else {
+				cars = carsByLocation[day * TOTAL_LOCATIONS + obsLocation[i]];
+				bikes = residents[obsLocation[i]] - cars;
+			}
+			sumSquares += (cars - obsCars[i]) * (cars - obsCars[i])
+					+ (bikes - obsBikes[i]) * (bikes - obsBikes[i]);
+		}
+		return Math.sqrt(sumSquares / (2.0 * obsDay.length));
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Has the simplex shrunk to (rounded) a single candidate?
+	 */
+	private boolean converged(double simplex[][]) {
+		for (int i = 1; i < simplex.length; i++) {
+			for (int j = 0; j < params.length; j++) {
+				if (Math.abs(simplex[i][j] - simplex[0][j]) >= 0.5)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * from + factor * (to - from), within slider ranges
+	 */
+	private double[] towards(double from[], double to[], double factor) {
+		double point[] = new double[from.length];
+		for (int j = 0; j < from.length; j++) {
+			point[j] = from[j] + factor * (to[j] - from[j]);
+		}
+		return clamp(point);
+	}
+
+	private double[] clamp(double point[]) {
+		for (int j = 0; j < point.length; j++) {
+			boolean averager = params[j].equals("slideValAveragerLen");
+			double min = averager ? AVERAGER_MIN : SLIDER_MIN;
+			double max = averager ? AVERAGER_MAX : SLIDER_MAX;
+			point[j] = Math.max(min, Math.min(max, point[j]));
+		}
+		return point;
+	}
+
+	private static double midpoint(String param) {
+		return param.equals("slideValAveragerLen") ? (AVERAGER_MIN + AVERAGER_MAX) / 2.0
+				: (SLIDER_MIN + SLIDER_MAX) / 2.0;
+	}
+
+	/**
+	 * Sort simplex vertices, best (lowest error) first
+	 */
+	private static void sort(double simplex[][], double f[]) {
+		for (int i = 1; i < f.length; i++) {
+			double point[] = simplex[i];
+			double value = f[i];
+			int k = i - 1;
+			while (k >= 0 && f[k] > value) {
+				simplex[k + 1] = simplex[k];
+				f[k + 1] = f[k];
+				k--;
+			}
+			simplex[k + 1] = point;
+			f[k + 1] = value;
+		}
+	}
+
+	private static int value(ParamSnapshot snapshot, String param) {
+		switch (param) {
+		case "slideValExpense":		return snapshot.getExpense();
+		case "slideValTimeEffort":	return snapshot.getTimeEffort();
+		case "slideValIndividual":	return snapshot.getIndividual();
+		case "slideValCongestion":	return snapshot.getCongestion();
+		case "slideValRoadworks":	return snapshot.getRoadworks();
+		case "slideValWeather":		return snapshot.getWeather();
+		case "slideValSocial":		return snapshot.getSocial();
+		default:					return snapshot.getAveragerLen();
+		}
+	}
+
+	/**
+	 * Runs of consecutive flagged days as events
+	 */
+	private void addEvents(SimEvent.Type type, boolean flagged[], int location) {
+		for (int day = 0; day < flagged.length; day++) {
+			if (flagged[day]) {
+				int end = day;
+				while (end < flagged.length && flagged[end]) {
+					end++;
+				}
+				events.add(new SimEvent(type, day, end, location));
+				day = end;
+			}
+		}
+	}
+
+	/**
+	 * Accept 0/1 as well as false/true
+	 */
+	private static String flag(String value) {
+		value = value.trim();
+		return value.equals("1") ? "true" : (value.equals("0") ? "false" : value);
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Classname: ChartExport
+ */
+
+package commuterSim;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+
+import org.jfree.chart.JFreeChart;
+import org.jfree.data.xy.DefaultXYDataset;
+
+/**
+ * Off-screen export of results to image files, for batch runs on a server
+ * without a display (run with java.awt.headless=true): the results chart
+ * (as in the "Results Chart" tab) and the last day's bar snapshot (as in
+ * the Simulator tab), each as PNG or SVG.
+ * <p>
+ * Safe to call from many threads at once. Each thread keeps its own chart,
+ * dataset, histories and image buffers and reuses them for every export,
+ * so producing thousands of charts costs little more than drawing them.
+ * Only referenced (and so JFreeChart only loaded) when exporting.
+ */
+public class ChartExport {
+
+	public static final int CHART_WIDTH = 800;
+	public static final int CHART_HEIGHT = 500;
+	public static final int BARS_WIDTH = 330;
+	public static final int BARS_HEIGHT = 240;
+
+	private static final int TOTAL_LOCATIONS = SimEngine.TOTAL_LOCATIONS;
+
+	/**
+	 * Each thread's reusable rendering state
+	 */
+	private static final ThreadLocal<ChartExport> PER_THREAD = new ThreadLocal<ChartExport>() {
+		protected ChartExport initialValue() {
+			return new ChartExport();
+		}
+	};
+
+	private final DefaultXYDataset data = new DefaultXYDataset();
+	private final JFreeChart chart = ChartResults.createChart(data);
+	private final HistoryPyramid totalCars = new HistoryPyramid(1024);
+	private final HistoryPyramid totalBikes = new HistoryPyramid(1024);
+	private final HistoryPyramid totalCarsAv = new HistoryPyramid(1024);
+	private final BufferedImage chartImage =
+			new BufferedImage(CHART_WIDTH, CHART_HEIGHT, BufferedImage.TYPE_INT_RGB);
+	private final BufferedImage barsImage =
+			new BufferedImage(BARS_WIDTH, BARS_HEIGHT, BufferedImage.TYPE_INT_RGB);
+	private final int carCommuters[] = new int[TOTAL_LOCATIONS];
+	private final int bikeCommuters[] = new int[TOTAL_LOCATIONS];
+
+	private ChartExport() {
+	}
+
+	/**
+	 * Write the results chart for the first days of some results
+	 *
+	 * @param file		file to write (.svg for SVG, otherwise PNG)
+	 */
+	public static void writeChart(SimCheckpoint results, int days, String title, File file)
+			throws IOException {
+		PER_THREAD.get().chart(results, days, title, file);
+	}
+
+	/**
+	 * Write the bar snapshot of the last day of some results
+	 *
+	 * @param file		file to write (.svg for SVG, otherwise PNG)
+	 */
+	public static void writeBars(SimCheckpoint results, File file) throws IOException {
+		PER_THREAD.get().bars(results, file);
+	}
+
+	//-------------------------------------------------------------------------|
+
+	private void chart(SimCheckpoint results, int days, String title, File file)
+			throws IOException {
+		totalCars.clear();
+		totalBikes.clear();
+		totalCarsAv.clear();
+		for (int d = 0; d < days; d++) {
+			totalCars.append(results.getCarTotalsHistory()[d]);
+			totalBikes.append(results.getBikeTotalsHistory()[d]);
+			totalCarsAv.append(results.getTotalCarsAvHistory()[d]);
+		}
+
+		if (isSvg(file)) {
+			writeChartSvg(title, days, results.getTotalPopulation(), file);
+			return;
+		}
+
+		ChartResults.setSeries(data, totalCars, totalBikes, totalCarsAv, 0, days);
+		chart.setTitle(title);
+		Graphics2D g = chartImage.createGraphics();
+		try {
+			chart.draw(g, new Rectangle2D.Double(0, 0, CHART_WIDTH, CHART_HEIGHT));
+		} finally {
+			g.dispose();
+		}
+		writePng(chartImage, file);
+	}
+
+	private void bars(SimCheckpoint results, File file) throws IOException {
+		double cars[] = results.getLastCarsByLocation();
+		int residents[] = results.getResidentsByLocation();
+		for (int i = 0; i < TOTAL_LOCATIONS; i++) {
+			carCommuters[i] = (int) (cars[i] + 0.5);
+			bikeCommuters[i] = residents[i] - carCommuters[i];
+		}
+		double pixelsPerCommuter = (BARS_HEIGHT - 20.0)
+				/ Math.max(1, SimRender.maxResidents(residents));
+
+		if (isSvg(file)) {
+			PrintWriter out = openSvg(file, BARS_WIDTH, BARS_HEIGHT);
+			try {
+				for (int i = 0; i < TOTAL_LOCATIONS; i++) {
+					int xStart = 20 + i * 30;
+					int yEnd = BARS_HEIGHT - 10;
+					int car = (int) (carCommuters[i] * pixelsPerCommuter + 0.5);
+					int bike = (int) (bikeCommuters[i] * pixelsPerCommuter + 0.5);
+					out.printf(Locale.ROOT, "<rect x=\"%d\" y=\"%d\" width=\"10\" height=\"%d\""
+							+ " fill=\"red\"/>%n", xStart, yEnd - car, car);
+					out.printf(Locale.ROOT, "<rect x=\"%d\" y=\"%d\" width=\"10\" height=\"%d\""
+							+ " fill=\"lime\"/>%n", xStart + 10, yEnd - bike, bike);
+				}
+			} finally {
+				closeSvg(out, file);
+			}
+			return;
+		}
+
+		Graphics2D g = barsImage.createGraphics();
+		try {
+			g.setColor(Color.white);
+			g.fillRect(0, 0, BARS_WIDTH, BARS_HEIGHT);
+			SimRender.paintBars(g, BARS_HEIGHT, carCommuters, bikeCommuters, TOTAL_LOCATIONS,
+					pixelsPerCommuter);
+		} finally {
+			g.dispose();
+		}
+		writePng(barsImage, file);
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Results chart as SVG, drawn directly (JFreeChart itself has no SVG
+	 * output): a line for each series through the same points as the PNG
+	 */
+	private void writeChartSvg(String title, int days, int population, File file)
+			throws IOException {
+		int left = 60;
+		int top = 40;
+		int plotWidth = CHART_WIDTH - left - 20;
+		int plotHeight = CHART_HEIGHT - top - 50;
+		double xScale = plotWidth / (double) Math.max(1, days - 1);
+		double yScale = plotHeight / (double) Math.max(1, population);
+
+		PrintWriter out = openSvg(file, CHART_WIDTH, CHART_HEIGHT);
+		try {
+			out.printf(Locale.ROOT, "<text x=\"%d\" y=\"24\" text-anchor=\"middle\""
+					+ " font-size=\"16\">%s</text>%n", CHART_WIDTH / 2, escape(title));
+			out.printf(Locale.ROOT, "<rect x=\"%d\" y=\"%d\" width=\"%d\" height=\"%d\""
+					+ " fill=\"none\" stroke=\"gray\"/>%n", left, top, plotWidth, plotHeight);
+
+			// Axis labels at each end
+			out.printf(Locale.ROOT, "<text x=\"%d\" y=\"%d\" font-size=\"11\">0</text>%n",
+					left, top + plotHeight + 14);
+			out.printf(Locale.ROOT, "<text x=\"%d\" y=\"%d\" text-anchor=\"end\""
+					+ " font-size=\"11\">%d</text>%n", left + plotWidth, top + plotHeight + 14,
+					Math.max(0, days - 1));
+			out.printf(Locale.ROOT, "<text x=\"%d\" y=\"%d\" text-anchor=\"middle\""
+					+ " font-size=\"12\">Days</text>%n", left + plotWidth / 2,
+					top + plotHeight + 30);
+			out.printf(Locale.ROOT, "<text x=\"%d\" y=\"%d\" text-anchor=\"end\""
+					+ " font-size=\"11\">%d</text>%n", left - 4, top + 10, population);
+			out.printf(Locale.ROOT, "<text x=\"%d\" y=\"%d\" text-anchor=\"end\""
+					+ " font-size=\"11\">0</text>%n", left - 4, top + plotHeight);
+
+			String names[] = { "Total Bikes", "Total Cars", "Total Cars (Average)" };
+			String colours[] = { "green", "red", "blue" };
+			double points[][][] = {
+					totalBikes.minMaxPoints(0, days, ChartResults.MAX_BUCKETS),
+					totalCars.minMaxPoints(0, days, ChartResults.MAX_BUCKETS),
+					totalCarsAv.meanPoints(0, days, ChartResults.MAX_BUCKETS) };
+			for (int s = 0; s < names.length; s++) {
+				out.printf(Locale.ROOT, "<polyline fill=\"none\" stroke=\"%s\" points=\"",
+						colours[s]);
+				for (int i = 0; i < points[s][0].length; i++) {
+					out.printf(Locale.ROOT, "%.1f,%.1f ", left + points[s][0][i] * xScale,
+							top + plotHeight - points[s][1][i] * yScale);
+				}
+				out.println("\"/>");
+				out.printf(Locale.ROOT, "<text x=\"%d\" y=\"%d\" fill=\"%s\""
+						+ " font-size=\"12\">%s</text>%n", left + 200 * s,
+						CHART_HEIGHT - 6, colours[s], names[s]);
+			}
+		} finally {
+			closeSvg(out, file);
+		}
+	}
+
+	private static PrintWriter openSvg(File file, int width, int height) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		out.printf(Locale.ROOT, "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"%d\""
+				+ " height=\"%d\" font-family=\"sans-serif\">%n", width, height);
+		out.println("<rect width=\"100%\" height=\"100%\" fill=\"white\"/>");
+		return out;
+	}
+
+	private static void closeSvg(PrintWriter out, File file) throws IOException {
+		out.println("</svg>");
+		out.close();
+		if (out.checkError())
+			throw new IOException("error writing " + file);
+	}
+
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	private static boolean isSvg(File file) {
+		return file.getName().toLowerCase(Locale.ROOT).endsWith(".svg");
+	}
+
+	private static void writePng(BufferedImage image, File file) throws IOException {
+		if (!ImageIO.write(image, "png", file))
+			throw new IOException("no PNG writer for " + file);
+	}
+}
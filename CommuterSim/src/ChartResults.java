@@ -11,13 +11,25 @@
 
 package commuterSim;
 
+import javax.swing.JComponent;
+
 import org.jfree.chart.*;
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.event.AxisChangeEvent;
+import org.jfree.chart.event.AxisChangeListener;
 import org.jfree.chart.plot.*;
 import org.jfree.data.xy.DefaultXYDataset;
 
 /**
  * Generation of images for the "Results Chart" pane, using the open
  * source package JFreeChart.
+ * <p>
+ * The daily totals are kept in HistoryPyramids, so however long the run
+ * only a bounded number of points is plotted: the days shown (all of
+ * them, or the range zoomed in to) are split into at most MAX_BUCKETS
+ * ranges, each plotted as its minimum and maximum (so no spikes are lost)
+ * or, for the moving average, its mean. Zooming re-queries at the new
+ * range, so detail appears as the view narrows.
  * 
  * @author Richard Thomas <gy13rjt@leeds.ac.uk>
  * @version 0.1, 06 May 2014
@@ -25,8 +37,39 @@ import org.jfree.data.xy.DefaultXYDataset;
 public class ChartResults {
 	
 	
+	/**
+	 * Most day ranges plotted across the chart
+	 */
+	static final int MAX_BUCKETS = 500;
+
 	DefaultXYDataset data1;
 	JFreeChart chart;
+
+	/**
+	 * Results so far
+	 */
+	private HistoryPyramid totalCarsHistory = new HistoryPyramid(1024);
+	private HistoryPyramid totalBikesHistory = new HistoryPyramid(1024);
+	private HistoryPyramid totalCarsAvHistory = new HistoryPyramid(1024);
+
+	/**
+	 * Set while replacing the plotted points (which can change the axes)
+	 */
+	private boolean refreshing = false;
+	
+	/**
+	 * Create the "Results Chart" pane, already showing any results so far
+	 * (for when the pane is only created part way through a simulation).
+	 * Declared as returning a plain JComponent so that callers do not need
+	 * any JFreeChart classes to be loaded until this is actually called.
+	 * 
+	 * @param simulator		simulator to show results of
+	 */
+	public static JComponent createChartPane(Simulator simulator) {
+		ChartPanel chartPanel = new ChartResults().InitChart();
+		simulator.updateChart();
+		return chartPanel;
+	}
 	
 	public ChartPanel InitChart() {
 		
@@ -36,40 +79,89 @@ public class ChartResults {
 
 		data1 = new DefaultXYDataset();
 
-		chart = ChartFactory.createScatterPlot(
-				"Commuter (Car vs Bike) simulation", 
-				"Days", // x axis label
-				"Commuter Counts", // y axis label
-				data1, // data
-				PlotOrientation.VERTICAL, // orientation
-				true, // legend
-				true, // tooltips
-				false // URLs
-				);
+		chart = createChart(data1);
+
+		// Re-plot at the new resolution whenever the days shown change
+		chart.getXYPlot().getDomainAxis().addChangeListener(new AxisChangeListener() {
+			public void axisChanged(AxisChangeEvent event) {
+				if (!refreshing) {
+					refresh();
+				}
+			}
+		});
 
 		// Package the chart into a panel
 		ChartPanel chartPanel = new ChartPanel(chart);
 		return chartPanel;
 	}
 	
+	/**
+	 * Bring the chart up to date: add any days simulated since the last
+	 * update (or start again after a reset)
+	 */
 	public void UpdateChart(int simDays, int[] totalCars, double[] totalCarsAv,
 			int[] totalBikes) {
 		
-		double dataTotalBikes[][] = new double[2][simDays];
-		double dataTotalCars[][] = new double[2][simDays];
-		double dataTotalCarsAv[][] = new double[2][simDays];
-		
-		for (int i = 0; i < simDays; i++) {
-			dataTotalBikes[0][i] = i;
-			dataTotalBikes[1][i] = (double) totalBikes[i];
-			dataTotalCars[0][i] = i;
-			dataTotalCars[1][i] = (double) totalCars[i];
-			dataTotalCarsAv[0][i] = i;
-			dataTotalCarsAv[1][i] = totalCarsAv[i];
+		if (simDays < totalCarsHistory.size()) {
+			totalCarsHistory.clear();
+			totalBikesHistory.clear();
+			totalCarsAvHistory.clear();
 		}
+		for (int i = totalCarsHistory.size(); i < simDays; i++) {
+			totalCarsHistory.append(totalCars[i]);
+			totalBikesHistory.append(totalBikes[i]);
+			totalCarsAvHistory.append(totalCarsAv[i]);
+		}
+		refresh();
+	}
+
+	/**
+	 * Re-plot the days shown (all, unless zoomed in)
+	 */
+	private void refresh() {
+		int simDays = totalCarsHistory.size();
+		int from = 0;
+		int to = simDays;
+		ValueAxis domainAxis = chart.getXYPlot().getDomainAxis();
+		if (!domainAxis.isAutoRange()) {
+			from = Math.max(0, (int) Math.floor(domainAxis.getLowerBound()));
+			to = Math.min(simDays, (int) Math.ceil(domainAxis.getUpperBound()) + 1);
+			to = Math.max(from, to);
+		}
+
+		refreshing = true;
+		try {
+			setSeries(data1, totalCarsHistory, totalBikesHistory, totalCarsAvHistory, from, to);
+		} finally {
+			refreshing = false;
+		}
+	}
+
+	/**
+	 * Create the results chart for a dataset (filled by setSeries())
+	 */
+	static JFreeChart createChart(DefaultXYDataset data) {
+		return ChartFactory.createScatterPlot(
+				"Commuter (Car vs Bike) simulation", 
+				"Days", // x axis label
+				"Commuter Counts", // y axis label
+				data, // data
+				PlotOrientation.VERTICAL, // orientation
+				true, // legend
+				true, // tooltips
+				false // URLs
+				);
+	}
 
-		data1.addSeries("Total Bikes", dataTotalBikes);
-		data1.addSeries("Total Cars", dataTotalCars);
-		data1.addSeries("Total Cars (Average)", dataTotalCarsAv);
+	/**
+	 * Replace a dataset's series with days from .. to - 1 of the results,
+	 * as at most MAX_BUCKETS ranges of days: the totals as each range's
+	 * minimum and maximum, the moving average as its mean
+	 */
+	static void setSeries(DefaultXYDataset data, HistoryPyramid totalCars,
+			HistoryPyramid totalBikes, HistoryPyramid totalCarsAv, int from, int to) {
+		data.addSeries("Total Bikes", totalBikes.minMaxPoints(from, to, MAX_BUCKETS));
+		data.addSeries("Total Cars", totalCars.minMaxPoints(from, to, MAX_BUCKETS));
+		data.addSeries("Total Cars (Average)", totalCarsAv.meanPoints(from, to, MAX_BUCKETS));
 	}
 }
@@ -0,0 +1,372 @@
+/*
+ * Classname: EquilibriumSolver
+ */
+
+package commuterSim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the equilibria of the simulation directly, without simulating day
+ * by day, for parameter sweeps. Applies when there is no bad weather and
+ * no roadworks, and everyone sets off in the same departure time slot.
+ * The model is then deterministic once aggregated by location: today's
+ * car total is a function g(x) of the moving average of total cars x, and
+ * each location's preferences settle to what the conditions favour there
+ * (or stay as generated if habitLearningRate is 0).
+ * <p>
+ * Equilibria are the roots of g(x) - x, found by scanning 0 .. population
+ * for sign changes and bisecting. The stability of each is found from the
+ * day-to-day map linearised about it: state is the last averagerLen days'
+ * car totals plus each location's preference. Its spectral radius (from
+ * power iteration) says whether small disturbances die away (less than 1)
+ * or grow, and the direction of the dominant mode says whether they do so
+ * smoothly or oscillating.
+ */
+public class EquilibriumSolver {
+
+	/**
+	 * How an equilibrium behaves after a small disturbance
+	 */
+	public enum Regime {
+		/** Returns smoothly to the equilibrium */
+		CONVERGES,
+		/** Returns to the equilibrium with damped oscillations */
+		CONVERGES_OSCILLATING,
+		/** Oscillates with growing amplitude (limited by saturation) */
+		OSCILLATES,
+		/** Moves away smoothly (e.g. a tipping point between two others) */
+		DIVERGES
+	}
+
+	/**
+	 * An equilibrium and its stability
+	 */
+	public static final class Equilibrium {
+		private final double carTotal;
+		private final double spectralRadius;
+		private final Regime regime;
+
+		Equilibrium(double carTotal, double spectralRadius, Regime regime) {
+			this.carTotal = carTotal;
+			this.spectralRadius = spectralRadius;
+			this.regime = regime;
+		}
+
+		/**
+		 * Cars per day at equilibrium
+		 */
+		public double getCarTotal() {
+			return carTotal;
+		}
+
+		/**
+		 * Factor by which a small disturbance grows (> 1) or shrinks (< 1)
+		 * each day in the long run
+		 */
+		public double getSpectralRadius() {
+			return spectralRadius;
+		}
+
+		public Regime getRegime() {
+			return regime;
+		}
+	}
+
+	/**
+	 * Intervals scanned for sign changes of g(x) - x
+	 */
+	private static final int SCAN_INTERVALS = 256;
+
+	private static final int BISECTIONS = 60;
+
+	/**
+	 * Power iterations (the last half are averaged for the growth rate)
+	 */
+	private static final int POWER_ITERATIONS = 400;
+
+	/**
+	 * Dominant mode at least this closely aligned with its image counts as
+	 * non-oscillating
+	 */
+	private static final double MONOTONE_COSINE = 0.99;
+
+	private static final int TOTAL_LOCATIONS = SimEngine.TOTAL_LOCATIONS;
+
+	/**
+	 * Everyone commutes to the work area (so each location is one pair)
+	 */
+	private static final ODMatrix TO_WORK_AREA = ODMatrix.toWorkArea(TOTAL_LOCATIONS);
+
+	private final ParamSnapshot params;
+	private final int residentsPerLoc;
+	private final double totalPopulation;
+	private final double initCarProb;
+	private final double habitRate;
+	private final int averagerLen;
+
+	/**
+	 * Same tables as the simulation uses, built for one departure slot with
+	 * no weather or roadworks
+	 */
+	private final LocationCostTable costTable = new LocationCostTable(TO_WORK_AREA);
+	private final ModeChoiceModel modeChoice;
+	private final double noSlotCongestion[] = new double[TOTAL_LOCATIONS];
+	private final float noRoadworks[] = new float[TOTAL_LOCATIONS];
+	private int tableVersion = 0;
+
+	/**
+	 * Create a solver for the given configuration
+	 *
+	 * @param prefs			preferences (population, habit learning, mode choice)
+	 * @param params		model parameters
+	 * @param modeParams	mode weights (multi-mode choice only)
+	 */
+	public EquilibriumSolver(Prefs prefs, ParamSnapshot params, ModeParams modeParams) {
+		this.params = params;
+		residentsPerLoc = prefs.getPopulationPerLoc();
+		totalPopulation = (double) residentsPerLoc * TOTAL_LOCATIONS;
+		initCarProb = prefs.getInitCarProb();
+		habitRate = prefs.getHabitLearningRate();
+		averagerLen = Math.max(1, params.getAveragerLen());
+		modeChoice = prefs.getMultiModeChoice() ?
+				new ModeChoiceModel(modeParams, TO_WORK_AREA) : null;
+		for (int i = 0; i < TOTAL_LOCATIONS; i++) {
+			noSlotCongestion[i] = 1.0;
+		}
+	}
+
+	/**
+	 * Find all equilibria, lowest car total first
+	 */
+	public List<Equilibrium> solve() {
+		List<Equilibrium> equilibria = new ArrayList<Equilibrium>();
+
+		double step = totalPopulation / SCAN_INTERVALS;
+		double lowX = 0.0;
+		double lowH = excessCars(lowX);
+		for (int i = 1; i <= SCAN_INTERVALS; i++) {
+			double highX = step * i;
+			double highH = excessCars(highX);
+			if (lowH == 0.0) {
+				equilibria.add(classify(lowX));
+			} else if ((lowH > 0.0) != (highH > 0.0) && highH != 0.0) {
+				equilibria.add(classify(bisect(lowX, highX, lowH)));
+			}
+			lowX = highX;
+			lowH = highH;
+		}
+		if (lowH == 0.0) {
+			equilibria.add(classify(lowX));
+		}
+		return equilibria;
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * g(x) - x: cars today (with preferences settled) minus average cars
+	 */
+	private double excessCars(double carsAv) {
+		buildTables(carsAv);
+		double cars = 0.0;
+		for (int location = 0; location < TOTAL_LOCATIONS; location++) {
+			cars += residentsPerLoc * settledShare(location);
+		}
+		return cars - carsAv;
+	}
+
+	private double bisect(double lowX, double highX, double lowH) {
+		for (int i = 0; i < BISECTIONS; i++) {
+			double midX = 0.5 * (lowX + highX);
+			double midH = excessCars(midX);
+			if (midH == 0.0)
+				return midX;
+			if ((midH > 0.0) == (lowH > 0.0)) {
+				lowX = midX;
+				lowH = midH;
+			} else {
+				highX = midX;
+			}
+		}
+		return 0.5 * (lowX + highX);
+	}
+
+	/**
+	 * Linearise the day-to-day map about an equilibrium and find how small
+	 * disturbances develop
+	 */
+	private Equilibrium classify(double carsAv) {
+		double eps = 1e-6 * totalPopulation;
+		double epsPref = 1e-6;
+
+		// Settled preference at each location
+		buildTables(carsAv);
+		double preference[] = new double[TOTAL_LOCATIONS];
+		for (int location = 0; location < TOTAL_LOCATIONS; location++) {
+			preference[location] = experienced(location);
+		}
+
+		// Sensitivity of cars to each location's preference
+		double carsPerPref[] = new double[TOTAL_LOCATIONS];
+		if (habitRate > 0.0) {
+			for (int location = 0; location < TOTAL_LOCATIONS; location++) {
+				carsPerPref[location] = residentsPerLoc
+						* (carShare(location, preference[location] + epsPref)
+						- carShare(location, preference[location] - epsPref)) / (2.0 * epsPref);
+			}
+		}
+
+		// Sensitivity of cars and of experienced conditions to average cars
+		buildTables(carsAv + eps);
+		double carsUp = cars(preference);
+		double experiencedUp[] = new double[TOTAL_LOCATIONS];
+		for (int location = 0; location < TOTAL_LOCATIONS; location++) {
+			experiencedUp[location] = experienced(location);
+		}
+		buildTables(carsAv - eps);
+		double carsPerAv = (carsUp - cars(preference)) / (2.0 * eps);
+		double experiencedPerAv[] = new double[TOTAL_LOCATIONS];
+		for (int location = 0; location < TOTAL_LOCATIONS; location++) {
+			experiencedPerAv[location] = (experiencedUp[location] - experienced(location))
+					/ (2.0 * eps);
+		}
+
+		// Power iteration on the linearised map. State: disturbances to car
+		// totals today, yesterday, ... and (if learning) each preference.
+		int m = averagerLen;
+		int size = m + ((habitRate > 0.0) ? TOTAL_LOCATIONS : 0);
+		double v[] = new double[size];
+		double w[] = new double[size];
+		for (int i = 0; i < size; i++) {
+			v[i] = 1.0 + 0.37 * i;
+		}
+		normalise(v);
+		double sumLogGrowth = 0.0;
+		double cosine = 1.0;
+		for (int k = 0; k < POWER_ITERATIONS; k++) {
+			double avDisturbance = 0.0;
+			for (int i = 0; i < m; i++) {
+				avDisturbance += v[i];
+			}
+			avDisturbance /= m;
+
+			double carsDisturbance = carsPerAv * avDisturbance;
+			for (int location = 0; m + location < size; location++) {
+				carsDisturbance += carsPerPref[location] * v[m + location];
+				w[m + location] = (1.0 - habitRate) * v[m + location]
+						+ habitRate * experiencedPerAv[location] * avDisturbance;
+			}
+			w[0] = carsDisturbance;
+			System.arraycopy(v, 0, w, 1, m - 1);
+
+			double growth = normalise(w);
+			if (growth < 1e-300)
+				return new Equilibrium(carsAv, 0.0, Regime.CONVERGES);
+			if (k >= POWER_ITERATIONS / 2) {
+				sumLogGrowth += Math.log(growth);
+			}
+			cosine = dot(v, w);
+			double swap[] = v;
+			v = w;
+			w = swap;
+		}
+		double spectralRadius = Math.exp(sumLogGrowth / (POWER_ITERATIONS - POWER_ITERATIONS / 2));
+
+		boolean monotone = cosine > MONOTONE_COSINE;
+		Regime regime;
+		if (spectralRadius < 1.0) {
+			regime = monotone ? Regime.CONVERGES : Regime.CONVERGES_OSCILLATING;
+		} else {
+			regime = monotone ? Regime.DIVERGES : Regime.OSCILLATES;
+		}
+		return new Equilibrium(carsAv, spectralRadius, regime);
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Build cost/choice tables for conditions with a given average total cars
+	 */
+	private void buildTables(double carsAv) {
+		double stdTotalCarsAv = 2.0 * carsAv / totalPopulation;
+		tableVersion++;
+		if (modeChoice == null) {
+			costTable.update(1, params, false, stdTotalCarsAv, noSlotCongestion, null,
+					tableVersion, noRoadworks, 0);
+		} else {
+			modeChoice.rebuild(1, false, stdTotalCarsAv, noSlotCongestion, null, noRoadworks,
+					params.getIndividual(), params.getSocial());
+		}
+	}
+
+	/**
+	 * Car share at a location for a given individual preference (as in
+	 * SimEngine.decideChunk())
+	 */
+	private double carShare(int location, double preference) {
+		if (modeChoice == null) {
+			double share = (costTable.getConditions()[location]
+					+ params.getIndividual() * preference) / 200.0 + 0.5;
+			share = (share > 1.0) ? 1.0 : share;
+			return (share < 0.0) ? 0.0 : share;
+		}
+		// (Exact rather than from the lookup table, so it can be differentiated)
+		double expCar = modeChoice.getExpUtility(ModeParams.CAR)[location]
+				* Math.exp(params.getIndividual() * preference / ModeChoiceModel.UTILITY_SCALE);
+		return expCar / (expCar + modeChoice.getExpOtherModes()[location]);
+	}
+
+	/**
+	 * How far conditions alone favour car at a location (where preferences
+	 * settle to with habit learning)
+	 */
+	private double experienced(int location) {
+		if (modeChoice == null)
+			return costTable.getExperienced()[location];
+		return modeChoice.getConditionsFavourCar()[location];
+	}
+
+	/**
+	 * Car share at a location with preferences settled: at what conditions
+	 * favour if learning, otherwise as initially generated (car or bike)
+	 */
+	private double settledShare(int location) {
+		if (habitRate > 0.0)
+			return carShare(location, experienced(location));
+		return initCarProb * carShare(location, 1.0)
+				+ (1.0 - initCarProb) * carShare(location, -1.0);
+	}
+
+	/**
+	 * Total cars for given preferences by location (or as generated if not
+	 * learning)
+	 */
+	private double cars(double preference[]) {
+		double cars = 0.0;
+		for (int location = 0; location < TOTAL_LOCATIONS; location++) {
+			cars += residentsPerLoc * ((habitRate > 0.0) ? carShare(location, preference[location])
+					: settledShare(location));
+		}
+		return cars;
+	}
+
+	private static double normalise(double v[]) {
+		double norm = Math.sqrt(dot(v, v));
+		if (norm > 0.0) {
+			for (int i = 0; i < v.length; i++) {
+				v[i] /= norm;
+			}
+		}
+		return norm;
+	}
+
+	private static double dot(double a[], double b[]) {
+		double sum = 0.0;
+		for (int i = 0; i < a.length; i++) {
+			sum += a[i] * b[i];
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,496 @@
+/*
+ * Classname: EventScheduler
+ */
+
+package commuterSim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Discrete event scheduler for bad weather spells and roadworks.
+ * Events wait in a queue ordered by start day, then move to a queue of
+ * active events ordered by end day. The simulator only needs to do any
+ * work on days where an event starts or ends (an "event boundary").
+ * <p>
+ * Automatic (random) weather and roadworks are generated one event ahead,
+ * drawing the gap to the next event directly rather than rolling the dice
+ * every day. Any number of roadworks (of differing severities) may be
+ * active at once.
+ */
+public class EventScheduler {
+
+	/**
+	 * Events yet to start, earliest first
+	 */
+	private final PriorityQueue<SimEvent> pending =
+			new PriorityQueue<SimEvent>(64, SimEvent.START_ORDER);
+
+	/**
+	 * Events currently in progress, earliest finishing first
+	 */
+	private final PriorityQueue<SimEvent> active =
+			new PriorityQueue<SimEvent>(16, SimEvent.END_ORDER);
+
+	/**
+	 * Pre-scheduled (scenario) events, re-queued whenever the scheduler is reset
+	 */
+	private final ArrayList<SimEvent> scenario = new ArrayList<SimEvent>();
+
+	/**
+	 * Number of active bad weather events
+	 */
+	private int activeRain = 0;
+
+	/**
+	 * Combined penalty of all active roadworks at each residential location
+	 */
+	private final RoadworksIndex roadworksIndex;
+
+	/**
+	 * First day on which an event starts or ends
+	 */
+	private int nextBoundary = SimEvent.OPEN_ENDED;
+
+	/**
+	 * Whether to automatically generate random weather / roadworks events
+	 */
+	private boolean rainAuto = false;
+	private boolean roadworksAuto = false;
+
+	/**
+	 * The (single) pending automatically generated event of each type
+	 */
+	private SimEvent nextAutoRain = null;
+	private SimEvent nextAutoRoadworks = null;
+
+	/**
+	 * Automatic events that have finished, reused for later ones so that
+	 * generating events makes no garbage
+	 */
+	private final ArrayList<SimEvent> spareAuto = new ArrayList<SimEvent>();
+
+	private final int totalLocations;
+	private final Prefs prefInstance;
+	private Random random = new Random();
+
+	/**
+	 * Initialisation (Constructor function)
+	 *
+	 * @param prefs				preferences supplying event probabilities/durations
+	 * @param totalLocations	number of residential locations
+	 */
+	public EventScheduler(Prefs prefs, int totalLocations) {
+		this.prefInstance = prefs;
+		this.totalLocations = totalLocations;
+		roadworksIndex = new RoadworksIndex(totalLocations);
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Is there bad weather today?
+	 */
+	public boolean isRaining() {
+		return activeRain > 0;
+	}
+
+	/**
+	 * Number of roadworks in progress anywhere today
+	 */
+	public int getActiveRoadworks() {
+		return roadworksIndex.getActiveCount();
+	}
+
+	/**
+	 * Total severity of active roadworks affecting commuters from each
+	 * residential location (0.0 = unaffected). Only recalculated after
+	 * roadworks start or finish.
+	 */
+	public float[] getRoadworksPenaltyByLoc() {
+		return roadworksIndex.getPenaltyByLoc();
+	}
+
+	/**
+	 * First day (at or after the last day advanced to) on which any event
+	 * starts or ends. Until then the event state is guaranteed not to change,
+	 * so the simulator may skip straight to this day.
+	 */
+	public int getNextBoundary() {
+		return nextBoundary;
+	}
+
+	/**
+	 * Source of random numbers used to generate automatic events
+	 */
+	public Random getRandom() {
+		return random;
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Pre-schedule a (scenario) event. This will survive resets.
+	 *
+	 * @param event		event to add
+	 */
+	public void schedule(SimEvent event) {
+		scenario.add(event);
+		enqueue(event);
+	}
+
+	/**
+	 * Pre-scheduled (scenario) events, in the order they were scheduled
+	 */
+	public List<SimEvent> getScenario() {
+		return Collections.unmodifiableList(scenario);
+	}
+
+	/**
+	 * Are automatic weather / roadworks events being generated?
+	 */
+	public boolean isRainAuto() {
+		return rainAuto;
+	}
+
+	public boolean isRoadworksAuto() {
+		return roadworksAuto;
+	}
+
+	/**
+	 * Forget all pre-scheduled (scenario) events
+	 */
+	public void clearScenario() {
+		scenario.clear();
+	}
+
+	/**
+	 * Return to day 0: discard all manual and automatically generated
+	 * events and re-queue the pre-scheduled scenario.
+	 *
+	 * @param useSeed	whether to restart random numbers from a fixed seed
+	 * @param seed		seed to use (if useSeed set)
+	 */
+	public void reset(boolean useSeed, long seed) {
+		if (useSeed) {
+			random.setSeed(seed);
+		}
+
+		pending.clear();
+		active.clear();
+		activeRain = 0;
+		roadworksIndex.clear();
+		nextBoundary = SimEvent.OPEN_ENDED;
+
+		for (SimEvent event : scenario) {
+			enqueue(event);
+		}
+
+		nextAutoRain = null;
+		nextAutoRoadworks = null;
+		if (rainAuto) {
+			scheduleAutoRain(0);
+		}
+		if (roadworksAuto) {
+			scheduleAutoRoadworks(0);
+		}
+	}
+
+	/**
+	 * Turn automatic generation of bad weather on or off
+	 *
+	 * @param on		true to generate random bad weather spells
+	 * @param day		current simulation day
+	 */
+	public void setRainAuto(boolean on, int day) {
+		rainAuto = on;
+		if (on && nextAutoRain == null) {
+			scheduleAutoRain(day);
+		} else if (!on && nextAutoRain != null) {
+			pending.remove(nextAutoRain);
+			nextAutoRain = null;
+			updateNextBoundary();
+		}
+	}
+
+	/**
+	 * Turn automatic generation of roadworks on or off
+	 *
+	 * @param on		true to generate random roadworks
+	 * @param day		current simulation day
+	 */
+	public void setRoadworksAuto(boolean on, int day) {
+		roadworksAuto = on;
+		if (on && nextAutoRoadworks == null) {
+			scheduleAutoRoadworks(day);
+		} else if (!on && nextAutoRoadworks != null) {
+			pending.remove(nextAutoRoadworks);
+			nextAutoRoadworks = null;
+			updateNextBoundary();
+		}
+	}
+
+	/**
+	 * Redraw the next automatic weather and roadworks events (e.g. after
+	 * their probabilities or durations have changed in Prefs)
+	 *
+	 * @param day		current simulation day
+	 */
+	public void redrawAuto(int day) {
+		if (nextAutoRain != null) {
+			pending.remove(nextAutoRain);
+			scheduleAutoRain(day);
+		}
+		if (nextAutoRoadworks != null) {
+			pending.remove(nextAutoRoadworks);
+			scheduleAutoRoadworks(day);
+		}
+		updateNextBoundary();
+	}
+
+	/**
+	 * Start an event today that lasts until explicitly ended
+	 * (e.g. from the Rain or Roadworks toggle buttons)
+	 *
+	 * @param type		kind of event
+	 * @param day		current simulation day
+	 * @param location	residential location index (ignored for rain)
+	 */
+	public void startOpenEnded(SimEvent.Type type, int day, int location) {
+		SimEvent event = new SimEvent(type, day, SimEvent.OPEN_ENDED, location);
+		activate(event);
+		updateNextBoundary();
+	}
+
+	/**
+	 * End all active events of the given type immediately
+	 *
+	 * @param type		kind of event
+	 */
+	public void endAllActive(SimEvent.Type type) {
+		Iterator<SimEvent> it = active.iterator();
+		while (it.hasNext()) {
+			SimEvent event = it.next();
+			if (event.getType() == type) {
+				it.remove();
+				deactivate(event);
+			}
+		}
+		updateNextBoundary();
+	}
+
+	/**
+	 * Bring the event state up to the given day, starting and ending events
+	 * as necessary. This costs nothing between event boundaries.
+	 *
+	 * @param day		simulation day about to be simulated
+	 * @return true if the set of active events changed
+	 */
+	public boolean advanceTo(int day) {
+		if (day < nextBoundary)
+			return false;
+
+		boolean changed = false;
+
+		// Finish events first so that back-to-back events hand over cleanly
+		while (!active.isEmpty() && active.peek().getEndDay() <= day) {
+			deactivate(active.poll());
+			changed = true;
+		}
+
+		while (!pending.isEmpty() && pending.peek().getStartDay() <= day) {
+			SimEvent event = pending.poll();
+
+			// Chain on the next automatic event as soon as this one starts
+			if (event == nextAutoRain) {
+				scheduleAutoRain(event.getEndDay());
+			} else if (event == nextAutoRoadworks) {
+				scheduleAutoRoadworks(event.getStartDay() + 1);
+			}
+
+			// (Events entirely in the past are dropped without taking effect)
+			if (event.getEndDay() > day) {
+				activate(event);
+				changed = true;
+			} else {
+				recycle(event);
+			}
+		}
+
+		updateNextBoundary();
+		return changed;
+	}
+
+	/**
+	 * Save the complete state of the scheduler (queued and active events,
+	 * automatic event generation and random number generator), so that it
+	 * can carry on later from exactly the same point (see restoreState()).
+	 * Pre-scheduled scenario events are not included.
+	 */
+	public byte[] saveState() {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(random);
+			// (Heap order, so re-adding in this order rebuilds identical queues)
+			out.writeObject(pending.toArray(new SimEvent[pending.size()]));
+			out.writeObject(active.toArray(new SimEvent[active.size()]));
+			out.writeObject(nextAutoRain);
+			out.writeObject(nextAutoRoadworks);
+			out.writeBoolean(rainAuto);
+			out.writeBoolean(roadworksAuto);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// (Cannot happen writing to memory)
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Restore state saved by saveState()
+	 *
+	 * @param state		saved state
+	 * @throws IllegalArgumentException if the state is not valid
+	 */
+	public void restoreState(byte[] state) {
+		SimEvent savedPending[];
+		SimEvent savedActive[];
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(state));
+			random = (Random) in.readObject();
+			savedPending = (SimEvent[]) in.readObject();
+			savedActive = (SimEvent[]) in.readObject();
+			nextAutoRain = (SimEvent) in.readObject();
+			nextAutoRoadworks = (SimEvent) in.readObject();
+			rainAuto = in.readBoolean();
+			roadworksAuto = in.readBoolean();
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			throw new IllegalArgumentException("invalid event scheduler state", e);
+		}
+
+		pending.clear();
+		active.clear();
+		activeRain = 0;
+		roadworksIndex.clear();
+		for (SimEvent event : savedPending) {
+			pending.add(event);
+		}
+		for (SimEvent event : savedActive) {
+			activate(event);
+		}
+		updateNextBoundary();
+	}
+
+	//-------------------------------------------------------------------------|
+
+	private void enqueue(SimEvent event) {
+		pending.add(event);
+		if (event.getStartDay() < nextBoundary) {
+			nextBoundary = event.getStartDay();
+		}
+	}
+
+	private void activate(SimEvent event) {
+		active.add(event);
+		if (event.getType() == SimEvent.Type.RAIN) {
+			activeRain++;
+		} else {
+			roadworksIndex.add(event);
+		}
+	}
+
+	private void deactivate(SimEvent event) {
+		if (event.getType() == SimEvent.Type.RAIN) {
+			activeRain--;
+		} else {
+			roadworksIndex.remove(event);
+		}
+		recycle(event);
+	}
+
+	private void recycle(SimEvent event) {
+		if (event.isAutomatic()) {
+			spareAuto.add(event);
+		}
+	}
+
+	private SimEvent newAutoEvent(SimEvent.Type type, int startDay, int endDay, int location,
+			float severity) {
+		SimEvent event = spareAuto.isEmpty() ? new SimEvent(type, startDay, endDay, location)
+				: spareAuto.remove(spareAuto.size() - 1);
+		event.setAutomatic(type, startDay, endDay, location, severity);
+		return event;
+	}
+
+	private void updateNextBoundary() {
+		int boundary = SimEvent.OPEN_ENDED;
+		if (!pending.isEmpty()) {
+			boundary = pending.peek().getStartDay();
+		}
+		if (!active.isEmpty() && active.peek().getEndDay() < boundary) {
+			boundary = active.peek().getEndDay();
+		}
+		nextBoundary = boundary;
+	}
+
+	/**
+	 * Schedule the next random bad weather spell, starting no earlier than
+	 * the given day. (Equivalent to a daily chance of rain starting once the
+	 * previous spell has finished).
+	 */
+	private void scheduleAutoRain(int fromDay) {
+		nextAutoRain = null;
+		int gap = daysUntilStart(prefInstance.getRainStartProbability());
+		if (gap < 0)
+			return;
+		int start = fromDay + gap;
+		int duration = 1 + (int) (random.nextDouble() * prefInstance.getRainMaxDays() + 0.5);
+		nextAutoRain = newAutoEvent(SimEvent.Type.RAIN, start, start + duration, 0, 1.0f);
+		enqueue(nextAutoRain);
+	}
+
+	/**
+	 * Schedule the next random roadworks, starting no earlier than the given
+	 * day. (Equivalent to a daily chance of new roadworks starting, regardless
+	 * of any roadworks already in progress).
+	 */
+	private void scheduleAutoRoadworks(int fromDay) {
+		nextAutoRoadworks = null;
+		int gap = daysUntilStart(prefInstance.getRoadworksStartProbability());
+		if (gap < 0)
+			return;
+		int start = fromDay + gap;
+		int duration = 1 + (int) (random.nextDouble() * prefInstance.getRoadworksMaxDays() + 0.5);
+		int location = (int) (random.nextDouble() * totalLocations);
+		float severity = (float) (0.5 + random.nextDouble());
+		nextAutoRoadworks = newAutoEvent(SimEvent.Type.ROADWORKS, start, start + duration,
+				location, severity);
+		enqueue(nextAutoRoadworks);
+	}
+
+	/**
+	 * Draw the number of days before an event with the given daily
+	 * probability of starting actually starts (geometric distribution).
+	 *
+	 * @return days to wait (0 = today), or -1 if it will never start
+	 */
+	private int daysUntilStart(double dailyProbability) {
+		if (dailyProbability <= 0.0)
+			return -1;
+		if (dailyProbability >= 1.0)
+			return 0;
+		double rnd01 = 1.0 - random.nextDouble();
+		double gap = Math.floor(Math.log(rnd01) / Math.log(1.0 - dailyProbability));
+		return (gap > Integer.MAX_VALUE / 2) ? -1 : (int) gap;
+	}
+}
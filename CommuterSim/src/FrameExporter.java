@@ -0,0 +1,207 @@
+/*
+ * Classname: FrameExporter
+ */
+
+package commuterSim;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Renders the recorded per-location results of a run as an animation: a
+ * numbered sequence of PNG frames (frame_00000.png, ...) of the Simulator
+ * tab's bars, one for every step'th day, labelled with the day and any bad
+ * weather or roadworks. (E.g. "ffmpeg -i frame_%05d.png out.mp4" makes a
+ * video of them).
+ * <p>
+ * Frames are split into contiguous runs rendered by a pool of worker
+ * threads, each drawing into its own off-screen image, so nothing is
+ * shared between workers but the (read only) results. Works headless.
+ * Frames only use four colours, so are drawn and saved with a 2 bit
+ * palette, which makes PNG encoding (most of the time taken) about twice
+ * as fast and the files a fraction of the size.
+ */
+public class FrameExporter {
+
+	public static final int FRAME_WIDTH = ChartExport.BARS_WIDTH;
+	public static final int FRAME_HEIGHT = ChartExport.BARS_HEIGHT + 20;
+
+	private static final int TOTAL_LOCATIONS = SimEngine.TOTAL_LOCATIONS;
+
+	/**
+	 * Runs of frames per worker thread (more than one, to balance the load)
+	 */
+	private static final int TASKS_PER_WORKER = 4;
+
+	/**
+	 * PNG compression quality (0.0 smallest .. 1.0 fastest), where the PNG
+	 * writer supports it. Frames are mostly flat colour, so compress well
+	 * even at fast settings.
+	 */
+	private static final float PNG_QUALITY = 0.75f;
+
+	/**
+	 * Frame palette: white background, red (car) and green (bike) bars and
+	 * black text
+	 */
+	private static final IndexColorModel PALETTE = new IndexColorModel(2, 4,
+			new byte[] { (byte) 255, (byte) 255, 0, 0 },
+			new byte[] { (byte) 255, 0, (byte) 255, 0 },
+			new byte[] { (byte) 255, 0, 0, 0 });
+
+	/**
+	 * Worker threads, shared by all exports (created when first needed)
+	 */
+	private static ExecutorService renderPool = null;
+
+	private static final int WORKERS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Each worker's own frame buffer, PNG writer and bar heights
+	 */
+	private static final ThreadLocal<FrameExporter> PER_THREAD =
+			new ThreadLocal<FrameExporter>() {
+		protected FrameExporter initialValue() {
+			return new FrameExporter();
+		}
+	};
+
+	private final BufferedImage frame = new BufferedImage(FRAME_WIDTH, FRAME_HEIGHT,
+			BufferedImage.TYPE_BYTE_BINARY, PALETTE);
+	private final ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+	private final ImageWriteParam writeParam = writer.getDefaultWriteParam();
+	private final int carCommuters[] = new int[TOTAL_LOCATIONS];
+	private final int bikeCommuters[] = new int[TOTAL_LOCATIONS];
+
+	private FrameExporter() {
+		if (writeParam.canWriteCompressed()) {
+			writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			writeParam.setCompressionQuality(PNG_QUALITY);
+		}
+	}
+
+	/**
+	 * Write frames for days 0, step, 2 * step, ... (up to days - 1)
+	 *
+	 * @param results	results to animate
+	 * @param days		number of days of results to use
+	 * @param step		days between frames
+	 * @param dir		directory for the frames (created if need be)
+	 * @return number of frames written
+	 */
+	public static int writeFrames(final SimCheckpoint results, int days, final int step,
+			final File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create frame directory " + dir);
+
+		final int frames = (days + step - 1) / step;
+		int tasks = Math.min(frames, WORKERS * TASKS_PER_WORKER);
+		List<Callable<Object>> runs = new ArrayList<Callable<Object>>();
+		for (int t = 0; t < tasks; t++) {
+			final int first = (int) ((long) frames * t / tasks);
+			final int last = (int) ((long) frames * (t + 1) / tasks);
+			runs.add(new Callable<Object>() {
+				public Object call() throws IOException {
+					FrameExporter exporter = PER_THREAD.get();
+					for (int f = first; f < last; f++) {
+						exporter.render(results, f * step);
+						exporter.write(new File(dir, String.format("frame_%05d.png", f)));
+					}
+					return null;
+				}
+			});
+		}
+
+		try {
+			for (Future<Object> future : getRenderPool().invokeAll(runs)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("frame export interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		return frames;
+	}
+
+	/**
+	 * Draw one day's frame into this worker's buffer
+	 */
+	private void render(SimCheckpoint results, int day) {
+		float carsByLocation[] = results.getCarsByLocationHistory();
+		int residents[] = results.getResidentsByLocation();
+		for (int i = 0; i < TOTAL_LOCATIONS; i++) {
+			carCommuters[i] = (int) (carsByLocation[day * TOTAL_LOCATIONS + i] + 0.5f);
+			bikeCommuters[i] = residents[i] - carCommuters[i];
+		}
+
+		Graphics2D g = frame.createGraphics();
+		try {
+			g.setColor(Color.white);
+			g.fillRect(0, 0, FRAME_WIDTH, FRAME_HEIGHT);
+			SimRender.paintBars(g, FRAME_HEIGHT, carCommuters, bikeCommuters, TOTAL_LOCATIONS,
+					(FRAME_HEIGHT - 40.0) / Math.max(1, SimRender.maxResidents(residents)));
+			g.setColor(Color.black);
+			String label = "Day " + day;
+			if (results.getRainHistory()[day]) {
+				label += "  Rain";
+			}
+			if (results.getRoadworksHistory()[day]) {
+				label += "  Roadworks";
+			}
+			g.drawString(label, 20, 15);
+		} finally {
+			g.dispose();
+		}
+	}
+
+	/**
+	 * Write this worker's frame buffer as a PNG file
+	 */
+	private void write(File file) throws IOException {
+		file.delete();
+		ImageOutputStream out = ImageIO.createImageOutputStream(file);
+		if (out == null)
+			throw new IOException("cannot write " + file);
+		try {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(frame, null, null), writeParam);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static synchronized ExecutorService getRenderPool() {
+		if (renderPool == null) {
+			renderPool = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "FrameExporter");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return renderPool;
+	}
+}
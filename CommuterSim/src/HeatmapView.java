@@ -0,0 +1,297 @@
+/*
+ * Classname: HeatmapView
+ */
+
+package commuterSim;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import javax.swing.JPanel;
+
+/**
+ * Location x day heatmap of the share of commuters going by car, from
+ * green (all bike) to red (all car), for the "Heatmap" tab. Location 0
+ * (nearest the work area) is the top row, day 0 the left hand column.
+ * <p>
+ * Each simulated day is drawn once, as a new column of a persistent image
+ * with one pixel per day and location, rather than redrawing the history.
+ * Halved resolution copies (an image pyramid, each pixel the mean of two
+ * below it) are kept up to date at the same time, so any view is drawn
+ * from the level with about one day per screen pixel, whatever the length
+ * of the run. The mouse wheel zooms, dragging pans and double clicking
+ * shows the whole run again.
+ */
+public class HeatmapView extends JPanel {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int TOTAL_LOCATIONS = SimEngine.TOTAL_LOCATIONS;
+
+	/**
+	 * Space below the heatmap for day labels (pixels)
+	 */
+	private static final int AXIS_HEIGHT = 16;
+
+	/**
+	 * Fewest days that can be zoomed in to
+	 */
+	private static final double MIN_VIEW_DAYS = 8.0;
+
+	private static final double ZOOM_STEP = 1.25;
+
+	/**
+	 * Colour (RGB) for each car share 0 .. 255 / 255
+	 */
+	private static final int COLOUR_MAP[] = new int[256];
+	static {
+		for (int i = 0; i < COLOUR_MAP.length; i++) {
+			COLOUR_MAP[i] = (i << 16) | ((255 - i) << 8);
+		}
+	}
+
+	/**
+	 * Pyramid levels: level k has a column for every 2^k days, holding the
+	 * sum over those days of each location's car share (indexed [column *
+	 * TOTAL_LOCATIONS + location]) and its image.
+	 */
+	private float levelSums[][];
+	private BufferedImage levelImages[];
+
+	/**
+	 * Days the images have room for (maximum simulation days)
+	 */
+	private int capacity = 0;
+
+	/**
+	 * Days drawn so far
+	 */
+	private int columns = 0;
+
+	/**
+	 * Days shown: viewDays from viewStart (or all days so far if fitAll)
+	 */
+	private boolean fitAll = true;
+	private double viewStart = 0.0;
+	private double viewDays = MIN_VIEW_DAYS;
+
+	private final float shares[] = new float[TOTAL_LOCATIONS];
+
+	public HeatmapView() {
+		setBackground(Color.lightGray);
+		setToolTipText("");
+
+		MouseAdapter mouse = new MouseAdapter() {
+			private int dragX;
+			private double dragStart;
+
+			public void mousePressed(MouseEvent event) {
+				dragX = event.getX();
+				dragStart = viewStart;
+			}
+
+			public void mouseDragged(MouseEvent event) {
+				fixView();
+				double daysPerPixel = viewDays / Math.max(1, getWidth());
+				setView(dragStart - (event.getX() - dragX) * daysPerPixel, viewDays);
+			}
+
+			public void mouseClicked(MouseEvent event) {
+				if (event.getClickCount() == 2) {
+					fitAll = true;
+					repaint();
+				}
+			}
+
+			public void mouseWheelMoved(MouseWheelEvent event) {
+				fixView();
+				double day = dayAt(event.getX());
+				double days = viewDays * Math.pow(ZOOM_STEP, event.getPreciseWheelRotation());
+				days = Math.max(MIN_VIEW_DAYS, days);
+				setView(day - (day - viewStart) * days / viewDays, days);
+			}
+		};
+		addMouseListener(mouse);
+		addMouseMotionListener(mouse);
+		addMouseWheelListener(mouse);
+	}
+
+	/**
+	 * Bring the heatmap up to date with the simulation: draw any days
+	 * simulated since the last update and start again after a reset.
+	 *
+	 * @param engine	simulation to show
+	 */
+	public void update(SimEngine engine) {
+		int simDay = engine.getSimDay();
+		if (engine.getMaxSimDays() != capacity) {
+			resize(engine.getMaxSimDays());
+		}
+		if (simDay < columns) {
+			clear();
+		}
+		if (simDay > columns) {
+			float carsByLocation[] = engine.getCarsByLocationHistory();
+			int residents[] = engine.getResidentsByLocation();
+			int end = Math.min(simDay, capacity);
+			while (columns < end) {
+				for (int location = 0; location < TOTAL_LOCATIONS; location++) {
+					shares[location] = carsByLocation[columns * TOTAL_LOCATIONS + location]
+							/ Math.max(1, residents[location]);
+				}
+				appendColumn(shares);
+			}
+			repaint();
+		}
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Add a day, updating the one column it falls in at each level
+	 */
+	private void appendColumn(float shares[]) {
+		int day = columns++;
+		for (int k = 0; k < levelSums.length; k++) {
+			int column = day >> k;
+			int days = Math.min(1 << k, columns - (column << k));
+			float sums[] = levelSums[k];
+			BufferedImage image = levelImages[k];
+			for (int location = 0; location < TOTAL_LOCATIONS; location++) {
+				int i = column * TOTAL_LOCATIONS + location;
+				sums[i] += shares[location];
+				image.setRGB(column, location, colour(sums[i] / days));
+			}
+		}
+	}
+
+	private static int colour(float share) {
+		int i = (int) (share * 255.0f + 0.5f);
+		i = (i < 0) ? 0 : i;
+		i = (i > 255) ? 255 : i;
+		return COLOUR_MAP[i];
+	}
+
+	/**
+	 * Allocate the pyramid for a new number of days, keeping any days
+	 * already drawn that still fit
+	 */
+	private void resize(int newCapacity) {
+		float oldSums[] = (levelSums == null) ? null : levelSums[0];
+		int oldColumns = Math.min(columns, newCapacity);
+
+		capacity = newCapacity;
+		int levels = 1;
+		while ((1 << (levels - 1)) < capacity) {
+			levels++;
+		}
+		levelSums = new float[levels][];
+		levelImages = new BufferedImage[levels];
+		for (int k = 0; k < levels; k++) {
+			int width = Math.max(1, (capacity + (1 << k) - 1) >> k);
+			levelSums[k] = new float[width * TOTAL_LOCATIONS];
+			levelImages[k] = new BufferedImage(width, TOTAL_LOCATIONS, BufferedImage.TYPE_INT_RGB);
+		}
+
+		columns = 0;
+		float day[] = new float[TOTAL_LOCATIONS];
+		for (int d = 0; d < oldColumns; d++) {
+			System.arraycopy(oldSums, d * TOTAL_LOCATIONS, day, 0, TOTAL_LOCATIONS);
+			appendColumn(day);
+		}
+		repaint();
+	}
+
+	private void clear() {
+		for (float sums[] : levelSums) {
+			Arrays.fill(sums, 0.0f);
+		}
+		columns = 0;
+		repaint();
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * If following the whole run, make the view show all days so far
+	 */
+	private void fitView() {
+		if (fitAll) {
+			viewStart = 0.0;
+			viewDays = Math.max(MIN_VIEW_DAYS, columns);
+		}
+	}
+
+	/**
+	 * Stop following the whole run (before zooming or panning)
+	 */
+	private void fixView() {
+		fitView();
+		fitAll = false;
+	}
+
+	private void setView(double start, double days) {
+		double maxDays = Math.max(MIN_VIEW_DAYS, capacity);
+		viewDays = Math.min(days, maxDays);
+		viewStart = Math.max(0.0, Math.min(start, maxDays - viewDays));
+		repaint();
+	}
+
+	private double dayAt(int x) {
+		fitView();
+		return viewStart + viewDays * x / Math.max(1, getWidth());
+	}
+
+	public String getToolTipText(MouseEvent event) {
+		int day = (int) dayAt(event.getX());
+		int location = event.getY() * TOTAL_LOCATIONS / Math.max(1, getHeight() - AXIS_HEIGHT);
+		if (day >= columns || location >= TOTAL_LOCATIONS)
+			return null;
+		float share = levelSums[0][day * TOTAL_LOCATIONS + location];
+		return "Day " + day + ", location " + location + ": "
+				+ (int) (share * 100.0f + 0.5f) + "% by car";
+	}
+
+	public void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		fitView();
+		int width = getWidth();
+		int height = getHeight() - AXIS_HEIGHT;
+		if (columns > 0 && width > 0 && height > 0) {
+
+			// Coarsest level with no more than one column per screen pixel
+			int k = 0;
+			while (k + 1 < levelImages.length && (2 << k) <= viewDays / width) {
+				k++;
+			}
+
+			// Whole columns of that level covering the view (and drawn so far)
+			int levelColumns = (columns + (1 << k) - 1) >> k;
+			int first = Math.max(0, (int) Math.floor(viewStart / (1 << k)));
+			int last = Math.min(levelColumns, (int) Math.ceil((viewStart + viewDays) / (1 << k)));
+			if (first < last) {
+				int x1 = (int) Math.round(((first << k) - viewStart) * width / viewDays);
+				int x2 = (int) Math.round(((last << k) - viewStart) * width / viewDays);
+				Graphics2D g2 = (Graphics2D) g;
+				g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+						RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+				g2.drawImage(levelImages[k], x1, 0, x2, height, first, 0, last, TOTAL_LOCATIONS,
+						null);
+			}
+		}
+
+		// Days at each end of the view
+		g.setColor(Color.black);
+		int textY = getHeight() - 4;
+		g.drawString("Day " + (int) viewStart, 2, textY);
+		String end = "Day " + (int) (viewStart + viewDays);
+		g.drawString(end, width - g.getFontMetrics().stringWidth(end) - 2, textY);
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Classname: HistoryPyramid
+ */
+
+package commuterSim;
+
+import java.util.Arrays;
+
+/**
+ * A daily history summarised at every power of two resolution, so that
+ * the minimum, maximum and mean of any range of days can be found in
+ * O(log n) however long the run (e.g. to draw a long run as a bounded
+ * number of points). Level k holds the min, max and sum of each aligned
+ * block of 2^k days; appending a day updates the one block it falls in
+ * at each level.
+ */
+public class HistoryPyramid {
+
+	/**
+	 * By [level][block]
+	 */
+	private double min[][] = new double[0][];
+	private double max[][] = new double[0][];
+	private double sum[][] = new double[0][];
+
+	/**
+	 * Number of days appended
+	 */
+	private int size = 0;
+
+	public HistoryPyramid(int initialCapacity) {
+		ensureCapacity(Math.max(1, initialCapacity));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Forget all days
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Add the next day's value
+	 */
+	public void append(double value) {
+		if (size == min[0].length) {
+			ensureCapacity(2 * size);
+		}
+		int day = size++;
+		for (int k = 0; k < min.length; k++) {
+			int block = day >> k;
+			if ((block << k) == day) {
+				// First day of this block
+				min[k][block] = value;
+				max[k][block] = value;
+				sum[k][block] = value;
+			} else {
+				min[k][block] = Math.min(min[k][block], value);
+				max[k][block] = Math.max(max[k][block], value);
+				sum[k][block] += value;
+			}
+		}
+	}
+
+	/**
+	 * Value on a day
+	 */
+	public double get(int day) {
+		return sum[0][day];
+	}
+
+	/**
+	 * Minimum, maximum and mean over days from .. to - 1 (which must not be
+	 * empty, and must all have been appended)
+	 *
+	 * @param summary	set to { min, max, mean }
+	 */
+	public void summarise(int from, int to, double summary[]) {
+		double lo = Double.POSITIVE_INFINITY;
+		double hi = Double.NEGATIVE_INFINITY;
+		double total = 0.0;
+		int days = to - from;
+
+		// Take whole blocks from each end, working up the levels
+		for (int k = 0; from < to; k++) {
+			if ((from & 1) != 0) {
+				lo = Math.min(lo, min[k][from]);
+				hi = Math.max(hi, max[k][from]);
+				total += sum[k][from];
+				from++;
+			}
+			if ((to & 1) != 0) {
+				to--;
+				lo = Math.min(lo, min[k][to]);
+				hi = Math.max(hi, max[k][to]);
+				total += sum[k][to];
+			}
+			from >>= 1;
+			to >>= 1;
+		}
+		summary[0] = lo;
+		summary[1] = hi;
+		summary[2] = total / days;
+	}
+
+	/**
+	 * Summarise days from .. to - 1 as up to maxBuckets equal(ish) ranges
+	 *
+	 * @param bucketStart	set to the first day of each range
+	 * @param bucketDays	set to the number of days in each range
+	 * @param bucketMin		set to the minimum in each range
+	 * @param bucketMax		set to the maximum in each range
+	 * @param bucketMean	set to the mean of each range
+	 * @return number of ranges (at most maxBuckets and to - from)
+	 */
+	public int summarise(int from, int to, int maxBuckets, int bucketStart[], int bucketDays[],
+			double bucketMin[], double bucketMax[], double bucketMean[]) {
+		int days = to - from;
+		int buckets = Math.min(maxBuckets, days);
+		double summary[] = new double[3];
+		for (int b = 0; b < buckets; b++) {
+			int start = from + (int) ((long) days * b / buckets);
+			int end = from + (int) ((long) days * (b + 1) / buckets);
+			summarise(start, end, summary);
+			bucketStart[b] = start;
+			bucketDays[b] = end - start;
+			bucketMin[b] = summary[0];
+			bucketMax[b] = summary[1];
+			bucketMean[b] = summary[2];
+		}
+		return Math.max(0, buckets);
+	}
+
+	/**
+	 * Points (x = day, y = value, as { x[], y[] }) plotting days from .. to
+	 * - 1 as up to maxBuckets ranges, each as its minimum and maximum (so no
+	 * spikes are lost; just one point where they are the same)
+	 */
+	public double[][] minMaxPoints(int from, int to, int maxBuckets) {
+		int bucketStart[] = new int[maxBuckets];
+		int bucketDays[] = new int[maxBuckets];
+		double bucketMin[] = new double[maxBuckets];
+		double bucketMax[] = new double[maxBuckets];
+		double bucketMean[] = new double[maxBuckets];
+		int buckets = summarise(from, to, maxBuckets, bucketStart, bucketDays, bucketMin,
+				bucketMax, bucketMean);
+		int points = 0;
+		for (int b = 0; b < buckets; b++) {
+			points += (bucketMin[b] == bucketMax[b]) ? 1 : 2;
+		}
+		double data[][] = new double[2][points];
+		int i = 0;
+		for (int b = 0; b < buckets; b++) {
+			double day = bucketStart[b] + (bucketDays[b] - 1) / 2.0;
+			data[0][i] = day;
+			data[1][i++] = bucketMin[b];
+			if (bucketMin[b] != bucketMax[b]) {
+				data[0][i] = day;
+				data[1][i++] = bucketMax[b];
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Points (as { x[], y[] }) plotting days from .. to - 1 as the means of
+	 * up to maxBuckets ranges
+	 */
+	public double[][] meanPoints(int from, int to, int maxBuckets) {
+		int bucketStart[] = new int[maxBuckets];
+		int bucketDays[] = new int[maxBuckets];
+		double bucketMin[] = new double[maxBuckets];
+		double bucketMax[] = new double[maxBuckets];
+		double bucketMean[] = new double[maxBuckets];
+		int buckets = summarise(from, to, maxBuckets, bucketStart, bucketDays, bucketMin,
+				bucketMax, bucketMean);
+		double data[][] = new double[2][buckets];
+		for (int b = 0; b < buckets; b++) {
+			data[0][b] = bucketStart[b] + (bucketDays[b] - 1) / 2.0;
+			data[1][b] = bucketMean[b];
+		}
+		return data;
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Grow every level to hold at least the given number of days
+	 */
+	private void ensureCapacity(int capacity) {
+		int levels = 1;
+		while ((1 << (levels - 1)) < capacity) {
+			levels++;
+		}
+		int oldLevels = min.length;
+		min = Arrays.copyOf(min, levels);
+		max = Arrays.copyOf(max, levels);
+		sum = Arrays.copyOf(sum, levels);
+		for (int k = 0; k < levels; k++) {
+			int blocks = ((capacity - 1) >> k) + 1;
+			if (k < oldLevels) {
+				min[k] = Arrays.copyOf(min[k], blocks);
+				max[k] = Arrays.copyOf(max[k], blocks);
+				sum[k] = Arrays.copyOf(sum[k], blocks);
+			} else {
+				// New level: summarise the days already appended
+				min[k] = new double[blocks];
+				max[k] = new double[blocks];
+				sum[k] = new double[blocks];
+				for (int block = 0; (block << k) < size; block++) {
+					int left = 2 * block;
+					int right = left + 1;
+					boolean hasRight = (right << (k - 1)) < size;
+					min[k][block] = hasRight ? Math.min(min[k - 1][left], min[k - 1][right])
+							: min[k - 1][left];
+					max[k][block] = hasRight ? Math.max(max[k - 1][left], max[k - 1][right])
+							: max[k - 1][left];
+					sum[k][block] = sum[k - 1][left] + (hasRight ? sum[k - 1][right] : 0.0);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Classname: LocationCostTable
+ */
+
+package commuterSim;
+
+/**
+ * Memoised car vs bike cost factors which are the same for everyone
+ * making the same journey (origin-destination pair, see ODMatrix) in the
+ * same departure time slot (time/effort, expense, weather, congestion and
+ * roadworks). Each person then only needs one lookup plus their individual
+ * preference term.
+ * <p>
+ * The table is only rebuilt when one of its inputs changes: the model
+ * parameters (as shown by the ParamSnapshot version), the weather, the
+ * roadworks or the level of congestion (from total cars, or by road
+ * segment). The average total cars moves almost every day, so the terms
+ * that do not depend on it or on congestion (time/effort, expense and
+ * weather) are kept separately by pair, and only rebuilt when the
+ * parameters or weather change. With congestion by road segment and no
+ * roadworks, the average total cars is not used at all, so its changes
+ * leave the table as it is.
+ */
+public class LocationCostTable {
+
+	private final ODMatrix od;
+	private final int pairs;
+
+	/**
+	 * Sum of common cost factors (-ve favours bike, +ve favours car),
+	 * indexed [slot * pairs + pair]
+	 */
+	private double conditions[] = new double[0];
+
+	/**
+	 * Common cost factors standardised to -1.0 (Bike) .. +1.0 (Car)
+	 * (same indexing)
+	 */
+	private float experienced[] = new float[0];
+
+	/**
+	 * Sum of the cost factors not affected by congestion (time/effort,
+	 * expense, weather), indexed by pair
+	 */
+	private final double fixedCost[];
+
+	/**
+	 * Inputs the table was last built from, and whether it used the
+	 * average total cars
+	 */
+	private int builtSlots = -1;
+	private long builtParamsVersion;
+	private boolean builtRain;
+	private double builtStdTotalCarsAv;
+	private boolean builtUsesCarsAv;
+	private int builtSlotCongestionVersion;
+	private int builtEventVersion;
+
+	/**
+	 * Initialisation (Constructor function)
+	 *
+	 * @param od		journeys commuters make
+	 */
+	public LocationCostTable(ODMatrix od) {
+		this.od = od;
+		pairs = od.getPairCount();
+		fixedCost = new double[pairs];
+	}
+
+	/**
+	 * Make sure the table is up to date, rebuilding it only if any of the
+	 * inputs have changed since it was last built.
+	 *
+	 * @param departureSlots			number of departure time slots
+	 * @param params					model parameter slider values
+	 * @param rain						is there bad weather today?
+	 * @param stdTotalCarsAv			standardised average total cars (0.0 .. 2.0)
+	 * @param slotCongestion			relative congestion by [slot * pairs + pair]
+	 * @param roadCongestion			congestion by road segment (same indexing), used
+	 * 									instead of total cars and slotCongestion if not null
+	 * @param slotCongestionVersion		changes whenever either congestion changes
+	 * @param roadworksPenalty			roadworks severity by pair
+	 * @param eventVersion				changes whenever weather or roadworks change
+	 * @return true if the table was rebuilt
+	 */
+	public boolean update(int departureSlots, ParamSnapshot params, boolean rain,
+			double stdTotalCarsAv, double slotCongestion[], double roadCongestion[],
+			int slotCongestionVersion,
+			float roadworksPenalty[], int eventVersion) {
+
+		boolean fixedChanged = builtSlots == -1 || params.getVersion() != builtParamsVersion
+				|| rain != builtRain;
+		if (departureSlots == builtSlots && !fixedChanged
+				&& (!builtUsesCarsAv || stdTotalCarsAv == builtStdTotalCarsAv)
+				&& slotCongestionVersion == builtSlotCongestionVersion
+				&& eventVersion == builtEventVersion)
+			return false;
+
+		int slideCongestion = params.getCongestion();
+		int slideRoadworks = params.getRoadworks();
+
+		if (fixedChanged) {
+			int slideExpense = params.getExpense();
+			int slideTimeEffort = params.getTimeEffort();
+			int slideWeather = params.getWeather();
+			for (int pair = 0; pair < pairs; pair++) {
+
+				// Get distance and standardise to +/-2.0 max to allow saturation
+				// in cfTimeEffort calculation (below...)
+				double stdDist = od.getDistance(pair) / 5.0;
+
+				// Time/Effort to cover given distance (expect +ve as favours car)
+				double cfTimeEffort = slideTimeEffort * stdDist;
+
+				// Fixed costs (expect -ve as favours bike)
+				double cfExpense = slideExpense;
+
+				// Bad weather (expect 0 or +ve as favours car)
+				double cfWeather = rain ? slideWeather : 0.0;
+
+				fixedCost[pair] = cfTimeEffort + cfExpense + cfWeather;
+			}
+		}
+
+		int entries = departureSlots * pairs;
+		if (conditions.length != entries) {
+			conditions = new double[entries];
+			experienced = new float[entries];
+		}
+
+		boolean usesCarsAv = (roadCongestion == null);
+		for (int slot = 0; slot < departureSlots; slot++) {
+			for (int pair = 0; pair < pairs; pair++) {
+				int j = slot * pairs + pair;
+
+				// Congestion (expect -ve as favours bike), relatively worse or better
+				// depending on how busy the road is at this departure time
+				double cfCongestion = (roadCongestion == null)
+						? slideCongestion * stdTotalCarsAv * slotCongestion[j]
+						: slideCongestion * roadCongestion[j];
+
+				// Roadworks (expect 0 or -ve as favours bike)
+				double cfRoadworks = slideRoadworks * stdTotalCarsAv * roadworksPenalty[pair];
+				usesCarsAv |= (roadworksPenalty[pair] != 0.0f);
+
+				conditions[j] = fixedCost[pair] + cfCongestion + cfRoadworks;
+
+				float std = (float) (conditions[j] / 100.0);
+				std = (std > 1.0f) ? 1.0f : std;
+				std = (std < -1.0f) ? -1.0f : std;
+				experienced[j] = std;
+			}
+		}
+
+		builtSlots = departureSlots;
+		builtParamsVersion = params.getVersion();
+		builtRain = rain;
+		builtStdTotalCarsAv = stdTotalCarsAv;
+		builtUsesCarsAv = usesCarsAv;
+		builtSlotCongestionVersion = slotCongestionVersion;
+		builtEventVersion = eventVersion;
+		return true;
+	}
+
+	/**
+	 * Tables (valid until next rebuild) indexed [slot * pairs + pair]
+	 */
+	public double[] getConditions() {
+		return conditions;
+	}
+
+	public float[] getExperienced() {
+		return experienced;
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Classname: MainWindow
+ */
+
+package commuterSim;
+
+import java.awt.Component;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.JTabbedPane;
+import javax.swing.JTextArea;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Main application window, with a tab pane for each part of the GUI.
+ * <p>
+ * Only the Introduction and Simulator tabs are built before the window is
+ * shown. The Sim Configuration, Console, Heatmap and Results Chart tabs start as
+ * empty placeholders and are built the first time they are selected (so
+ * e.g. JFreeChart is not loaded at all until the chart is first looked at).
+ * Run with -DcommuterSim.timing=true to print how long start up and
+ * building each tab took.
+ */
+public class MainWindow {
+
+	private static final boolean SHOW_TIMING = Boolean.getBoolean("commuterSim.timing");
+
+	/**
+	 * Builds the real contents of a tab on first selection
+	 */
+	private interface TabBuilder {
+		Component build();
+	}
+
+	/**
+	 * Placeholders for tabs not yet built, and how to build them
+	 */
+	private final Map<Component, TabBuilder> lazyTabs = new HashMap<Component, TabBuilder>();
+
+	private JTabbedPane tabPane;
+
+	private MainWindow() {
+	}
+
+	/**
+	 * Build and show the main window
+	 */
+	public static void open() {
+		new MainWindow().build();
+	}
+
+	private void build() {
+		
+		// Create main and Model Parameters windows
+		JFrame mainFrame = new JFrame("Commuter Sim");
+		
+		// Make program quit (not just disappear from screen) when 'X' pressed
+		mainFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+		// Create instances to build the application
+		final Prefs prefs = new Prefs();
+		ModelParams modelParams = new ModelParams();
+		final Simulator simulator = new Simulator(modelParams, prefs);
+
+		// Split window into separate tabs handled by different classes
+		tabPane = new JTabbedPane();
+		
+		// First create text for an introductory text pane
+		String introText = "\n\t\t\t'COMMUTER SIM': Bike vs Car!\t(Richard Thomas, May 2014)\n\n"
+				+"\tThis programme is an experiment in trying to implement a relatively simple behaviour model within an interactive software environment.\n"
+				+"\tSpecifically it is trying to model some of the trade-offs between commuting by car or bike. The basic model is of 10 population\n"
+				+"\tcentres stretched along an arterial road, with everyone commuting to the same area at the end of the road:\n\n"
+				+"\t [WORK AREA] - - - - - - - - [HOMES] - - - - [HOMES] - - - - [HOMES] - - - - [HOMES] - - - - [HOMES]\n\n"
+				+"\tAlthough this is not shown in the GUI, the vertical bar graphs shown in the <Simulator> pane (which appear when you press <STEP>)\n"
+				+"\trepresent the numbers of people commuting by car (in Red) or bike (in Green) as a 1 day snapshot. Note the layout is (as above) with\n"
+				+"\tthe work area on the left - thus as you might expect the number of people using bikes is much higher close to the work area.\n"
+				+"\tThe actual numbers commuting from each population centre that day (i.e. each bar graph pair) are recorded in the console tab pane\n"
+				+"\tThe <Results Chart> tab pane dynamically updates a graph of the total bike and car commuters against time.\n\n"
+				+"\tINSTRUCTIONS\n"
+				+"\t\t<STEP> advances the simulation by 1 day\n"
+				+"\t\t<RESET> resets the simulator and all graphs to day 0\n"
+				+"\t\t<RUN> runs the simulation through to the end time (very quickly!)\n"
+				+"\t\t<RAIN> is a toggle button to simulate bad weather that day (generally more of a deterrent to cycling)\n"
+				+"\t\t<ROADWORKS> is a toggle button to simulate roadworks at one location that day (deterrent to drivers)\n"
+				+"\tThe checkboxes allow for automatic random generation of periods of bad weather and roadworks.\n"
+				+"\tThe slider on the right adjust how various factors will favour cyclists (slid to the left) or drivers (slid to the right).\n"
+				+"\tThe time/effort slider is multiplied by the distance a commuter must travel, so sliding it further to the left you will see a\n"
+				+"\tgradual drop-off in the number of cyclists from more distant locations. The Congestion and Roadworks sliders are both dependent on\n"
+				+"\tthe number of cars.\n\n"
+				+"\tIn hindsight, the model is disappointingly un-dynamic (though selecting auto-rain/roadworks does liven up the chart!). It is also\n"
+				+"\tnot particularly helpful in examining any behaviour. I was hoping to see more oscillations from increasing congestion discouraging\n"
+				+"\tcar use. However, hopefully it is a good example of how a model can be encapsulated in an interactive environment using just Java\n"
+				+"\tAcknowledgement: Charting was generated using JFreechart under the GNU Lesser General Public Licence (LGPL).\n"
+				+"\thttp://www.jfree.org/jfreechart/\n";
+		
+		// Add the 6 tab panes (4 of them only built when first selected)
+		tabPane.add(new JTextArea(introText), "Introduction");
+		addLazyTab("Sim Configuration", new TabBuilder() {
+			public Component build() {
+				return new PrefsPanel(prefs).createPrefsPanel();
+			}
+		});
+		tabPane.add(simulator.createSimulatorPanel(), "Simulator");
+		addLazyTab("Console", new TabBuilder() {
+			public Component build() {
+				return simulator.getSimConsolePane();
+			}
+		});
+		addLazyTab("Heatmap", new TabBuilder() {
+			public Component build() {
+				return simulator.getHeatmapPane();
+			}
+		});
+		addLazyTab("Results Chart", new TabBuilder() {
+			public Component build() {
+				return ChartResults.createChartPane(simulator);
+			}
+		});
+		tabPane.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent event) {
+				buildSelectedTab();
+			}
+		});
+		
+		// Insert pane of tabs into main window
+		mainFrame.getContentPane().add(tabPane);
+		mainFrame.setSize(900, 600);
+		mainFrame.setVisible(true);	
+		
+		if (SHOW_TIMING) {
+			System.out.println("Window shown " + ManagementFactory.getRuntimeMXBean().getUptime()
+					+ " ms after start up");
+		}
+	}
+
+	/**
+	 * Add a placeholder tab, to be built when first selected
+	 */
+	private void addLazyTab(String title, TabBuilder builder) {
+		JPanel placeholder = new JPanel();
+		lazyTabs.put(placeholder, builder);
+		tabPane.add(placeholder, title);
+	}
+
+	/**
+	 * Replace the selected tab's placeholder (if any) with the real thing
+	 */
+	private void buildSelectedTab() {
+		int index = tabPane.getSelectedIndex();
+		if (index < 0)
+			return;
+		TabBuilder builder = lazyTabs.remove(tabPane.getComponentAt(index));
+		if (builder == null)
+			return;
+
+		long startTime = System.nanoTime();
+		tabPane.setComponentAt(index, builder.build());
+		if (SHOW_TIMING) {
+			System.out.println(tabPane.getTitleAt(index) + " tab built in "
+					+ (System.nanoTime() - startTime) / 1000000 + " ms");
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Classname: ModeChoiceModel
+ */
+
+package commuterSim;
+
+/**
+ * Multinomial logit choice between several modes of transport (car, bike,
+ * bus, walk - see ModeParams). The probability of choosing a mode is
+ * proportional to exp(utility), where utility is the weighted sum of the
+ * same cost factors as the car vs bike model.
+ * <p>
+ * Everything except the individual preference term is the same for all
+ * commuters making the same journey (origin-destination pair, see
+ * ODMatrix) in the same departure time slot, so exp(utility) is
+ * tabulated per (slot, pair) for today's weather and roadworks.
+ * Individual preference and social influence
+ * (which only apply to the car) come from small lookup tables. Each
+ * commuter's choice then costs a few table reads and one division however
+ * many modes there are.
+ */
+public class ModeChoiceModel {
+
+	/**
+	 * Utility (in slider units) equivalent to a factor of e in odds
+	 */
+	static final double UTILITY_SCALE = 50.0;
+
+	/**
+	 * Resolution of individual preference lookup table (over -1.0 .. +1.0)
+	 */
+	private static final int PREFERENCE_STEPS = 256;
+
+	private final ModeParams modeParams;
+	private final ODMatrix od;
+	private final int pairs;
+
+	/**
+	 * exp(utility) of each mode, indexed [mode][slot * pairs + pair]
+	 */
+	private double expUtility[][];
+
+	/**
+	 * exp(utility) summed over all modes except car (same indexing)
+	 */
+	private double expOtherModes[];
+
+	/**
+	 * How far conditions alone favour car (+1.0) over other modes (-1.0)
+	 * (same indexing)
+	 */
+	private double conditionsFavourCar[];
+
+	/**
+	 * exp(individual preference utility) by quantised preference
+	 */
+	private final double expPreference[] = new double[PREFERENCE_STEPS + 1];
+
+	/**
+	 * Individual preference slider value expPreference was built for
+	 */
+	private int tableSlideIndividual = Integer.MIN_VALUE;
+
+	/**
+	 * exp(social influence utility) by quantised share of a commuter's
+	 * network going by car, and the slider value it was built for
+	 */
+	private final double expSocial[] = new double[PREFERENCE_STEPS + 1];
+	private int tableSlideSocial = Integer.MIN_VALUE;
+
+	/**
+	 * Initialisation (Constructor function)
+	 *
+	 * @param modeParams		weights for each mode
+	 * @param od				journeys commuters make
+	 */
+	public ModeChoiceModel(ModeParams modeParams, ODMatrix od) {
+		this.modeParams = modeParams;
+		this.od = od;
+		pairs = od.getPairCount();
+	}
+
+	/**
+	 * Rebuild tables for today's conditions
+	 *
+	 * @param departureSlots	number of departure time slots
+	 * @param rain				is there bad weather today?
+	 * @param stdTotalCarsAv	standardised average total cars (0.0 .. 2.0)
+	 * @param slotCongestion	relative congestion by [slot * pairs + pair]
+	 * @param roadCongestion	congestion by road segment (same indexing), used
+	 * 							instead of total cars and slotCongestion if not null
+	 * @param roadworksPenalty	roadworks severity by pair
+	 * @param slideIndividual	individual preference slider value
+	 * @param slideSocial		social influence slider value
+	 */
+	public void rebuild(int departureSlots, boolean rain, double stdTotalCarsAv,
+			double slotCongestion[], double roadCongestion[], float roadworksPenalty[],
+			int slideIndividual, int slideSocial) {
+
+		int entries = departureSlots * pairs;
+		if (expOtherModes == null || expOtherModes.length != entries) {
+			expUtility = new double[ModeParams.TOTAL_MODES][entries];
+			expOtherModes = new double[entries];
+			conditionsFavourCar = new double[entries];
+		}
+
+		for (int slot = 0; slot < departureSlots; slot++) {
+			for (int pair = 0; pair < pairs; pair++) {
+				int j = slot * pairs + pair;
+
+				// Distance standardised as in Simulator
+				double stdDist = od.getDistance(pair) / 5.0;
+				double stdCongestion = (roadCongestion == null)
+						? stdTotalCarsAv * slotCongestion[j] : roadCongestion[j];
+				double stdRoadworks = stdTotalCarsAv * roadworksPenalty[pair];
+
+				double others = 0.0;
+				for (int m = 0; m < ModeParams.TOTAL_MODES; m++) {
+					double utility = weight(m, ModeParams.EXPENSE)
+							+ weight(m, ModeParams.TIME_EFFORT) * stdDist
+							+ (rain ? weight(m, ModeParams.WEATHER) : 0.0)
+							+ weight(m, ModeParams.CONGESTION) * stdCongestion
+							+ weight(m, ModeParams.ROADWORKS) * stdRoadworks;
+					double expU = Math.exp(utility / UTILITY_SCALE);
+					expUtility[m][j] = expU;
+					if (m != ModeParams.CAR) {
+						others += expU;
+					}
+				}
+				expOtherModes[j] = others;
+
+				double car = expUtility[ModeParams.CAR][j];
+				conditionsFavourCar[j] = 2.0 * car / (car + others) - 1.0;
+			}
+		}
+
+		if (slideIndividual != tableSlideIndividual) {
+			for (int i = 0; i <= PREFERENCE_STEPS; i++) {
+				double preference = 2.0 * i / PREFERENCE_STEPS - 1.0;
+				expPreference[i] = Math.exp(slideIndividual * preference / UTILITY_SCALE);
+			}
+			tableSlideIndividual = slideIndividual;
+		}
+
+		if (slideSocial != tableSlideSocial) {
+			for (int i = 0; i <= PREFERENCE_STEPS; i++) {
+				double influence = 2.0 * i / PREFERENCE_STEPS - 1.0;
+				expSocial[i] = Math.exp(slideSocial * influence / UTILITY_SCALE);
+			}
+			tableSlideSocial = slideSocial;
+		}
+	}
+
+	/**
+	 * exp(utility) of car for a given individual preference
+	 * (-1.0 (Bike) .. +1.0 (Car))
+	 */
+	public double expPreference(float preference) {
+		int i = (int) ((preference + 1.0f) * (PREFERENCE_STEPS / 2) + 0.5f);
+		i = (i < 0) ? 0 : i;
+		i = (i > PREFERENCE_STEPS) ? PREFERENCE_STEPS : i;
+		return expPreference[i];
+	}
+
+	/**
+	 * exp(utility) of car for a given share of a commuter's network going by
+	 * car (0.0 .. 1.0)
+	 */
+	public double expSocial(float carShare) {
+		int i = (int) (carShare * PREFERENCE_STEPS + 0.5f);
+		i = (i < 0) ? 0 : i;
+		i = (i > PREFERENCE_STEPS) ? PREFERENCE_STEPS : i;
+		return expSocial[i];
+	}
+
+	/**
+	 * Tables (valid until next rebuild) indexed [slot * pairs + pair]
+	 */
+	public double[] getExpUtility(int mode) {
+		return expUtility[mode];
+	}
+
+	public double[] getExpOtherModes() {
+		return expOtherModes;
+	}
+
+	public double[] getConditionsFavourCar() {
+		return conditionsFavourCar;
+	}
+
+	private int weight(int mode, int factor) {
+		return modeParams.getWeight(mode, factor).get();
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Classname: ModeParams
+ */
+
+package commuterSim;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Weights of each cost factor for every mode of transport in the
+ * multi-mode choice model (see ModeChoiceModel). As with ModelParams each
+ * weight is an AtomicInteger in the range -100 .. +100, so it can be
+ * adjusted directly while the simulation runs. Positive weights make a
+ * mode more attractive.
+ */
+public class ModeParams {
+
+	/**
+	 * Modes of transport (car must be first, bike second)
+	 */
+	public static final int CAR = 0;
+	public static final int BIKE = 1;
+	public static final int BUS = 2;
+	public static final int WALK = 3;
+	public static final int TOTAL_MODES = 4;
+
+	public static final String MODE_NAMES[] = { "Car", "Bike", "Bus", "Walk" };
+
+	/**
+	 * Cost factors weighted for each mode
+	 */
+	public static final int EXPENSE = 0;
+	public static final int TIME_EFFORT = 1;
+	public static final int WEATHER = 2;
+	public static final int CONGESTION = 3;
+	public static final int ROADWORKS = 4;
+	public static final int TOTAL_FACTORS = 5;
+
+	public static final String FACTOR_NAMES[] = { "Expense", "TimeEffort", "Weather",
+			"Congestion", "Roadworks" };
+
+	/**
+	 * Weight of each factor, indexed [mode][factor]
+	 */
+	private final AtomicInteger weights[][] = new AtomicInteger[TOTAL_MODES][TOTAL_FACTORS];
+
+	/**
+	 * Initialisation to default values (Constructor function).
+	 * Car and bike defaults match the default ModelParams sliders.
+	 */
+	public ModeParams() {
+		for (int m = 0; m < TOTAL_MODES; m++) {
+			for (int f = 0; f < TOTAL_FACTORS; f++) {
+				weights[m][f] = new AtomicInteger();
+			}
+		}
+
+		//             Expense  Time/Effort  Weather  Congestion  Roadworks
+		setDefaults(CAR,   -20,          70,       0,        -64,       -80);
+		setDefaults(BIKE,    0,           0,     -25,          0,         0);
+		setDefaults(BUS,   -30,          40,       0,        -32,       -40);
+		setDefaults(WALK,    0,        -100,     -25,          0,         0);
+	}
+
+	/**
+	 * Accessor for the weight of a given factor for a given mode
+	 *
+	 * @param mode		mode of transport (CAR, BIKE, ...)
+	 * @param factor	cost factor (EXPENSE, TIME_EFFORT, ...)
+	 */
+	public AtomicInteger getWeight(int mode, int factor) {
+		return weights[mode][factor];
+	}
+
+	/**
+	 * Set a weight from its text form (e.g. from the command line or a file).
+	 * Keys are of the form "modeWeight.<Mode>.<Factor>" using MODE_NAMES and
+	 * FACTOR_NAMES, e.g. "modeWeight.Bus.Expense".
+	 * 
+	 * @return false if there is no weight with this name
+	 * @throws IllegalArgumentException if the value is not a whole number
+	 *         from -100 to +100
+	 */
+	public boolean set(String key, String value) {
+		String parts[] = key.split("\\.");
+		if (parts.length != 3 || !parts[0].equals("modeWeight"))
+			return false;
+		int mode = indexOf(MODE_NAMES, parts[1]);
+		int factor = indexOf(FACTOR_NAMES, parts[2]);
+		if (mode < 0 || factor < 0)
+			return false;
+		weights[mode][factor].set(Prefs.parseInt(key, value, ModelParams.SLIDER_MIN,
+				ModelParams.SLIDER_MAX));
+		return true;
+	}
+
+	private static int indexOf(String names[], String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	private void setDefaults(int mode, int expense, int timeEffort, int weather,
+			int congestion, int roadworks) {
+		weights[mode][EXPENSE].set(expense);
+		weights[mode][TIME_EFFORT].set(timeEffort);
+		weights[mode][WEATHER].set(weather);
+		weights[mode][CONGESTION].set(congestion);
+		weights[mode][ROADWORKS].set(roadworks);
+	}
+}
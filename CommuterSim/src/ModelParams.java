@@ -11,27 +11,34 @@
 
 package commuterSim;
 
+import java.util.Properties;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.swing.BoxLayout;
-import javax.swing.JLabel;
-import javax.swing.JPanel;
-import javax.swing.JSlider;
-import javax.swing.event.ChangeEvent;
-import javax.swing.event.ChangeListener;
-
 /**
- * Create a simulation Model Parameters Panel, which will directly
- * update the variables from sliders.
+ * Simulation Model Parameters, updated directly from sliders (see
+ * ModelParamsPanel) or from text (see set()).
  * Each parameter is declared as an AtomicInteger primarily so that it
  * is an object rather than a primitive and will thus be passed by
  * reference (easier to modify via generated JSlider callback functions).
+ * <p>
+ * Whenever a slider changes, an immutable ParamSnapshot of all the values
+ * is published through a single volatile reference, so the simulator can
+ * read one consistent set of parameters per step even while sliders move.
  * 
  * @author Richard Thomas <gy13rjt@leeds.ac.uk>
  * @version 0.1, 06 May 2014
  */
 public class ModelParams {
 
+	/**
+	 * Range of each slider (as shown in the GUI), and of the moving
+	 * averager length
+	 */
+	public static final int SLIDER_MIN = -100;
+	public static final int SLIDER_MAX = 100;
+	public static final int AVERAGER_MIN = 1;
+	public static final int AVERAGER_MAX = 50;
+
 	/**
 	 * Fixed cost offset for this mode of transport
 	 */
@@ -43,7 +50,17 @@ public class ModelParams {
 	private final AtomicInteger slideValWeather = new AtomicInteger();
 	private final AtomicInteger slideValAveragerLen = new AtomicInteger();
 	
-	private JLabel sliderValueDisplayLabel;
+	/**
+	 * Weight given to the share of each commuter's social network who went
+	 * by car yesterday (+ve: follow them; only used with a network, see
+	 * Prefs.getSocialNeighbours())
+	 */
+	private final AtomicInteger slideValSocial = new AtomicInteger();
+	
+	/**
+	 * Latest consistent copy of all the parameter values
+	 */
+	private volatile ParamSnapshot snapshot;
 
 	// get<X>(): Accessor methods for each parameter
 	
@@ -54,7 +71,7 @@ public class ModelParams {
 	public AtomicInteger getSlideValTimeEffort() {
 		return slideValTimeEffort;
 	}
-	public AtomicInteger setGlideValIndividual() {
+	public AtomicInteger getSlideValIndividual() {
 		return slideValIndividual;
 	}
 	public AtomicInteger getSlideValCongestion() {
@@ -69,6 +86,29 @@ public class ModelParams {
 	public AtomicInteger getSlideValAveragerLen() {
 		return slideValAveragerLen;
 	}
+	public AtomicInteger getSlideValSocial() {
+		return slideValSocial;
+	}
+	
+	/**
+	 * Accessor for the latest snapshot of all parameter values. (A single
+	 * volatile read, so safe to call from any thread).
+	 */
+	public ParamSnapshot getSnapshot() {
+		return snapshot;
+	}
+	
+	/**
+	 * Publish a new snapshot of the current parameter values. Must be called
+	 * after changing any of the values other than via the sliders.
+	 */
+	public synchronized void publishSnapshot() {
+		long version = (snapshot == null) ? 1 : snapshot.getVersion() + 1;
+		snapshot = new ParamSnapshot(version, slideValExpense.get(),
+				slideValTimeEffort.get(), slideValIndividual.get(),
+				slideValCongestion.get(), slideValRoadworks.get(),
+				slideValWeather.get(), slideValAveragerLen.get(), slideValSocial.get());
+	}
 	
 	/**
 	 * Initialisation to default values (Constructor function)
@@ -83,112 +123,52 @@ public class ModelParams {
 		slideValRoadworks.set(-80);
 		slideValWeather.set(25);
 		slideValAveragerLen.set(10);
+		slideValSocial.set(0);
+		publishSnapshot();
 	}
-		
+
 	/**
-	 * Create slider panel for "Model Parameters" pane
+	 * Set a parameter from its text form (e.g. from the command line or a
+	 * file) and publish a new snapshot. Keys are the names of the parameter
+	 * variables, e.g. "slideValExpense".
 	 * 
-	 * @return handle for "Model Parameters" panel
+	 * @return false if there is no parameter with this name
+	 * @throws IllegalArgumentException if the value is not a whole number
+	 *         in the slider's range
 	 */
-	public JPanel createModelParamsPanel() {
-
-		JPanel modelParamsPanel = new JPanel();
-		modelParamsPanel.setLayout(new BoxLayout(modelParamsPanel, BoxLayout.Y_AXIS));
-		
-		// Create label for reporting slider positions. Although placed at bottom,
-		// need to create it before calling functions are defined. 
-		sliderValueDisplayLabel = new JLabel("", JLabel.CENTER);
-		
-		modelParamsPanel.add(new JLabel("-    Simulation Model Parameters    -", JLabel.CENTER));
-		modelParamsPanel.add(new JLabel("Bike < ----    (Adjust settings to favour)    ---- > Car", JLabel.CENTER));
-		
-		// Insert some padding
-		modelParamsPanel.add(new JLabel("-", JLabel.CENTER));
-
-		// Create sliders that will directly modify target variables themselves
-		makeSlider(modelParamsPanel, slideValExpense,
-				"Expense (fixed costs)");
-		makeSlider(modelParamsPanel, slideValTimeEffort,
-				"Time / Effort (scaled by <commute distance>)");
-		makeSlider(modelParamsPanel, slideValIndividual,
-				"Individual Preferences (scaled by pop distribution)");
-		makeSlider(modelParamsPanel, slideValCongestion,
-				"Congestion (scaled by <total cars>)");
-		makeSlider(modelParamsPanel, slideValRoadworks,
-				"Roadworks (scaled by <total cars>)");
-		makeSlider(modelParamsPanel, slideValWeather,
-				"Bad Weather");
-		
-		// Insert some padding
-		modelParamsPanel.add(new JLabel("-", JLabel.CENTER));
-		
-		// Create unrelated slider
-        modelParamsPanel.add(new JLabel("Congestion Moving Averager Length", JLabel.CENTER));
-		JSlider slider = new JSlider(JSlider.HORIZONTAL, 1, 50, slideValAveragerLen.get());
-		slider.setMinorTickSpacing(1);
-		slider.setMajorTickSpacing(3);
-		slider.setPaintTicks(true);
-		slider.setLabelTable(slider.createStandardLabels(10));
-		slider.setPaintLabels(true);	 
-		modelParamsPanel.add(slider);
-
-        // Create a slider change event listener to directly adjust the variable
-        slider.addChangeListener(new ChangeListener() {
-     		public void stateChanged(ChangeEvent event) {
-     			
-     			// Get new value of slider causing the event
-     			int val = ((JSlider) event.getSource()).getValue();
-     			
-     			// Display slider value on common label
-    			sliderValueDisplayLabel.setText("(Slider value = " + val + ")");
-
-     			// Adjust the variable this slider connects to
-    			slideValAveragerLen.set(val);
-     		}
-     	});
-        
-		// Insert some padding
-		modelParamsPanel.add(new JLabel("-", JLabel.CENTER));
-		
-		// Add slider feedback label
-		modelParamsPanel.add(sliderValueDisplayLabel);
-
-		//modelParamsPanel.setSize(200, 500);
-
-		return modelParamsPanel;
+	public boolean set(String key, String value) {
+		AtomicInteger target;
+		switch (key) {
+		case "slideValExpense":		target = slideValExpense; break;
+		case "slideValTimeEffort":	target = slideValTimeEffort; break;
+		case "slideValIndividual":	target = slideValIndividual; break;
+		case "slideValCongestion":	target = slideValCongestion; break;
+		case "slideValRoadworks":	target = slideValRoadworks; break;
+		case "slideValWeather":		target = slideValWeather; break;
+		case "slideValAveragerLen":	target = slideValAveragerLen; break;
+		case "slideValSocial":		target = slideValSocial; break;
+		default:
+			return false;
+		}
+		if (target == slideValAveragerLen) {
+			target.set(Prefs.parseInt(key, value, AVERAGER_MIN, AVERAGER_MAX));
+		} else {
+			target.set(Prefs.parseInt(key, value, SLIDER_MIN, SLIDER_MAX));
+		}
+		publishSnapshot();
+		return true;
 	}
 
-	
-	private JSlider makeSlider(JPanel sliderPanel, final AtomicInteger target, String label) {
-
-		// Give it a label above
-        JLabel sliderLabel = new JLabel(label, JLabel.CENTER);
-		sliderPanel.add(sliderLabel);
-
-		// Create new slider and add it to the panel
-		JSlider slider = new JSlider(JSlider.HORIZONTAL, -100, 100, target.get());
-		slider.setMinorTickSpacing(5);
-		slider.setMajorTickSpacing(25);
-		slider.setPaintTicks(true);
-		slider.setLabelTable(slider.createStandardLabels(25));
-		slider.setPaintLabels(true);	 
-		sliderPanel.add(slider);
-		
-        // Create a slider change event listener to directly adjust the variable
-        slider.addChangeListener(new ChangeListener() {
-     		public void stateChanged(ChangeEvent event) {
-     			
-     			// Get new value of slider causing the event
-     			int val = ((JSlider) event.getSource()).getValue();
-     			
-     			// Display slider value on common label
-    			sliderValueDisplayLabel.setText("(Slider value = " + val + ")");
-
-     			// Adjust the variable this slider connects to
-     			target.set(val);
-     		}
-     	});
-        
-        return slider;
+	/**
+	 * Set any parameters found in a set of properties (ignoring any other
+	 * properties).
+	 * 
+	 * @throws IllegalArgumentException if a value is not a whole number
+	 *         in the slider's range
+	 */
+	public void load(Properties props) {
+		for (String key : props.stringPropertyNames()) {
+			set(key, props.getProperty(key));
+		}
 	}
 }
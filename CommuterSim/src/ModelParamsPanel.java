@@ -0,0 +1,149 @@
+/*
+ * Classname: ModelParamsPanel
+ */
+
+package commuterSim;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.BoxLayout;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Create a simulation Model Parameters Panel, which will directly
+ * update the ModelParams variables from sliders (publishing a new
+ * ParamSnapshot each time a slider moves).
+ */
+public class ModelParamsPanel {
+
+	/**
+	 * Parameters adjusted by the sliders
+	 */
+	private final ModelParams params;
+	
+	private JLabel sliderValueDisplayLabel;
+	
+	/**
+	 * Initialisation (Constructor function)
+	 */
+	public ModelParamsPanel(ModelParams params) {
+		this.params = params;
+	}
+
+	/**
+	 * Create slider panel for "Model Parameters" pane
+	 * 
+	 * @return handle for "Model Parameters" panel
+	 */
+	public JPanel createModelParamsPanel() {
+
+		JPanel modelParamsPanel = new JPanel();
+		modelParamsPanel.setLayout(new BoxLayout(modelParamsPanel, BoxLayout.Y_AXIS));
+		
+		// Create label for reporting slider positions. Although placed at bottom,
+		// need to create it before calling functions are defined. 
+		sliderValueDisplayLabel = new JLabel("", JLabel.CENTER);
+		
+		modelParamsPanel.add(new JLabel("-    Simulation Model Parameters    -", JLabel.CENTER));
+		modelParamsPanel.add(new JLabel("Bike < ----    (Adjust settings to favour)    ---- > Car", JLabel.CENTER));
+		
+		// Insert some padding
+		modelParamsPanel.add(new JLabel("-", JLabel.CENTER));
+
+		// Create sliders that will directly modify target variables themselves
+		makeSlider(modelParamsPanel, params.getSlideValExpense(),
+				"Expense (fixed costs)");
+		makeSlider(modelParamsPanel, params.getSlideValTimeEffort(),
+				"Time / Effort (scaled by <commute distance>)");
+		makeSlider(modelParamsPanel, params.getSlideValIndividual(),
+				"Individual Preferences (scaled by pop distribution)");
+		makeSlider(modelParamsPanel, params.getSlideValCongestion(),
+				"Congestion (scaled by <total cars>)");
+		makeSlider(modelParamsPanel, params.getSlideValRoadworks(),
+				"Roadworks (scaled by <total cars>)");
+		makeSlider(modelParamsPanel, params.getSlideValWeather(),
+				"Bad Weather");
+		makeSlider(modelParamsPanel, params.getSlideValSocial(),
+				"Social Influence (scaled by <neighbours' car share>)");
+		
+		// Insert some padding
+		modelParamsPanel.add(new JLabel("-", JLabel.CENTER));
+		
+		// Create unrelated slider
+        modelParamsPanel.add(new JLabel("Congestion Moving Averager Length", JLabel.CENTER));
+		JSlider slider = new JSlider(JSlider.HORIZONTAL, ModelParams.AVERAGER_MIN,
+				ModelParams.AVERAGER_MAX, params.getSlideValAveragerLen().get());
+		slider.setMinorTickSpacing(1);
+		slider.setMajorTickSpacing(3);
+		slider.setPaintTicks(true);
+		slider.setLabelTable(slider.createStandardLabels(10));
+		slider.setPaintLabels(true);	 
+		modelParamsPanel.add(slider);
+
+        // Create a slider change event listener to directly adjust the variable
+        slider.addChangeListener(new ChangeListener() {
+     		public void stateChanged(ChangeEvent event) {
+     			
+     			// Get new value of slider causing the event
+     			int val = ((JSlider) event.getSource()).getValue();
+     			
+     			// Display slider value on common label
+    			sliderValueDisplayLabel.setText("(Slider value = " + val + ")");
+
+     			// Adjust the variable this slider connects to
+    			params.getSlideValAveragerLen().set(val);
+    			params.publishSnapshot();
+     		}
+     	});
+        
+		// Insert some padding
+		modelParamsPanel.add(new JLabel("-", JLabel.CENTER));
+		
+		// Add slider feedback label
+		modelParamsPanel.add(sliderValueDisplayLabel);
+
+		//modelParamsPanel.setSize(200, 500);
+
+		return modelParamsPanel;
+	}
+
+	
+	private JSlider makeSlider(JPanel sliderPanel, final AtomicInteger target, String label) {
+
+		// Give it a label above
+        JLabel sliderLabel = new JLabel(label, JLabel.CENTER);
+		sliderPanel.add(sliderLabel);
+
+		// Create new slider and add it to the panel
+		JSlider slider = new JSlider(JSlider.HORIZONTAL, ModelParams.SLIDER_MIN,
+				ModelParams.SLIDER_MAX, target.get());
+		slider.setMinorTickSpacing(5);
+		slider.setMajorTickSpacing(25);
+		slider.setPaintTicks(true);
+		slider.setLabelTable(slider.createStandardLabels(25));
+		slider.setPaintLabels(true);	 
+		sliderPanel.add(slider);
+		
+        // Create a slider change event listener to directly adjust the variable
+        slider.addChangeListener(new ChangeListener() {
+     		public void stateChanged(ChangeEvent event) {
+     			
+     			// Get new value of slider causing the event
+     			int val = ((JSlider) event.getSource()).getValue();
+     			
+     			// Display slider value on common label
+    			sliderValueDisplayLabel.setText("(Slider value = " + val + ")");
+
+     			// Adjust the variable this slider connects to
+     			target.set(val);
+     			params.publishSnapshot();
+     		}
+     	});
+        
+        return slider;
+	}
+}
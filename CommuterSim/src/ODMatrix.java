@@ -0,0 +1,362 @@
+/*
+ * Classname: ODMatrix
+ */
+
+package commuterSim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Where commuters from each residential location travel to: the work area
+ * at the end of the road, or another location along it. Read from a CSV
+ * file with a line per origin-destination (OD) pair:
+ * <pre>
+ * origin,destination,demand
+ * </pre>
+ * where origin is a location (0 .. TOTAL_LOCATIONS - 1), destination is a
+ * location or "work", and demand (&gt; 0) is the pair's relative share of
+ * the commuters from its origin. An optional header line, blank lines and
+ * lines starting with '#' are skipped. Commuters from any origin without a
+ * line all go to the work area.
+ * <p>
+ * Only pairs with demand are stored, in compressed sparse row form: the
+ * pairs from origin O are pairStart[O] .. pairStart[O + 1] - 1, sorted by
+ * destination (the work area first). Each commuter is assigned a pair, and
+ * anything the same for everyone on a pair (costs, congestion) is indexed
+ * by pair, so with no matrix (toWorkArea()) pair L is simply location L.
+ * <p>
+ * Road segment S runs in from location S (to location S - 1, or from 0 to
+ * the work area). A journey in towards the work area uses segments 0 .. O,
+ * and one between locations uses the segments between them, in towards the
+ * work area or out from it (on the other carriageway, so the directions
+ * are congested separately). Distances are measured between locations, with
+ * the work area level with location 0 (as in the original model).
+ * Immutable, so one matrix can be shared by any number of engines.
+ */
+public final class ODMatrix {
+
+	/**
+	 * Destination of journeys to the work area
+	 */
+	public static final int WORK_AREA = -1;
+
+	private final int totalLocations;
+
+	/**
+	 * First pair from each origin, and after the last
+	 */
+	private final int pairStart[];
+
+	/**
+	 * By pair: destination (location or WORK_AREA) and share of commuters
+	 * from the origin
+	 */
+	private final int destination[];
+	private final double share[];
+
+	/**
+	 * By pair: origin, distance travelled (in locations), and the road
+	 * segments used, firstSegment .. lastSegment (none if first > last)
+	 * in towards the work area, or out if isOutbound
+	 */
+	private final int origin[];
+	private final double distance[];
+	private final int firstSegment[];
+	private final int lastSegment[];
+	private final boolean isOutbound[];
+
+	private final long fingerprint;
+
+	private ODMatrix(int totalLocations, int pairStart[], int destination[], double demand[]) {
+		this.totalLocations = totalLocations;
+		this.pairStart = pairStart;
+		this.destination = destination;
+		int pairs = destination.length;
+
+		share = new double[pairs];
+		origin = new int[pairs];
+		distance = new double[pairs];
+		firstSegment = new int[pairs];
+		lastSegment = new int[pairs];
+		isOutbound = new boolean[pairs];
+		long hash = 1125899906842597L;
+		for (int o = 0; o < totalLocations; o++) {
+			double total = 0.0;
+			for (int r = pairStart[o]; r < pairStart[o + 1]; r++) {
+				total += demand[r];
+			}
+			for (int r = pairStart[o]; r < pairStart[o + 1]; r++) {
+				int d = destination[r];
+				origin[r] = o;
+				share[r] = demand[r] / total;
+				if (d == WORK_AREA) {
+					distance[r] = o;
+					firstSegment[r] = 0;
+					lastSegment[r] = o;
+				} else if (d <= o) {
+					distance[r] = o - d;
+					firstSegment[r] = d + 1;
+					lastSegment[r] = o;
+				} else {
+					distance[r] = d - o;
+					firstSegment[r] = o + 1;
+					lastSegment[r] = d;
+					isOutbound[r] = true;
+				}
+				hash = 31 * hash + o;
+				hash = 31 * hash + d;
+				hash = 31 * hash + Double.doubleToLongBits(share[r]);
+			}
+		}
+		fingerprint = hash;
+	}
+
+	/**
+	 * Everyone commuting to the work area (the model without a matrix)
+	 */
+	public static ODMatrix toWorkArea(int totalLocations) {
+		int pairStart[] = new int[totalLocations + 1];
+		int destination[] = new int[totalLocations];
+		double demand[] = new double[totalLocations];
+		for (int o = 0; o < totalLocations; o++) {
+			pairStart[o + 1] = o + 1;
+			destination[o] = WORK_AREA;
+			demand[o] = 1.0;
+		}
+		return new ODMatrix(totalLocations, pairStart, destination, demand);
+	}
+
+	/**
+	 * Read an OD matrix from a CSV file
+	 *
+	 * @param totalLocations	number of residential locations
+	 * @throws IOException if the file cannot be read or a line is invalid
+	 *         (giving its line number)
+	 */
+	public static ODMatrix load(File file, int totalLocations) throws IOException {
+
+		// Demand by [origin][destination + 1] while reading (the whole
+		// matrix is at most a few hundred entries)
+		double demand[][] = new double[totalLocations][totalLocations + 1];
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")
+						|| (lineNumber == 1 && line.startsWith("origin")))
+					continue;
+				String fields[] = line.split(",");
+				if (fields.length != 3)
+					throw new IOException(file + " line " + lineNumber
+							+ ": expected origin,destination,demand");
+				try {
+					int o = Prefs.parseInt("origin", fields[0], 0, totalLocations - 1);
+					int d = fields[1].trim().equalsIgnoreCase("work") ? WORK_AREA
+							: Prefs.parseInt("destination", fields[1], 0, totalLocations - 1);
+					double value = Prefs.parseDouble("demand", fields[2], Double.MIN_VALUE,
+							Double.MAX_VALUE);
+					if (demand[o][d + 1] != 0.0)
+						throw new IllegalArgumentException("pair " + o + "," + fields[1].trim()
+								+ " given twice");
+					demand[o][d + 1] = value;
+				} catch (IllegalArgumentException e) {
+					throw new IOException(file + " line " + lineNumber + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return fromDemand(totalLocations, demand);
+	}
+
+	/**
+	 * OD matrix from a table of demand
+	 *
+	 * @param totalLocations	number of residential locations
+	 * @param demand			demand (&gt;= 0) by [origin][destination + 1],
+	 * 							so column 0 is the work area
+	 */
+	static ODMatrix fromDemand(int totalLocations, double demand[][]) {
+
+		// Pack the pairs with demand, each origin's in destination order
+		// (any origin with none sends everyone to the work area)
+		int pairStart[] = new int[totalLocations + 1];
+		int destination[] = new int[totalLocations * (totalLocations + 1)];
+		double pairDemand[] = new double[destination.length];
+		int pairs = 0;
+		for (int o = 0; o < totalLocations; o++) {
+			pairStart[o] = pairs;
+			for (int d = WORK_AREA; d < totalLocations; d++) {
+				if (demand[o][d + 1] > 0.0) {
+					destination[pairs] = d;
+					pairDemand[pairs++] = demand[o][d + 1];
+				}
+			}
+			if (pairs == pairStart[o]) {
+				destination[pairs] = WORK_AREA;
+				pairDemand[pairs++] = 1.0;
+			}
+		}
+		pairStart[totalLocations] = pairs;
+		return new ODMatrix(totalLocations, pairStart, Arrays.copyOf(destination, pairs),
+				Arrays.copyOf(pairDemand, pairs));
+	}
+
+	public int getPairCount() {
+		return destination.length;
+	}
+
+	/**
+	 * Does everyone commute to the work area? (If so pair L is location L)
+	 */
+	public boolean isToWorkArea() {
+		if (destination.length != totalLocations)
+			return false;
+		for (int r = 0; r < destination.length; r++) {
+			if (destination[r] != WORK_AREA)
+				return false;
+		}
+		return true;
+	}
+
+	public int getOrigin(int pair) {
+		return origin[pair];
+	}
+
+	/**
+	 * Destination location of a pair, or WORK_AREA
+	 */
+	public int getDestination(int pair) {
+		return destination[pair];
+	}
+
+	/**
+	 * Share of commuters from the pair's origin
+	 */
+	public double getShare(int pair) {
+		return share[pair];
+	}
+
+	/**
+	 * Distance travelled (in locations)
+	 */
+	public double getDistance(int pair) {
+		return distance[pair];
+	}
+
+	/**
+	 * Choose a pair for a commuter from an origin, in proportion to demand
+	 *
+	 * @param u		uniform random number 0.0 .. 1.0
+	 */
+	public int choosePair(int origin, double u) {
+		int last = pairStart[origin + 1] - 1;
+		int r = pairStart[origin];
+		double cumulative = share[r];
+		while (r < last && u >= cumulative) {
+			cumulative += share[++r];
+		}
+		return r;
+	}
+
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Total the cars on each road segment, in each direction, from the cars
+	 * on each pair's journey. Each pair's cars are added at its outermost
+	 * segment and taken off again beyond its innermost one, and each
+	 * segment's total is then summed from the furthest out inwards (so with
+	 * everyone going to the work area, from the cars of each location and
+	 * every location further out).
+	 *
+	 * @param pairCars	cars by pair, from pairCars[base]
+	 * @param base		index of pair 0 in pairCars
+	 * @param inbound	set to cars on each segment towards the work area
+	 * @param outbound	set to cars on each segment away from it
+	 */
+	public void segmentCars(double pairCars[], int base, double inbound[], double outbound[]) {
+		Arrays.fill(inbound, 0.0);
+		Arrays.fill(outbound, 0.0);
+		for (int r = 0; r < destination.length; r++) {
+			if (firstSegment[r] > lastSegment[r])
+				continue;
+			double cars = pairCars[base + r];
+			double segments[] = isOutbound[r] ? outbound : inbound;
+			segments[lastSegment[r]] += cars;
+			if (firstSegment[r] > 0) {
+				segments[firstSegment[r] - 1] -= cars;
+			}
+		}
+		for (int s = totalLocations - 2; s >= 0; s--) {
+			inbound[s] += inbound[s + 1];
+			outbound[s] += outbound[s + 1];
+		}
+	}
+
+	/**
+	 * Replace per segment values (such as cars or delays) by running totals
+	 * from the work area outwards, for journeySum()
+	 *
+	 * @param segments	value for each segment, set to the total of it
+	 * 					and every segment nearer the work area
+	 */
+	public static void runningTotals(double segments[]) {
+		for (int s = 1; s < segments.length; s++) {
+			segments[s] += segments[s - 1];
+		}
+	}
+
+	/**
+	 * Sum of per segment values along a pair's journey
+	 *
+	 * @param inbound	running totals (see runningTotals()) of the values
+	 * 					for each segment towards the work area
+	 * @param outbound	running totals of those for each segment away from it
+	 */
+	public double journeySum(int pair, double inbound[], double outbound[]) {
+		if (firstSegment[pair] > lastSegment[pair])
+			return 0.0;
+		double totals[] = isOutbound[pair] ? outbound : inbound;
+		return (firstSegment[pair] == 0) ? totals[lastSegment[pair]]
+				: totals[lastSegment[pair]] - totals[firstSegment[pair] - 1];
+	}
+
+	/**
+	 * Number of road segments on a pair's journey (0 within a location)
+	 */
+	public int getJourneySegments(int pair) {
+		return lastSegment[pair] - firstSegment[pair] + 1;
+	}
+
+	/**
+	 * Combined severity of roadworks on each pair's journey, from the
+	 * severity affecting each location (all roadworks there or nearer the
+	 * work area, see RoadworksIndex)
+	 *
+	 * @param penaltyByLoc	severity by location
+	 * @param penaltyByPair	set to severity by pair
+	 */
+	public void roadworksPenalty(float penaltyByLoc[], float penaltyByPair[]) {
+		for (int r = 0; r < destination.length; r++) {
+			if (firstSegment[r] > lastSegment[r]) {
+				penaltyByPair[r] = 0.0f;
+			} else if (firstSegment[r] == 0) {
+				penaltyByPair[r] = penaltyByLoc[lastSegment[r]];
+			} else {
+				penaltyByPair[r] = penaltyByLoc[lastSegment[r]]
+						- penaltyByLoc[firstSegment[r] - 1];
+			}
+		}
+	}
+}
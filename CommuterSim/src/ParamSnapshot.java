@@ -0,0 +1,80 @@
+/*
+ * Classname: ParamSnapshot
+ */
+
+package commuterSim;
+
+/**
+ * An immutable copy of all the model parameter slider values at one
+ * moment, published by ModelParams whenever a slider changes. Reading the
+ * current snapshot once gives a consistent set of parameters for a whole
+ * simulation step, and the version number lets consumers cheaply tell
+ * whether anything derived from the parameters is out of date.
+ */
+public final class ParamSnapshot {
+
+	private final long version;
+	private final int expense;
+	private final int timeEffort;
+	private final int individual;
+	private final int congestion;
+	private final int roadworks;
+	private final int weather;
+	private final int averagerLen;
+	private final int social;
+
+	/**
+	 * Create a snapshot of parameter values
+	 */
+	public ParamSnapshot(long version, int expense, int timeEffort, int individual,
+			int congestion, int roadworks, int weather, int averagerLen, int social) {
+		this.version = version;
+		this.expense = expense;
+		this.timeEffort = timeEffort;
+		this.individual = individual;
+		this.congestion = congestion;
+		this.roadworks = roadworks;
+		this.weather = weather;
+		this.averagerLen = averagerLen;
+		this.social = social;
+	}
+
+	/**
+	 * Increases by at least 1 every time a new snapshot is published
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public int getExpense() {
+		return expense;
+	}
+
+	public int getTimeEffort() {
+		return timeEffort;
+	}
+
+	public int getIndividual() {
+		return individual;
+	}
+
+	public int getCongestion() {
+		return congestion;
+	}
+
+	public int getRoadworks() {
+		return roadworks;
+	}
+
+	public int getWeather() {
+		return weather;
+	}
+
+	public int getAveragerLen() {
+		return averagerLen;
+	}
+
+	public int getSocial() {
+		return social;
+	}
+}
@@ -11,19 +11,18 @@
 
 package commuterSim;
 
-import java.awt.GridLayout;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-
-import javax.swing.JButton;
-import javax.swing.JCheckBox;
-import javax.swing.JLabel;
-import javax.swing.JPanel;
-import javax.swing.JTextField;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
 
 /**
- * A class designed to handle via a GUI Text fields updating of
- * and access to the following simulation parameters:
+ * A class designed to handle updating of (via PrefsPanel GUI text fields,
+ * or from text on the command line or in a file - see set()) and access
+ * to the following simulation parameters:
  * <ul>
  * <li> random seed (will not apply if negative)
  * <li> variation from rational choice
@@ -34,6 +33,14 @@ import javax.swing.JTextField;
  * <li> max duration of bad weather period
  * <li> probability of starting roadworks
  * <li> max duration of roadworks
+ * <li> rate at which individual preferences adapt to daily experience
+ * <li> number of departure time slots each day
+ * <li> cost of departing away from the peak (preferred) time slot
+ * <li> probability of reconsidering departure time each day
+ * <li> whether to choose between all modes of transport (not just car/bike)
+ * <li> steady state detection tolerance, window and action
+ * <li> size and locality of each commuter's social network
+ * <li> road capacity and congestion iterations per day
  * </ul> 
   * 
  * @author Richard Thomas <gy13rjt@leeds.ac.uk>
@@ -89,8 +96,77 @@ public class Prefs {
 	 */
 	private double initCarProb;
 
-	private JTextField randSeedField;
-	private JCheckBox useRandomSeedCheck;
+	/**
+	 * Fraction by which each commuter's individual preference moves towards
+	 * the conditions (congestion, weather, etc.) they experienced each day.
+	 * (0.0 = fixed preferences, 1.0 = no memory beyond yesterday)
+	 */
+	private double habitLearningRate;
+
+	/**
+	 * Number of departure time slots each day (1 = everyone travels at once)
+	 */
+	private int departureSlots;
+
+	/**
+	 * Cost (relative to average congestion) per slot of departing away from
+	 * the preferred (peak) time slot
+	 */
+	private double slotDelayWeight;
+
+	/**
+	 * Probability of each commuter reconsidering their departure time each day
+	 */
+	private double slotRevisionProb;
+
+	/**
+	 * Whether commuters choose between car, bike, bus and walking (multi-mode
+	 * logit model) rather than just car or bike
+	 */
+	private boolean multiModeChoice;
+
+	/**
+	 * Largest daily change in car share (overall and at every location)
+	 * still counted as "steady" (0.0 = never detect a steady state)
+	 */
+	private double steadyStateTolerance;
+
+	/**
+	 * Number of steady days in a row before the simulation is treated as
+	 * having settled down
+	 */
+	private int steadyStateWindow;
+
+	/**
+	 * Once settled, fast-forward (filling in results) up to the next weather
+	 * or roadworks change (true), or stop the simulation early if there are
+	 * no more changes to come (false)
+	 */
+	private boolean steadyStateFastForward;
+
+	/**
+	 * Average number of people in each commuter's social network, whose
+	 * choices influence theirs (0 = no social influence)
+	 */
+	private int socialNeighbours;
+
+	/**
+	 * Share of each commuter's social network living at the same location
+	 * (the rest anywhere)
+	 */
+	private double socialLocalShare;
+
+	/**
+	 * Cars each road segment carries at capacity over the day, as a share
+	 * of the population (0 = congestion from total cars, not road segments)
+	 */
+	private double roadCapacity;
+
+	/**
+	 * Rounds of decisions each day, each moving road congestion towards
+	 * that from the last round's cars (1 = just use yesterday's congestion)
+	 */
+	private int congestionIterations;
 
 	//-------------------------------------------------------------------------|
 	// Accessor Methods
@@ -130,6 +206,40 @@ public class Prefs {
 	public Prefs() {
 		forceDefaults();
 	}
+
+	/**
+	 * Initialisation to a copy of other preferences (Constructor function)
+	 */
+	public Prefs(Prefs other) {
+		copyFrom(other);
+	}
+	
+	/**
+	 * Overwrite all preferences with a copy of other preferences
+	 */
+	public void copyFrom(Prefs other) {
+		useRandSeed = other.useRandSeed;
+		randSeed = other.randSeed;
+		maxSimDays = other.maxSimDays;
+		populationPerLoc = other.populationPerLoc;
+		rainStartProbability = other.rainStartProbability;
+		rainMaxDays = other.rainMaxDays;
+		roadworksStartProbability = other.roadworksStartProbability;
+		roadworksMaxDays = other.roadworksMaxDays;
+		initCarProb = other.initCarProb;
+		habitLearningRate = other.habitLearningRate;
+		departureSlots = other.departureSlots;
+		slotDelayWeight = other.slotDelayWeight;
+		slotRevisionProb = other.slotRevisionProb;
+		multiModeChoice = other.multiModeChoice;
+		steadyStateTolerance = other.steadyStateTolerance;
+		steadyStateWindow = other.steadyStateWindow;
+		steadyStateFastForward = other.steadyStateFastForward;
+		socialNeighbours = other.socialNeighbours;
+		socialLocalShare = other.socialLocalShare;
+		roadCapacity = other.roadCapacity;
+		congestionIterations = other.congestionIterations;
+	}
 	
 	/**
 	 * Accessor function for number of residents at each location
@@ -167,92 +277,257 @@ public class Prefs {
 	}
 	
 	/**
-	 * Indicates whether Simulator has passed a reference in yet
+	 * Accessor function for rate of adaptation of individual preferences
+	 */
+	public double getHabitLearningRate() {
+		return habitLearningRate;
+	}
+	
+	/**
+	 * Accessor function for number of departure time slots each day
 	 */
-	public static boolean simulatorAvailable = false;
+	public int getDepartureSlots() {
+		return departureSlots;
+	}
 	
 	/**
-	 * Handle for the single instance of Class Simulator
+	 * Accessor function for cost per slot of departing away from the peak
 	 */
-	public static Simulator simulatorInst = null;
+	public double getSlotDelayWeight() {
+		return slotDelayWeight;
+	}
 	
 	/**
-	 * Handle passing routine to all this class to access
-	 * non-static methods within the simulator
-	 * 
-	 * @param simRef Simulator reference (handle)
+	 * Accessor function for probability of reconsidering departure time
 	 */
-	public static void setSimulatorRef(Simulator simRef) {
-		simulatorInst = simRef;
-		simulatorAvailable = true;
+	public double getSlotRevisionProb() {
+		return slotRevisionProb;
+	}
+	
+	/**
+	 * Accessor function for multi-mode choice option
+	 */
+	public boolean getMultiModeChoice() {
+		return multiModeChoice;
+	}
+	
+	/**
+	 * Accessor function for steady state detection tolerance
+	 */
+	public double getSteadyStateTolerance() {
+		return steadyStateTolerance;
+	}
+	
+	/**
+	 * Accessor function for steady state detection window (days)
+	 */
+	public int getSteadyStateWindow() {
+		return steadyStateWindow;
+	}
+	
+	/**
+	 * Accessor function for steady state action (fast-forward or stop)
+	 */
+	public boolean getSteadyStateFastForward() {
+		return steadyStateFastForward;
 	}
 
 	/**
-	 * Create panel for "Preferences" tab in main window frame
-	 * 
-	 * @return handle for Preferences panel
+	 * Accessor function for average social network size
 	 */
-	public JPanel createPrefsPanel() {
-		JPanel PrefsPanel = new JPanel();
-		PrefsPanel.setLayout(new GridLayout(18,1));
+	public int getSocialNeighbours() {
+		return socialNeighbours;
+	}
 
-		useRandomSeedCheck = new JCheckBox("Use Random Seed");
-		//useRandomSeedCheck.addActionListener(new useRandomSeedCheckListener());
-		PrefsPanel.add(useRandomSeedCheck);
+	/**
+	 * Accessor function for share of social network at the same location
+	 */
+	public double getSocialLocalShare() {
+		return socialLocalShare;
+	}
 
-		JLabel randSeedLabel = new JLabel("Pseudo-random number generator seed");
-		PrefsPanel.add(randSeedLabel);
-		randSeedField = new JTextField(String.valueOf(randSeed), 4);
-		PrefsPanel.add(randSeedField);
+	/**
+	 * Accessor function for road segment capacity (share of population)
+	 */
+	public double getRoadCapacity() {
+		return roadCapacity;
+	}
 
-		JLabel maxSimDaysLabel = new JLabel("Maximum number of days to simulate");
-		PrefsPanel.add(maxSimDaysLabel);
-		JTextField maxSimDaysField = new JTextField(String.valueOf(maxSimDays), 4);
-		PrefsPanel.add(maxSimDaysField);
+	/**
+	 * Accessor function for rounds of decisions (congestion iterations) each day
+	 */
+	public int getCongestionIterations() {
+		return congestionIterations;
+	}
 
-		JLabel residentsPerLocLabel = new JLabel("Population at each location");
-		PrefsPanel.add(residentsPerLocLabel);
-		JTextField populationPerLocField = new JTextField(String.valueOf(populationPerLoc), 4);
-		PrefsPanel.add(populationPerLocField);
+	/**
+	 * Setter function for max number of days to simulate
+	 */
+	public void setMaxSimDays(int maxSimDays) {
+		this.maxSimDays = maxSimDays;
+	}
 
-		JLabel initCarProbLabel = new JLabel("General preference of population to commute by car");
-		PrefsPanel.add(initCarProbLabel);
-		JTextField initCarProbField = new JTextField(String.valueOf(initCarProb), 4);
-		PrefsPanel.add(initCarProbField);
+	/**
+	 * Setter function for pseudo-random number generator seed (and option)
+	 */
+	public void setRandSeed(boolean useRandSeed, int randSeed) {
+		this.useRandSeed = useRandSeed;
+		this.randSeed = randSeed;
+	}
 
-		JLabel rainStartProbabilityLabel = new JLabel("Probability of bad weather starting");
-		PrefsPanel.add(rainStartProbabilityLabel);
-		JTextField rainStartProbabilityField = new JTextField(String.valueOf(rainStartProbability), 4);
-		PrefsPanel.add(rainStartProbabilityField);
+	/**
+	 * Set a preference from its text form (e.g. from the command line or a
+	 * file). Keys are the names of the preference variables. Values are
+	 * checked to be within a sensible range.
+	 * 
+	 * @param key		preference name, e.g. "populationPerLoc"
+	 * @param value		new value as text
+	 * @return false if there is no preference with this name
+	 * @throws IllegalArgumentException if the value cannot be parsed or is
+	 *         out of range
+	 */
+	public boolean set(String key, String value) {
+		switch (key) {
+		case "maxSimDays":
+			maxSimDays = parseInt(key, value, 1, SimEngine.MAX_SIM_DAYS); break;
+		case "useRandSeed":
+			useRandSeed = parseBoolean(key, value); break;
+		case "randSeed":
+			randSeed = parseInt(key, value); break;
+		case "populationPerLoc":
+			populationPerLoc = parseInt(key, value, 1,
+					Integer.MAX_VALUE / SimEngine.TOTAL_LOCATIONS); break;
+		case "rainStartProbability":
+			rainStartProbability = parseDouble(key, value, 0.0, 1.0); break;
+		case "rainMaxDays":
+			rainMaxDays = parseInt(key, value, 0, Integer.MAX_VALUE / 2); break;
+		case "roadworksStartProbability":
+			roadworksStartProbability = parseDouble(key, value, 0.0, 1.0); break;
+		case "roadworksMaxDays":
+			roadworksMaxDays = parseInt(key, value, 0, Integer.MAX_VALUE / 2); break;
+		case "initCarProb":
+			initCarProb = parseDouble(key, value, 0.0, 1.0); break;
+		case "habitLearningRate":
+			habitLearningRate = parseDouble(key, value, 0.0, 1.0); break;
+		case "departureSlots":
+			departureSlots = parseInt(key, value, 1, SimEngine.MAX_DEPARTURE_SLOTS); break;
+		case "slotDelayWeight":
+			slotDelayWeight = parseDouble(key, value, 0.0, Double.MAX_VALUE); break;
+		case "slotRevisionProb":
+			slotRevisionProb = parseDouble(key, value, 0.0, 1.0); break;
+		case "multiModeChoice":
+			multiModeChoice = parseBoolean(key, value); break;
+		case "steadyStateTolerance":
+			steadyStateTolerance = parseDouble(key, value, 0.0, 1.0); break;
+		case "steadyStateWindow":
+			steadyStateWindow = parseInt(key, value, 1, Integer.MAX_VALUE); break;
+		case "steadyStateFastForward":
+			steadyStateFastForward = parseBoolean(key, value); break;
+		case "socialNeighbours":
+			socialNeighbours = parseInt(key, value, 0, SimEngine.MAX_SOCIAL_NEIGHBOURS); break;
+		case "socialLocalShare":
+			socialLocalShare = parseDouble(key, value, 0.0, 1.0); break;
+		case "roadCapacity":
+			roadCapacity = parseDouble(key, value, 0.0, Double.MAX_VALUE); break;
+		case "congestionIterations":
+			congestionIterations = parseInt(key, value, 1,
+					SimEngine.MAX_CONGESTION_ITERATIONS); break;
+		default:
+			return false;
+		}
+		return true;
+	}
 
-		JLabel roadworksStartProbabilityLabel = new JLabel("Probability of roadworks starting");
-		PrefsPanel.add(roadworksStartProbabilityLabel);
-		JTextField roadworksStartProbabilityField = new JTextField(String.valueOf(roadworksStartProbability), 4);
-		PrefsPanel.add(roadworksStartProbabilityField);
+	/**
+	 * Set preferences from a set of properties (e.g. a saved profile). Either
+	 * all of them are applied, or (if any is unknown or invalid) none are.
+	 * 
+	 * @throws IllegalArgumentException for an unknown preference name or an
+	 *         invalid value
+	 */
+	public void load(Properties props) {
+		Prefs loaded = new Prefs(this);
+		for (String key : props.stringPropertyNames()) {
+			if (!loaded.set(key, props.getProperty(key)))
+				throw new IllegalArgumentException("unknown preference: " + key);
+		}
+		copyFrom(loaded);
+	}
 
-		JLabel rainMaxDaysLabel = new JLabel("Max days of bad weather in a row");
-		PrefsPanel.add(rainMaxDaysLabel);
-		JTextField rainMaxDaysField = new JTextField(String.valueOf(rainMaxDays), 4);
-		PrefsPanel.add(rainMaxDaysField);
+	/**
+	 * Load a profile of preferences from a properties file (see save()).
+	 * Either all of them are applied, or none are.
+	 * 
+	 * @throws IOException if the file cannot be read
+	 * @throws IllegalArgumentException for an unknown preference name or an
+	 *         invalid value
+	 */
+	public void load(File file) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		load(props);
+	}
 
-		JLabel roadworksMaxDaysLabel = new JLabel("Max days of roadworks in a row");
-		PrefsPanel.add(roadworksMaxDaysLabel);
-		JTextField roadworksMaxDaysField = new JTextField(String.valueOf(roadworksMaxDays), 4);
-		PrefsPanel.add(roadworksMaxDaysField);
+	/**
+	 * All preferences as properties (keys as accepted by set())
+	 */
+	public Properties toProperties() {
+		Properties props = new Properties();
+		props.setProperty("maxSimDays", String.valueOf(maxSimDays));
+		props.setProperty("useRandSeed", String.valueOf(useRandSeed));
+		props.setProperty("randSeed", String.valueOf(randSeed));
+		props.setProperty("populationPerLoc", String.valueOf(populationPerLoc));
+		props.setProperty("rainStartProbability", String.valueOf(rainStartProbability));
+		props.setProperty("rainMaxDays", String.valueOf(rainMaxDays));
+		props.setProperty("roadworksStartProbability", String.valueOf(roadworksStartProbability));
+		props.setProperty("roadworksMaxDays", String.valueOf(roadworksMaxDays));
+		props.setProperty("initCarProb", String.valueOf(initCarProb));
+		props.setProperty("habitLearningRate", String.valueOf(habitLearningRate));
+		props.setProperty("departureSlots", String.valueOf(departureSlots));
+		props.setProperty("slotDelayWeight", String.valueOf(slotDelayWeight));
+		props.setProperty("slotRevisionProb", String.valueOf(slotRevisionProb));
+		props.setProperty("multiModeChoice", String.valueOf(multiModeChoice));
+		props.setProperty("steadyStateTolerance", String.valueOf(steadyStateTolerance));
+		props.setProperty("steadyStateWindow", String.valueOf(steadyStateWindow));
+		props.setProperty("steadyStateFastForward", String.valueOf(steadyStateFastForward));
+		props.setProperty("socialNeighbours", String.valueOf(socialNeighbours));
+		props.setProperty("socialLocalShare", String.valueOf(socialLocalShare));
+		props.setProperty("roadCapacity", String.valueOf(roadCapacity));
+		props.setProperty("congestionIterations", String.valueOf(congestionIterations));
+		return props;
+	}
 
-		// Need to press update button to read in (and check) text field values
-		JButton updatePrefsButton = new JButton("Update & Re-initialise Simulator");
-		updatePrefsButton.addActionListener(new updatePrefsButtonListener());
-		PrefsPanel.add(updatePrefsButton);
+	/**
+	 * Save all preferences as a profile in a properties file
+	 * 
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			toProperties().store(out, "Commuter Sim preferences");
+		} finally {
+			out.close();
+		}
+	}
 
-		return PrefsPanel;
+	/**
+	 * Are all preferences the same as other preferences?
+	 */
+	public boolean sameAs(Prefs other) {
+		return toProperties().equals(other.toProperties());
 	}
 
 	/**
 	 * Set prefs to default values.
 	 * (Each are described in detail where they are defined above).
 	 */
-	private void forceDefaults() {
+	public void forceDefaults() {
 		useRandSeed = false;
 		randSeed = 1;
 		maxSimDays = 50;
@@ -262,23 +537,58 @@ public class Prefs {
 		roadworksStartProbability = 0.05;
 		roadworksMaxDays = 10;
 		initCarProb = 0.8;
+		habitLearningRate = 0.05;
+		departureSlots = 1;
+		slotDelayWeight = 0.5;
+		slotRevisionProb = 0.2;
+		multiModeChoice = false;
+		steadyStateTolerance = 0.0;
+		steadyStateWindow = 10;
+		steadyStateFastForward = true;
+		socialNeighbours = 0;
+		socialLocalShare = 0.8;
+		roadCapacity = 0.0;
+		congestionIterations = 1;
 	}
 
-	/**
-	 * "Update Preferences" button event handler
-	 * (Implemented as an inner class to allow multiple ActionListeners)
-	 */
-	class updatePrefsButtonListener implements ActionListener {
-		public void actionPerformed(ActionEvent event) {
-			//Simulator.tmpStatusLabel.setText("rand seed = " + randSeedField.getText());
+	static int parseInt(String key, String value) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + ": not a whole number: " + value);
+		}
+	}
 
-			// TODO: read each value back from text fields, sanity check then either
-			//      accept or replace them.
-			
-			// Re-initialise the simulator (assuming its available)
-			if (simulatorAvailable = true) {
-				simulatorInst.initSim();
-			}
+	static double parseDouble(String key, String value) {
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + ": not a number: " + value);
 		}
 	}
+
+	static int parseInt(String key, String value, int min, int max) {
+		int i = parseInt(key, value);
+		if (i < min || i > max)
+			throw new IllegalArgumentException(key + ": must be from " + min + " to " + max
+					+ ": " + value);
+		return i;
+	}
+
+	static double parseDouble(String key, String value, double min, double max) {
+		double d = parseDouble(key, value);
+		if (!(d >= min && d <= max))
+			throw new IllegalArgumentException(key + ": must be from " + min + " to " + max
+					+ ": " + value);
+		return d;
+	}
+
+	static boolean parseBoolean(String key, String value) {
+		String v = value.trim();
+		if (v.equalsIgnoreCase("true"))
+			return true;
+		if (v.equalsIgnoreCase("false"))
+			return false;
+		throw new IllegalArgumentException(key + ": not true/false: " + value);
+	}
 }
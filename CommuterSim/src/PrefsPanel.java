@@ -0,0 +1,338 @@
+/*
+ * Classname: PrefsPanel
+ */
+
+package commuterSim;
+
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+
+/**
+ * GUI Text fields for the "Sim Configuration" tab, for updating the
+ * simulation preferences held in Prefs. Values are checked when read back
+ * from the fields, and can be saved to and loaded from profile files.
+ */
+public class PrefsPanel {
+
+	/**
+	 * Preferences being displayed/updated
+	 */
+	private Prefs prefs;
+
+	private JTextField randSeedField;
+	private JCheckBox useRandomSeedCheck;
+	private JCheckBox multiModeChoiceCheck;
+	private JCheckBox steadyStateFastForwardCheck;
+	
+	/**
+	 * Text field for each preference, keyed by preference name (see Prefs.set())
+	 */
+	private final Map<String, JTextField> textFields = new LinkedHashMap<String, JTextField>();
+	
+	private JPanel prefsPanel;
+	private JFileChooser profileChooser;
+
+	/**
+	 * Initialisation (Constructor function)
+	 */
+	public PrefsPanel(Prefs prefs) {
+		this.prefs = prefs;
+	}
+
+	/**
+	 * Indicates whether Simulator has passed a reference in yet
+	 */
+	public static boolean simulatorAvailable = false;
+	
+	/**
+	 * Handle for the single instance of Class Simulator
+	 */
+	public static Simulator simulatorInst = null;
+	
+	/**
+	 * Handle passing routine to allow this class to access
+	 * non-static methods within the simulator
+	 * 
+	 * @param simRef Simulator reference (handle)
+	 */
+	public static void setSimulatorRef(Simulator simRef) {
+		simulatorInst = simRef;
+		simulatorAvailable = true;
+	}
+
+	/**
+	 * Create panel for "Preferences" tab in main window frame
+	 * 
+	 * @return handle for Preferences panel
+	 */
+	public JPanel createPrefsPanel() {
+		JPanel PrefsPanel = new JPanel();
+		PrefsPanel.setLayout(new GridLayout(40,1));
+
+		useRandomSeedCheck = new JCheckBox("Use Random Seed", prefs.getUseRandSeed());
+		//useRandomSeedCheck.addActionListener(new useRandomSeedCheckListener());
+		PrefsPanel.add(useRandomSeedCheck);
+
+		JLabel randSeedLabel = new JLabel("Pseudo-random number generator seed");
+		PrefsPanel.add(randSeedLabel);
+		randSeedField = new JTextField(String.valueOf(prefs.getRandSeed()), 4);
+		PrefsPanel.add(randSeedField);
+		textFields.put("randSeed", randSeedField);
+
+		JLabel maxSimDaysLabel = new JLabel("Maximum number of days to simulate");
+		PrefsPanel.add(maxSimDaysLabel);
+		JTextField maxSimDaysField = new JTextField(String.valueOf(prefs.getMaxSimDays()), 4);
+		PrefsPanel.add(maxSimDaysField);
+		textFields.put("maxSimDays", maxSimDaysField);
+
+		JLabel residentsPerLocLabel = new JLabel("Population at each location");
+		PrefsPanel.add(residentsPerLocLabel);
+		JTextField populationPerLocField = new JTextField(String.valueOf(prefs.getPopulationPerLoc()), 4);
+		PrefsPanel.add(populationPerLocField);
+		textFields.put("populationPerLoc", populationPerLocField);
+
+		JLabel initCarProbLabel = new JLabel("General preference of population to commute by car");
+		PrefsPanel.add(initCarProbLabel);
+		JTextField initCarProbField = new JTextField(String.valueOf(prefs.getInitCarProb()), 4);
+		PrefsPanel.add(initCarProbField);
+		textFields.put("initCarProb", initCarProbField);
+
+		JLabel rainStartProbabilityLabel = new JLabel("Probability of bad weather starting");
+		PrefsPanel.add(rainStartProbabilityLabel);
+		JTextField rainStartProbabilityField = new JTextField(String.valueOf(prefs.getRainStartProbability()), 4);
+		PrefsPanel.add(rainStartProbabilityField);
+		textFields.put("rainStartProbability", rainStartProbabilityField);
+
+		JLabel roadworksStartProbabilityLabel = new JLabel("Probability of roadworks starting");
+		PrefsPanel.add(roadworksStartProbabilityLabel);
+		JTextField roadworksStartProbabilityField = new JTextField(String.valueOf(prefs.getRoadworksStartProbability()), 4);
+		PrefsPanel.add(roadworksStartProbabilityField);
+		textFields.put("roadworksStartProbability", roadworksStartProbabilityField);
+
+		JLabel rainMaxDaysLabel = new JLabel("Max days of bad weather in a row");
+		PrefsPanel.add(rainMaxDaysLabel);
+		JTextField rainMaxDaysField = new JTextField(String.valueOf(prefs.getRainMaxDays()), 4);
+		PrefsPanel.add(rainMaxDaysField);
+		textFields.put("rainMaxDays", rainMaxDaysField);
+
+		JLabel roadworksMaxDaysLabel = new JLabel("Max days of roadworks in a row");
+		PrefsPanel.add(roadworksMaxDaysLabel);
+		JTextField roadworksMaxDaysField = new JTextField(String.valueOf(prefs.getRoadworksMaxDays()), 4);
+		PrefsPanel.add(roadworksMaxDaysField);
+		textFields.put("roadworksMaxDays", roadworksMaxDaysField);
+
+		JLabel habitLearningRateLabel = new JLabel("Rate of adapting preferences to daily experience");
+		PrefsPanel.add(habitLearningRateLabel);
+		JTextField habitLearningRateField = new JTextField(String.valueOf(prefs.getHabitLearningRate()), 4);
+		PrefsPanel.add(habitLearningRateField);
+		textFields.put("habitLearningRate", habitLearningRateField);
+
+		JLabel departureSlotsLabel = new JLabel("Number of departure time slots each day");
+		PrefsPanel.add(departureSlotsLabel);
+		JTextField departureSlotsField = new JTextField(String.valueOf(prefs.getDepartureSlots()), 4);
+		PrefsPanel.add(departureSlotsField);
+		textFields.put("departureSlots", departureSlotsField);
+
+		JLabel slotDelayWeightLabel = new JLabel("Cost per slot of departing away from the peak");
+		PrefsPanel.add(slotDelayWeightLabel);
+		JTextField slotDelayWeightField = new JTextField(String.valueOf(prefs.getSlotDelayWeight()), 4);
+		PrefsPanel.add(slotDelayWeightField);
+		textFields.put("slotDelayWeight", slotDelayWeightField);
+
+		JLabel slotRevisionProbLabel = new JLabel("Probability of reconsidering departure time each day");
+		PrefsPanel.add(slotRevisionProbLabel);
+		JTextField slotRevisionProbField = new JTextField(String.valueOf(prefs.getSlotRevisionProb()), 4);
+		PrefsPanel.add(slotRevisionProbField);
+		textFields.put("slotRevisionProb", slotRevisionProbField);
+
+		JLabel socialNeighboursLabel = new JLabel("Average social network size (0 = none)");
+		PrefsPanel.add(socialNeighboursLabel);
+		JTextField socialNeighboursField = new JTextField(String.valueOf(prefs.getSocialNeighbours()), 4);
+		PrefsPanel.add(socialNeighboursField);
+		textFields.put("socialNeighbours", socialNeighboursField);
+
+		JLabel socialLocalShareLabel = new JLabel("Share of social network living at the same location");
+		PrefsPanel.add(socialLocalShareLabel);
+		JTextField socialLocalShareField = new JTextField(String.valueOf(prefs.getSocialLocalShare()), 4);
+		PrefsPanel.add(socialLocalShareField);
+		textFields.put("socialLocalShare", socialLocalShareField);
+
+		JLabel roadCapacityLabel = new JLabel("Road capacity per segment (share of population, 0 = off)");
+		PrefsPanel.add(roadCapacityLabel);
+		JTextField roadCapacityField = new JTextField(String.valueOf(prefs.getRoadCapacity()), 4);
+		PrefsPanel.add(roadCapacityField);
+		textFields.put("roadCapacity", roadCapacityField);
+
+		JLabel congestionIterationsLabel = new JLabel("Congestion iterations each day");
+		PrefsPanel.add(congestionIterationsLabel);
+		JTextField congestionIterationsField = new JTextField(String.valueOf(prefs.getCongestionIterations()), 4);
+		PrefsPanel.add(congestionIterationsField);
+		textFields.put("congestionIterations", congestionIterationsField);
+
+		multiModeChoiceCheck = new JCheckBox("Choose between car, bike, bus and walking",
+				prefs.getMultiModeChoice());
+		PrefsPanel.add(multiModeChoiceCheck);
+
+		JLabel steadyStateToleranceLabel = new JLabel("Steady state tolerance (daily change in car share, 0 = off)");
+		PrefsPanel.add(steadyStateToleranceLabel);
+		JTextField steadyStateToleranceField = new JTextField(String.valueOf(prefs.getSteadyStateTolerance()), 4);
+		PrefsPanel.add(steadyStateToleranceField);
+		textFields.put("steadyStateTolerance", steadyStateToleranceField);
+
+		JLabel steadyStateWindowLabel = new JLabel("Steady days in a row before treated as settled");
+		PrefsPanel.add(steadyStateWindowLabel);
+		JTextField steadyStateWindowField = new JTextField(String.valueOf(prefs.getSteadyStateWindow()), 4);
+		PrefsPanel.add(steadyStateWindowField);
+		textFields.put("steadyStateWindow", steadyStateWindowField);
+
+		steadyStateFastForwardCheck = new JCheckBox("Once settled, fast-forward (rather than stop)",
+				prefs.getSteadyStateFastForward());
+		PrefsPanel.add(steadyStateFastForwardCheck);
+
+		// Need to press update button to read in (and check) text field values
+		JPanel prefsButtonPanel = new JPanel();
+		JButton updatePrefsButton = new JButton("Update Simulator");
+		updatePrefsButton.addActionListener(new updatePrefsButtonListener());
+		prefsButtonPanel.add(updatePrefsButton);
+		JButton loadPrefsButton = new JButton("Load Profile...");
+		loadPrefsButton.addActionListener(new loadPrefsButtonListener());
+		prefsButtonPanel.add(loadPrefsButton);
+		JButton savePrefsButton = new JButton("Save Profile...");
+		savePrefsButton.addActionListener(new savePrefsButtonListener());
+		prefsButtonPanel.add(savePrefsButton);
+		PrefsPanel.add(prefsButtonPanel);
+
+		prefsPanel = PrefsPanel;
+		return PrefsPanel;
+	}
+
+	/**
+	 * Read (and check) values back from the text fields and checkboxes
+	 * 
+	 * @return copy of current preferences updated from the fields
+	 * @throws IllegalArgumentException if any value is invalid
+	 */
+	private Prefs readFields() {
+		Prefs updated = new Prefs(prefs);
+		for (Map.Entry<String, JTextField> field : textFields.entrySet()) {
+			updated.set(field.getKey(), field.getValue().getText());
+		}
+		updated.set("useRandSeed", String.valueOf(useRandomSeedCheck.isSelected()));
+		updated.set("multiModeChoice", String.valueOf(multiModeChoiceCheck.isSelected()));
+		updated.set("steadyStateFastForward",
+				String.valueOf(steadyStateFastForwardCheck.isSelected()));
+		return updated;
+	}
+
+	/**
+	 * Show preference values in the text fields and checkboxes
+	 */
+	private void showFields(Prefs shown) {
+		Properties props = shown.toProperties();
+		for (Map.Entry<String, JTextField> field : textFields.entrySet()) {
+			field.getValue().setText(props.getProperty(field.getKey()));
+		}
+		useRandomSeedCheck.setSelected(shown.getUseRandSeed());
+		multiModeChoiceCheck.setSelected(shown.getMultiModeChoice());
+		steadyStateFastForwardCheck.setSelected(shown.getSteadyStateFastForward());
+	}
+
+	/**
+	 * Make updated preferences current, and pass them on to the simulator
+	 * (which re-initialises only what it needs to)
+	 */
+	private void applyPrefs(Prefs updated) {
+		if (simulatorAvailable == true) {
+			simulatorInst.applyPrefs(updated);
+		} else {
+			prefs.copyFrom(updated);
+		}
+	}
+
+	private void showError(String title, String message) {
+		JOptionPane.showMessageDialog(prefsPanel, message, title, JOptionPane.ERROR_MESSAGE);
+	}
+
+	private JFileChooser getProfileChooser() {
+		if (profileChooser == null) {
+			profileChooser = new JFileChooser();
+		}
+		return profileChooser;
+	}
+
+	/**
+	 * "Update Preferences" button event handler
+	 * (Implemented as an inner class to allow multiple ActionListeners)
+	 */
+	class updatePrefsButtonListener implements ActionListener {
+		public void actionPerformed(ActionEvent event) {
+			try {
+				applyPrefs(readFields());
+			} catch (IllegalArgumentException e) {
+				showError("Invalid Preference", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * "Load Profile" button event handler: load (and check) preferences
+	 * from a file, show them and apply them
+	 */
+	class loadPrefsButtonListener implements ActionListener {
+		public void actionPerformed(ActionEvent event) {
+			if (getProfileChooser().showOpenDialog(prefsPanel) != JFileChooser.APPROVE_OPTION)
+				return;
+			File file = profileChooser.getSelectedFile();
+			Prefs loaded = new Prefs(prefs);
+			try {
+				loaded.load(file);
+			} catch (IOException e) {
+				showError("Cannot Load Profile", file + ": " + e.getMessage());
+				return;
+			} catch (IllegalArgumentException e) {
+				showError("Invalid Profile", file + ": " + e.getMessage());
+				return;
+			}
+			showFields(loaded);
+			applyPrefs(loaded);
+		}
+	}
+
+	/**
+	 * "Save Profile" button event handler: save (checked) preferences as
+	 * shown in the fields to a file
+	 */
+	class savePrefsButtonListener implements ActionListener {
+		public void actionPerformed(ActionEvent event) {
+			Prefs shown;
+			try {
+				shown = readFields();
+			} catch (IllegalArgumentException e) {
+				showError("Invalid Preference", e.getMessage());
+				return;
+			}
+			if (getProfileChooser().showSaveDialog(prefsPanel) != JFileChooser.APPROVE_OPTION)
+				return;
+			File file = profileChooser.getSelectedFile();
+			try {
+				shown.save(file);
+			} catch (IOException e) {
+				showError("Cannot Save Profile", file + ": " + e.getMessage());
+			}
+		}
+	}
+}
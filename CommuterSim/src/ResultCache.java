@@ -0,0 +1,252 @@
+/*
+ * Classname: ResultCache
+ */
+
+package commuterSim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of simulation results (SimCheckpoint), keyed by a hash of
+ * everything that determines them: all preferences except the number of
+ * days, the model parameters, the mode weights, automatic event settings
+ * and any scenario events. Because a checkpoint can be carried on from,
+ * a cached run can also be extended to more days without re-running the
+ * days already cached.
+ * <p>
+ * Results are kept in memory (least recently used dropped first once over
+ * a size limit) and optionally in a directory on disk (oldest files
+ * deleted once over a size limit). Only runs with a fixed random seed
+ * repeat exactly, so only they are cached.
+ */
+public class ResultCache {
+
+	/**
+	 * Change whenever a model change would alter the results of the same
+	 * configuration, so old disk cache entries are never reused.
+	 */
+	private static final String MODEL_VERSION = "commuterSim-1";
+
+	private static final String FILE_SUFFIX = ".ckpt";
+
+	/**
+	 * Most recently used last
+	 */
+	private final LinkedHashMap<String, SimCheckpoint> memory =
+			new LinkedHashMap<String, SimCheckpoint>(16, 0.75f, true);
+	private final long maxMemoryBytes;
+	private long memoryBytes = 0;
+
+	/**
+	 * Disk cache directory (null = memory only)
+	 */
+	private final File dir;
+	private final long maxDiskBytes;
+
+	/**
+	 * Create a cache
+	 *
+	 * @param maxMemoryBytes	approximate limit on memory used
+	 * @param dir				directory for disk cache, or null for none
+	 * @param maxDiskBytes		limit on total size of disk cache files
+	 */
+	public ResultCache(long maxMemoryBytes, File dir, long maxDiskBytes) {
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.dir = dir;
+		this.maxDiskBytes = maxDiskBytes;
+		if (dir != null && !dir.isDirectory()) {
+			dir.mkdirs();
+		}
+	}
+
+	/**
+	 * Cache key for an engine's configuration (after initSim())
+	 *
+	 * @param zones		zones the population comes from, or null
+	 * @param od		origin-destination matrix, or null
+	 * @return key, or null if results are not repeatable (no fixed seed)
+	 */
+	public static String key(Prefs prefs, ParamSnapshot params, ModeParams modeParams,
+			EventScheduler events, ZoneTable zones, ODMatrix od) {
+		if (!prefs.getUseRandSeed())
+			return null;
+
+		// Canonical text form of the whole configuration (sorted prefs)
+		StringBuilder text = new StringBuilder(MODEL_VERSION).append('\n');
+		Properties props = prefs.toProperties();
+		props.remove("maxSimDays");
+		for (Map.Entry<Object, Object> pref : new TreeMap<Object, Object>(props).entrySet()) {
+			text.append(pref.getKey()).append('=').append(pref.getValue()).append('\n');
+		}
+		text.append("params=").append(params.getExpense()).append(',')
+				.append(params.getTimeEffort()).append(',').append(params.getIndividual())
+				.append(',').append(params.getCongestion()).append(',')
+				.append(params.getRoadworks()).append(',').append(params.getWeather())
+				.append(',').append(params.getAveragerLen()).append(',')
+				.append(params.getSocial()).append('\n');
+		text.append("modeWeights=");
+		for (int m = 0; m < ModeParams.TOTAL_MODES; m++) {
+			for (int f = 0; f < ModeParams.TOTAL_FACTORS; f++) {
+				text.append(modeParams.getWeight(m, f).get()).append(',');
+			}
+		}
+		text.append('\n');
+		if (zones != null) {
+			text.append("zones=").append(zones.getZoneCount()).append(',')
+					.append(zones.getFingerprint()).append('\n');
+		}
+		if (od != null) {
+			text.append("od=").append(od.getPairCount()).append(',')
+					.append(od.getFingerprint()).append('\n');
+		}
+		text.append("auto=").append(events.isRainAuto()).append(',')
+				.append(events.isRoadworksAuto()).append('\n');
+		for (SimEvent event : events.getScenario()) {
+			text.append("event=").append(event.getType()).append(',')
+					.append(event.getStartDay()).append(',').append(event.getEndDay())
+					.append(',').append(event.getLocation()).append(',')
+					.append(event.getSeverity()).append('\n');
+		}
+
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			byte hash[] = sha.digest(text.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : hash) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// (Every Java platform must support SHA-256)
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Cached results for a key, from memory or disk
+	 *
+	 * @return longest cached run, or null if none
+	 */
+	public synchronized SimCheckpoint get(String key) {
+		SimCheckpoint checkpoint = memory.get(key);
+		if (checkpoint != null || dir == null)
+			return checkpoint;
+
+		File file = new File(dir, key + FILE_SUFFIX);
+		if (!file.isFile())
+			return null;
+		try {
+			ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(
+					new BufferedInputStream(new FileInputStream(file))));
+			try {
+				checkpoint = (SimCheckpoint) in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			// Unreadable (e.g. from an older version), so just forget it
+			file.delete();
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		putInMemory(key, checkpoint);
+		return checkpoint;
+	}
+
+	/**
+	 * Cache results for a key (unless a longer run is already cached)
+	 */
+	public synchronized void put(String key, SimCheckpoint checkpoint) {
+		SimCheckpoint existing = memory.get(key);
+		if (existing != null && existing.getDays() >= checkpoint.getDays())
+			return;
+		putInMemory(key, checkpoint);
+
+		if (dir != null) {
+			try {
+				writeFile(key, checkpoint);
+				trimDisk();
+			} catch (IOException e) {
+				// Disk cache is only an optimisation, so carry on without it
+				new File(dir, key + FILE_SUFFIX).delete();
+			}
+		}
+	}
+
+	private void putInMemory(String key, SimCheckpoint checkpoint) {
+		SimCheckpoint old = memory.put(key, checkpoint);
+		if (old != null) {
+			memoryBytes -= old.estimateBytes();
+		}
+		memoryBytes += checkpoint.estimateBytes();
+
+		// Drop least recently used (but always keep the newest)
+		Iterator<SimCheckpoint> it = memory.values().iterator();
+		while (memoryBytes > maxMemoryBytes && memory.size() > 1) {
+			memoryBytes -= it.next().estimateBytes();
+			it.remove();
+		}
+	}
+
+	private void writeFile(String key, SimCheckpoint checkpoint) throws IOException {
+		// Write to a temporary file first, so a partly written file is never read
+		File temp = new File(dir, key + ".tmp");
+		ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp))));
+		try {
+			out.writeObject(checkpoint);
+		} finally {
+			out.close();
+		}
+		File file = new File(dir, key + FILE_SUFFIX);
+		file.delete();
+		if (!temp.renameTo(file))
+			throw new IOException("cannot rename " + temp);
+	}
+
+	/**
+	 * Delete the least recently used files until within the disk size limit
+	 */
+	private void trimDisk() {
+		File files[] = dir.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().endsWith(FILE_SUFFIX);
+			}
+		});
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = b.lastModified() - a.lastModified();
+				return (diff > 0) ? 1 : ((diff == 0) ? 0 : -1);
+			}
+		});
+		long total = 0;
+		for (File file : files) {
+			total += file.length();
+			if (total > maxDiskBytes) {
+				file.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Classname: RoadCongestion
+ */
+
+package commuterSim;
+
+/**
+ * Congestion along the commuting road, segment by segment (in each
+ * direction), for each departure time slot. Each segment carries the cars
+ * of every origin-destination pair whose journey uses it (with everyone
+ * going to the work area, the cars from its location and every location
+ * further out). Each segment's delay comes from the BPR volume-delay
+ * function, t / t0 = 1 + 0.15 (v / c)^4, and the congestion felt on a
+ * pair's journey is the mean delay over the segments it uses, standardised
+ * so that a journey at capacity all the way scores 1.0.
+ * <p>
+ * Congestion can also be moved part way towards that from new volumes
+ * (the method of successive averages), for iterating within a day to
+ * the point where nobody would choose differently given the congestion
+ * everyone else's choices cause (a user equilibrium).
+ */
+public class RoadCongestion {
+
+	/**
+	 * Highest standardised congestion (so that cost factors saturate as
+	 * with the total cars model, rather than growing without limit)
+	 */
+	private static final double MAX_CONGESTION = 2.0;
+
+	private final ODMatrix od;
+	private final int pairs;
+
+	/**
+	 * Congestion felt on each pair's journey, indexed [slot * pairs + pair]
+	 */
+	private final double congestion[];
+
+	/**
+	 * Cars each segment carries at capacity, per departure time slot
+	 */
+	private final double slotCapacity;
+
+	/**
+	 * Working arrays for cars then delay on each segment, in towards the
+	 * work area and out from it
+	 */
+	private final double inbound[];
+	private final double outbound[];
+
+	/**
+	 * Initialisation (Constructor function)
+	 *
+	 * @param od				where commuters travel
+	 * @param totalLocations	number of residential locations (and road segments)
+	 * @param departureSlots	number of departure time slots
+	 * @param dailyCapacity		cars each segment carries at capacity over
+	 * 							the whole day
+	 */
+	public RoadCongestion(ODMatrix od, int totalLocations, int departureSlots,
+			double dailyCapacity) {
+		this.od = od;
+		pairs = od.getPairCount();
+		congestion = new double[departureSlots * pairs];
+		slotCapacity = dailyCapacity / departureSlots;
+		inbound = new double[totalLocations];
+		outbound = new double[totalLocations];
+	}
+
+	/**
+	 * Set congestion from the cars on each pair's journey in each slot
+	 *
+	 * @param slotCars		cars by [slot * pairs + pair]
+	 */
+	public void update(double slotCars[]) {
+		for (int j = 0; j < congestion.length; j += pairs) {
+			congestionFrom(slotCars, j, 1.0);
+		}
+	}
+
+	/**
+	 * Move congestion towards that from the cars on each pair's journey in
+	 * each slot, by 1 / (iteration + 1) of the way. (So the
+	 * congestion at the start of the day counts as the first iterate, and
+	 * each later one has the same weight.)
+	 *
+	 * @param slotCars		cars by [slot * pairs + pair]
+	 * @param iteration		iterations so far today (1, 2, ...)
+	 */
+	public void average(double slotCars[], int iteration) {
+		for (int j = 0; j < congestion.length; j += pairs) {
+			congestionFrom(slotCars, j, 1.0 / (iteration + 1));
+		}
+	}
+
+	/**
+	 * Congestion if every location sent the given number of cars, shared
+	 * between its pairs by demand and spread evenly over the departure time
+	 * slots (for before there are any actual volumes)
+	 *
+	 * @param carsByLoc		cars setting off from each location
+	 */
+	public void estimate(double carsByLoc[]) {
+		int departureSlots = congestion.length / pairs;
+		double slotCars[] = new double[congestion.length];
+		for (int j = 0; j < slotCars.length; j++) {
+			int pair = j % pairs;
+			slotCars[j] = carsByLoc[od.getOrigin(pair)] * od.getShare(pair) / departureSlots;
+		}
+		update(slotCars);
+	}
+
+	/**
+	 * Table (valid until next update) indexed [slot * pairs + pair]
+	 */
+	public double[] getCongestion() {
+		return congestion;
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Move one slot's congestion (from base to base + pairs - 1) by step of
+	 * the way towards that from its volumes.
+	 */
+	private void congestionFrom(double slotCars[], int base, double step) {
+
+		// Cars on each segment, then the BPR delay on it relative to that at
+		// capacity, (v / c)^4, totalled from the work area outwards
+		od.segmentCars(slotCars, base, inbound, outbound);
+		for (int s = 0; s < inbound.length; s++) {
+			inbound[s] = delay(inbound[s]);
+			outbound[s] = delay(outbound[s]);
+		}
+		ODMatrix.runningTotals(inbound);
+		ODMatrix.runningTotals(outbound);
+
+		// Mean delay over each journey (none within a location)
+		for (int r = 0; r < pairs; r++) {
+			int segments = od.getJourneySegments(r);
+			double target = (segments > 0) ? od.journeySum(r, inbound, outbound) / segments : 0.0;
+			target = (target > MAX_CONGESTION) ? MAX_CONGESTION : target;
+			congestion[base + r] += step * (target - congestion[base + r]);
+		}
+	}
+
+	private double delay(double segmentCars) {
+		double loading = segmentCars / slotCapacity;
+		loading *= loading;
+		return loading * loading;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Classname: RoadworksIndex
+ */
+
+package commuterSim;
+
+/**
+ * Roadworks penalty at each residential location, summed over all active
+ * roadworks. Roadworks at a location affect the interval of locations from
+ * there out to the far end of the road (everyone commuting past them), so
+ * the penalties are accumulated as a difference array and turned into
+ * per-location totals with a single prefix sum.
+ * <p>
+ * Only rebuilt when the set of active roadworks changes, so the simulator
+ * just reads one value per location each day.
+ */
+public class RoadworksIndex {
+
+	/**
+	 * Change in total severity from the previous location to this one
+	 */
+	private final float severityDelta[];
+
+	/**
+	 * Total severity of roadworks affecting commuters from each location
+	 */
+	private final float penaltyByLoc[];
+
+	/**
+	 * Number of roadworks currently included
+	 */
+	private int activeCount = 0;
+
+	/**
+	 * Whether penaltyByLoc needs rebuilding before it is next read
+	 */
+	private boolean stale = false;
+
+	/**
+	 * Initialisation (Constructor function)
+	 *
+	 * @param totalLocations	number of residential locations
+	 */
+	public RoadworksIndex(int totalLocations) {
+		severityDelta = new float[totalLocations];
+		penaltyByLoc = new float[totalLocations];
+	}
+
+	/**
+	 * Include roadworks in the index
+	 */
+	public void add(SimEvent roadworks) {
+		severityDelta[roadworks.getLocation()] += roadworks.getSeverity();
+		activeCount++;
+		stale = true;
+	}
+
+	/**
+	 * Remove roadworks from the index
+	 */
+	public void remove(SimEvent roadworks) {
+		severityDelta[roadworks.getLocation()] -= roadworks.getSeverity();
+		activeCount--;
+		stale = true;
+	}
+
+	/**
+	 * Remove all roadworks
+	 */
+	public void clear() {
+		for (int i = 0; i < severityDelta.length; i++) {
+			severityDelta[i] = 0.0f;
+		}
+		activeCount = 0;
+		stale = true;
+	}
+
+	/**
+	 * Number of roadworks in progress anywhere
+	 */
+	public int getActiveCount() {
+		return activeCount;
+	}
+
+	/**
+	 * Total roadworks severity affecting commuters from each location
+	 * (0.0 = unaffected). The returned array is owned by the index and is
+	 * only valid until roadworks are next added or removed.
+	 */
+	public float[] getPenaltyByLoc() {
+		if (stale) {
+			float sum = 0.0f;
+			for (int i = 0; i < penaltyByLoc.length; i++) {
+				sum += severityDelta[i];
+
+				// Guard against rounding leaving a tiny residue once all removed
+				penaltyByLoc[i] = (activeCount == 0) ? 0.0f : sum;
+			}
+			stale = false;
+		}
+		return penaltyByLoc;
+	}
+}
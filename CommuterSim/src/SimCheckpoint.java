@@ -0,0 +1,200 @@
+/*
+ * Classname: SimCheckpoint
+ */
+
+package commuterSim;
+
+import java.io.Serializable;
+
+/**
+ * Everything needed to carry on a simulation from the end of a given day
+ * (see SimEngine.checkpoint() and SimEngine.restore()), together with the
+ * daily results up to that day. Arrays are private copies and are never
+ * modified once the checkpoint has been made.
+ */
+public final class SimCheckpoint implements Serializable {
+
+	private static final long serialVersionUID = 7L;
+
+	/**
+	 * Number of days simulated
+	 */
+	final int days;
+
+	/**
+	 * Per person (P) state
+	 */
+	final float carPreference[];
+	final byte departSlot[];
+
+	/**
+	 * Per person (P) share of car use on the last day, seen by their social
+	 * network the next day (null if there is no social network)
+	 */
+	final float carShares[];
+
+	/**
+	 * Congestion by [slot * pairs + pair], for the engine's origin-destination
+	 * pairs (see ODMatrix)
+	 */
+	final double slotCongestion[];
+
+	/**
+	 * Congestion from road segments felt on each pair's journey, same
+	 * indexing (null if not in use)
+	 */
+	final double roadCongestion[];
+
+	/**
+	 * Moving average of total cars at the end of the last day
+	 */
+	final double totalCarsAv;
+
+	/**
+	 * Steady state detection state (see SimEngine.checkSteadyState())
+	 */
+	final int steadyDays;
+	final double lastCarCommuters[];
+	final double lastTotalCarsAv;
+	final boolean finished;
+	final int steadyUntil;
+
+	/**
+	 * Saved EventScheduler state (see EventScheduler.saveState())
+	 */
+	final byte eventState[];
+
+	/**
+	 * Daily results, indexed by day (0 .. days - 1)
+	 */
+	private final int carTotals[];
+	private final int bikeTotals[];
+	private final double totalCarsAvs[];
+	private final boolean rain[];
+	private final boolean roadworks[];
+	private final float carsByLocation[];
+
+	/**
+	 * Residents at each location
+	 */
+	private final int residentsByLoc[];
+
+	SimCheckpoint(int days, float carPreference[], byte departSlot[],
+			float carShares[], double slotCongestion[], double roadCongestion[],
+			double totalCarsAv, int steadyDays, double lastCarCommuters[],
+			double lastTotalCarsAv, boolean finished, int steadyUntil,
+			byte eventState[], int carTotals[], int bikeTotals[], double totalCarsAvs[],
+			boolean rain[], boolean roadworks[], float carsByLocation[],
+			int residentsByLoc[]) {
+		this.days = days;
+		this.carPreference = carPreference;
+		this.departSlot = departSlot;
+		this.carShares = carShares;
+		this.slotCongestion = slotCongestion;
+		this.roadCongestion = roadCongestion;
+		this.totalCarsAv = totalCarsAv;
+		this.steadyDays = steadyDays;
+		this.lastCarCommuters = lastCarCommuters;
+		this.lastTotalCarsAv = lastTotalCarsAv;
+		this.finished = finished;
+		this.steadyUntil = steadyUntil;
+		this.eventState = eventState;
+		this.carTotals = carTotals;
+		this.bikeTotals = bikeTotals;
+		this.totalCarsAvs = totalCarsAvs;
+		this.rain = rain;
+		this.roadworks = roadworks;
+		this.carsByLocation = carsByLocation;
+		this.residentsByLoc = residentsByLoc;
+	}
+
+	public int getDays() {
+		return days;
+	}
+
+	/**
+	 * Was the simulation stopped early at a steady state? (If so nothing
+	 * changes before getSteadyUntil(), so a run of up to that many days
+	 * would stop at the same point).
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * First day on which anything could disturb the steady state the
+	 * simulation stopped at (SimEvent.OPEN_ENDED if nothing ever could)
+	 */
+	public int getSteadyUntil() {
+		return steadyUntil;
+	}
+
+	/**
+	 * Are these the complete results of a run of the given number of days?
+	 * (Either that many days were simulated, or the simulation stopped
+	 * early at a steady state that lasts at least that long).
+	 */
+	public boolean isComplete(int maxSimDays) {
+		return days >= maxSimDays || (finished && steadyUntil >= maxSimDays);
+	}
+
+	public int getTotalPopulation() {
+		return carPreference.length;
+	}
+
+	/**
+	 * Residents at each location (do not modify)
+	 */
+	public int[] getResidentsByLocation() {
+		return residentsByLoc;
+	}
+
+	/**
+	 * Car commuters at each location on the last day simulated (summing
+	 * fuzzy fractional values; do not modify)
+	 */
+	public double[] getLastCarsByLocation() {
+		return lastCarCommuters;
+	}
+
+	/**
+	 * Daily results (do not modify)
+	 */
+	public int[] getCarTotalsHistory() {
+		return carTotals;
+	}
+
+	public int[] getBikeTotalsHistory() {
+		return bikeTotals;
+	}
+
+	public double[] getTotalCarsAvHistory() {
+		return totalCarsAvs;
+	}
+
+	public boolean[] getRainHistory() {
+		return rain;
+	}
+
+	public boolean[] getRoadworksHistory() {
+		return roadworks;
+	}
+
+	/**
+	 * Car commuters by location each day, indexed [day * TOTAL_LOCATIONS
+	 * + location] (summing fuzzy fractional values)
+	 */
+	public float[] getCarsByLocationHistory() {
+		return carsByLocation;
+	}
+
+	/**
+	 * Approximate memory used (bytes)
+	 */
+	public long estimateBytes() {
+		return 5L * carPreference.length + 8L * slotCongestion.length + eventState.length
+				+ ((carShares == null) ? 0L : 4L * carShares.length)
+				+ ((roadCongestion == null) ? 0L : 8L * roadCongestion.length)
+				+ (22L + 4L * SimEngine.TOTAL_LOCATIONS) * days + 256;
+	}
+}
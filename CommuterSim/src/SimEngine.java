@@ -0,0 +1,1741 @@
+/*
+ * Classname: SimEngine
+ */
+
+package commuterSim;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The core of the simulation engine. Holds all simulation state and steps
+ * it on day by day, without any user interface (so it can be driven either
+ * from the Simulator tab or headlessly from the command line - see
+ * BatchRun). Deliberately uses no Swing/AWT classes.
+ */
+public class SimEngine {
+
+	/**
+	 * Number of residential centres along the commuting road
+	 */
+	public static final int TOTAL_LOCATIONS = 10;
+	
+	/**
+	 * Number of days to average congestion over
+	 */
+	private static final int CONGESTION_AVERAGING_TIME = 5;
+	
+	/**
+	 * Residents at each location
+	 */
+	private int residentsByLoc[] = new int[TOTAL_LOCATIONS];
+	
+	/**
+	 * Zones the population is synthesised from, or null for the same number
+	 * of residents at every location (Prefs.getPopulationPerLoc())
+	 */
+	private ZoneTable zones = null;
+	
+	/**
+	 * Everyone commuting to the work area, the journeys made unless an
+	 * origin-destination matrix is given
+	 */
+	private static final ODMatrix TO_WORK_AREA = ODMatrix.toWorkArea(TOTAL_LOCATIONS);
+	
+	/**
+	 * Origin-destination matrix set for the next initSim(), or null
+	 */
+	private ODMatrix odMatrix = null;
+	
+	/**
+	 * Journeys commuters make, and the number of origin-destination pairs
+	 * (tables of anything the same for everyone making the same journey
+	 * at the same time are indexed [slot * pairs + pair])
+	 */
+	private ODMatrix od = TO_WORK_AREA;
+	private int pairs = TOTAL_LOCATIONS;
+	
+	/**
+	 * Accumulated cars on road adjacent to this location (today + last few days).
+	 * Allows us to smooth congestion using a "moving averager" function.
+	 */
+	private int carsAccumByLoc[][] = new int[TOTAL_LOCATIONS][CONGESTION_AVERAGING_TIME];
+
+   /**
+    * Population summed over all locations
+    */
+   private int totalPopulation = 1;
+
+   /**
+    * Residential location indexed by person (P). Locations are interleaved
+    * (person P lives at location P % TOTAL_LOCATIONS), so the population
+    * can grow or shrink at the end without moving anyone else; or if the
+    * population comes from a ZoneTable, people are numbered zone by zone.
+    */
+   private byte homeLocation[];
+
+ 	/**
+	 * Individual preference strength for Car (+1.0) or Bike (-1.0) indexed
+	 * by person (P). Adapts day by day to the conditions each person
+	 * experiences (see Prefs.getHabitLearningRate()).
+	 */
+	private float carPreference[];
+	
+	/**
+	 * Departure time slot chosen by person (P)
+	 */
+	private byte departSlot[];
+	
+	/**
+	 * Origin-destination pair by person (P), or null if everyone commutes
+	 * to the work area (when each person's pair is their home location)
+	 */
+	private byte odPair[];
+	
+	/**
+	 * Seed for all random numbers drawn for individual people
+	 * (see AgentRandom)
+	 */
+	private long populationSeed;
+	
+	/**
+	 * Number of departure time slots each day (1 = everyone travels at once)
+	 */
+	private int departureSlots = 1;
+	
+	/**
+	 * Most days allowed (so that results by day and location, for every day
+	 * and the one after, fit in one array)
+	 */
+	static final int MAX_SIM_DAYS = Integer.MAX_VALUE / TOTAL_LOCATIONS - 1;
+
+	/**
+	 * Most departure time slots allowed (so a slot fits in a byte per person)
+	 */
+	static final int MAX_DEPARTURE_SLOTS = 100;
+	
+	/**
+	 * Largest average social network size allowed
+	 */
+	static final int MAX_SOCIAL_NEIGHBOURS = 1000;
+	
+	/**
+	 * Most rounds of decisions each day (see Prefs.getCongestionIterations())
+	 */
+	static final int MAX_CONGESTION_ITERATIONS = 50;
+	
+	/**
+	 * Social network (null if there is no social influence), in compressed
+	 * sparse row form: the people (P) in person Q's network are
+	 * networkPeople[networkOffsets[Q] .. networkOffsets[Q + 1] - 1]
+	 */
+	private int networkOffsets[];
+	private int networkPeople[];
+	
+	/**
+	 * Each person's (P) share of car use yesterday, read by the people whose
+	 * network they are in, and today, written as each person decides. The
+	 * two are swapped after each day's decisions, so everyone is influenced
+	 * by the same day's choices whatever order they decide in.
+	 */
+	private float carShareYesterday[];
+	private float carShareToday[];
+	
+	/**
+	 * Log of everyone's decisions each day, or null, and each person's (P)
+	 * share of car use today for it (null unless logging)
+	 */
+	private TripLog tripLog = null;
+	private float tripShares[];
+	
+	/**
+	 * Cars on the road in each departure time slot relative to the daily
+	 * average, over each origin-destination pair's journey (from
+	 * yesterday). Indexed by [slot * pairs + pair].
+	 */
+	private double slotCongestion[];
+	
+	/**
+	 * Working arrays for calculating slotCongestion (same indexing)
+	 */
+	private double slotCarsByPair[];
+	private double slotJourneyCars[];
+	
+	/**
+	 * Working arrays for cars on each road segment, in towards the work area
+	 * and out from it
+	 */
+	private final double segmentCarsIn[] = new double[TOTAL_LOCATIONS];
+	private final double segmentCarsOut[] = new double[TOTAL_LOCATIONS];
+	
+	/**
+	 * Congestion by road segment, used instead of total cars and
+	 * slotCongestion if Prefs gives a road capacity (otherwise null)
+	 */
+	private RoadCongestion roadCongestion;
+	
+	/**
+	 * Are the decisions being made a trial round, only to find the road
+	 * congestion they would cause? (If so nobody's state is changed).
+	 */
+	private boolean trialRound = false;
+	
+	/**
+	 * Incremented whenever slotCongestion or roadCongestion changes
+	 */
+	private int slotCongestionVersion = 0;
+	
+	/**
+	 * Car vs bike cost factors common to each (slot, origin-destination pair)
+	 */
+	private LocationCostTable costTable;
+	
+	/**
+	 * Weights for each mode of transport in the multi-mode choice model
+	 */
+	private ModeParams modeParamsInst = new ModeParams();
+	
+	/**
+	 * Multi-mode (car, bike, bus, walk) choice model, or null to use the
+	 * original car vs bike model
+	 */
+	private ModeChoiceModel modeChoice = null;
+	
+	/**
+	 * Commuters by each mode of transport today (multi-mode choice only)
+	 */
+	private double modeTotalsToday[] = new double[ModeParams.TOTAL_MODES];
+	
+	
+	//-------------------------------------------------------------------------|
+	
+	/**
+	 * Number of working days since start of simulation
+	 */
+	private int simDay;
+
+	/**
+	 * Moving average of number of total cars
+	 */
+	private double totalCarsAv;
+	
+	/**
+	 * Is it (bad weather) today?
+	 */
+	private boolean rainToday = false;
+	
+	/**
+	 * Recording of bad weather events
+	 */
+	private boolean rainHistory[];
+	
+	/**
+	 * Do roadworks exist (anywhere) today?
+	 */
+	private boolean roadworksToday = false;
+	
+	/**
+	 * Combined severity of roadworks on each origin-destination pair's
+	 * journey (from all roadworks on the road segments it uses).
+	 */
+	private float roadworksPenaltyByPair[] = new float[TOTAL_LOCATIONS];
+	
+	/**
+	 * Incremented whenever the bad weather or roadworks change
+	 */
+	private int eventStateVersion = 0;
+	
+	/**
+	 * Scheduler of (manual, automatic and pre-scheduled) bad weather
+	 * and roadworks events. Any number of roadworks may be active at once.
+	 */
+	private EventScheduler eventScheduler;
+	
+	
+	/**
+	 * Recording of roadworks events
+	 */
+	private boolean roadworksHistory[];
+
+	/**
+	 * Car commute totals at every step of sim
+	 */
+	private int carTotalsHistory[];
+
+	/**
+	 * Car commute totals (Averaged) at every step of sim
+	 */
+	private double totalCarsAvHistory[];
+
+	/**
+	 * Bike commute totals at every step of sim
+	 */
+	private int bikeTotalsHistory[];	
+
+	/**
+	 * Car commuters by location at every step of sim (summing fuzzy
+	 * fractional values), indexed [day * TOTAL_LOCATIONS + location]
+	 */
+	private float carsByLocationHistory[];
+
+	/**
+	 * Ideal car commuters per location today (summing fuzzy fractional values)
+	 */
+	private double idealCarCommuters[] = new double[TOTAL_LOCATIONS];
+
+	/**
+	 * Totals across whole population today
+	 */
+	private int carTotalToday = 0;
+	private int bikeTotalToday = 0;
+
+	/**
+	 * Number of days the history arrays can hold
+	 */
+	private int maxSimDays;
+
+	/**
+	 * Steady state detection (see Prefs.getSteadyStateTolerance()):
+	 * number of steady days in a row so far, and yesterday's values
+	 * (and parameter/event versions) to compare today's with
+	 */
+	private int steadyDays = 0;
+	private double lastCarCommuters[] = new double[TOTAL_LOCATIONS];
+	private double lastTotalCarsAv;
+	private long lastParamsVersion;
+	private int lastEventStateVersion;
+
+	/**
+	 * Set once the simulation has settled down with nothing to change it
+	 * before maxSimDays (if set to stop early rather than fast-forward),
+	 * and the first day anything could change it (the next event boundary,
+	 * SimEvent.OPEN_ENDED if there are no events to come at all)
+	 */
+	private boolean finished = false;
+	private int steadyUntil = 0;
+
+	
+	/**
+	 * Smallest population chunk worth handing to a separate worker thread
+	 */
+	private static final int MIN_PEOPLE_PER_WORKER = 20000;
+	
+	/**
+	 * Worker threads sharing each day's decisions, shared by all engines
+	 * (created when first needed)
+	 */
+	private static WorkerPool workerPool = null;
+	
+	/**
+	 * Number of chunks the population is split into, one per worker
+	 */
+	private int workerCount = 1;
+	
+	/**
+	 * Tasks deciding each chunk of the population, created once and reused
+	 * every day
+	 */
+	private Runnable decisionChunks[];
+	
+	/**
+	 * Reusable wrappers handing chunks (other than the first) to worker
+	 * threads, see runChunks()
+	 */
+	private ChunkTask chunkTasks[];
+	
+	/**
+	 * Chunks handed to worker threads and not yet done, the thread to wake
+	 * when they are all done and any failure in a worker
+	 */
+	private final AtomicInteger chunksPending = new AtomicInteger();
+	private volatile Thread steppingThread;
+	private volatile RuntimeException chunkFailure;
+	
+	/**
+	 * Partial sums from each worker (one stripe per worker, merged after
+	 * each day's decisions so workers never write to shared counts)
+	 */
+	private double idealCarStripes[][];
+	private double slotCarStripes[][];
+	private double invDenominatorStripes[][];
+	private double sumFavourStripes[];
+	
+	/**
+	 * Inputs to today's decisions, common to all workers
+	 * (set by step() before the decisions are made)
+	 */
+	private ParamSnapshot params;
+	private float habitRate;
+	private double slotDelayWeight;
+	private double slotRevisionProb;
+	private double stdTotalCarsAv;
+	
+	/**
+	 * Handle to access config vars from preferences instance
+	 */
+	private Prefs prefInstance;
+	private ModelParams modelParamsInst;
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Initialisation (Constructor function). Call initSim() before use.
+	 */
+	public SimEngine(ModelParams modelParams, Prefs prefs) {
+		prefInstance = prefs;
+		modelParamsInst = modelParams;
+		eventScheduler = new EventScheduler(prefs, TOTAL_LOCATIONS);
+	}
+
+	//-------------------------------------------------------------------------|
+	// Accessor Methods
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Accessor for the weights used by the multi-mode choice model
+	 */
+	public ModeParams getModeParams() {
+		return modeParamsInst;
+	}
+
+	/**
+	 * Accessor for the weather/roadworks event scheduler (e.g. to
+	 * pre-schedule a scenario of events)
+	 */
+	public EventScheduler getEventScheduler() {
+		return eventScheduler;
+	}
+
+	/**
+	 * Number of days simulated so far (i.e. index of next day to simulate)
+	 */
+	public int getSimDay() {
+		return simDay;
+	}
+
+	/**
+	 * Maximum number of days the simulation can run to
+	 */
+	public int getMaxSimDays() {
+		return maxSimDays;
+	}
+
+	public int getTotalPopulation() {
+		return totalPopulation;
+	}
+
+	/**
+	 * Residents at each location (do not modify)
+	 */
+	public int[] getResidentsByLocation() {
+		return residentsByLoc;
+	}
+
+	/**
+	 * Synthesise the population from zones (from the next initSim()), or
+	 * with null from Prefs.getPopulationPerLoc() again
+	 */
+	public void setZoneTable(ZoneTable zones) {
+		this.zones = zones;
+	}
+
+	public ZoneTable getZoneTable() {
+		return zones;
+	}
+
+	/**
+	 * Send commuters on the journeys in an origin-destination matrix (from
+	 * the next initSim()), or with null all to the work area again
+	 */
+	public void setODMatrix(ODMatrix odMatrix) {
+		this.odMatrix = odMatrix;
+	}
+
+	public ODMatrix getODMatrix() {
+		return odMatrix;
+	}
+
+	/**
+	 * Log everyone's decisions each day from now on (or with null stop).
+	 * The caller closes the log.
+	 */
+	public void setTripLog(TripLog tripLog) {
+		this.tripLog = tripLog;
+		tripShares = null;
+	}
+
+	public boolean isRaining() {
+		return rainToday;
+	}
+
+	public boolean isRoadworks() {
+		return roadworksToday;
+	}
+
+	public boolean isMultiMode() {
+		return modeChoice != null;
+	}
+
+	/**
+	 * Car commuters at each location on the last day simulated (summing
+	 * fuzzy fractional values). Overwritten by the next step.
+	 */
+	public double[] getIdealCarCommuters() {
+		return idealCarCommuters;
+	}
+
+	/**
+	 * Commuters by each mode on the last day simulated (multi-mode choice
+	 * only). Overwritten by the next step.
+	 */
+	public double[] getModeTotalsToday() {
+		return modeTotalsToday;
+	}
+
+	public int getCarTotalToday() {
+		return carTotalToday;
+	}
+
+	public int getBikeTotalToday() {
+		return bikeTotalToday;
+	}
+
+	/**
+	 * Has the simulation been stopped early at a steady state?
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Histories indexed by day (valid up to getSimDay() - 1)
+	 */
+	public int[] getCarTotalsHistory() {
+		return carTotalsHistory;
+	}
+
+	public int[] getBikeTotalsHistory() {
+		return bikeTotalsHistory;
+	}
+
+	public double[] getTotalCarsAvHistory() {
+		return totalCarsAvHistory;
+	}
+
+	public boolean[] getRainHistory() {
+		return rainHistory;
+	}
+
+	public boolean[] getRoadworksHistory() {
+		return roadworksHistory;
+	}
+
+	/**
+	 * Indexed [day * TOTAL_LOCATIONS + location]
+	 */
+	public float[] getCarsByLocationHistory() {
+		return carsByLocationHistory;
+	}
+
+	//-------------------------------------------------------------------------|
+	// Weather and roadworks controls
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Start (or end) bad weather from today until ended again
+	 */
+	public void setRain(boolean on) {
+		if (on) {
+			eventScheduler.startOpenEnded(SimEvent.Type.RAIN, simDay, 0);
+		} else {
+			eventScheduler.endAllActive(SimEvent.Type.RAIN);
+		}
+		updateEventState();
+	}
+
+	/**
+	 * Start roadworks at a random location from today until ended again
+	 * (or end all roadworks)
+	 */
+	public void setRoadworks(boolean on) {
+		if (on) {
+			int location = (int)(eventScheduler.getRandom().nextDouble() * TOTAL_LOCATIONS);
+			eventScheduler.startOpenEnded(SimEvent.Type.ROADWORKS, simDay, location);
+		} else {
+			eventScheduler.endAllActive(SimEvent.Type.ROADWORKS);
+		}
+		updateEventState();
+	}
+
+	/**
+	 * Turn automatic random generation of bad weather on or off
+	 */
+	public void setRainAuto(boolean on) {
+		eventScheduler.setRainAuto(on, simDay);
+	}
+
+	/**
+	 * Turn automatic random generation of roadworks on or off
+	 */
+	public void setRoadworksAuto(boolean on) {
+		eventScheduler.setRoadworksAuto(on, simDay);
+	}
+
+	//-------------------------------------------------------------------------|
+	
+	/**
+	 * (Re-)Initialise all simulator state and randomly regenerate population
+	 * counts per location and their usual modes of transport.
+	 */
+	public void initSim() {
+		
+		maxSimDays = prefInstance.getMaxSimDays();
+		int maxDaysPlus1 = maxSimDays + 1;
+		
+		// (Re-)create all arrays based on max simulation length
+		// (Garbage collection will handle any old ones)
+		rainHistory = new boolean[maxDaysPlus1];
+		roadworksHistory = new boolean[maxDaysPlus1];
+		carTotalsHistory = new int[maxDaysPlus1];
+		bikeTotalsHistory = new int[maxDaysPlus1];
+		totalCarsAvHistory = new double[maxDaysPlus1];
+		carsByLocationHistory = new float[maxDaysPlus1 * TOTAL_LOCATIONS];
+
+		// Set population count for each residential location
+		if (zones != null) {
+			totalPopulation = zones.getTotalPopulation();
+			System.arraycopy(zones.getResidentsByLocation(), 0, residentsByLoc, 0,
+					TOTAL_LOCATIONS);
+		} else {
+			totalPopulation = prefInstance.getPopulationPerLoc() * TOTAL_LOCATIONS;
+			Arrays.fill(residentsByLoc, prefInstance.getPopulationPerLoc());
+		}
+
+		// (Re-)create array of location by person based on population size
+		// (Garbage collection will handle any previous one)
+		homeLocation = new byte[totalPopulation];
+		if (zones != null) {
+			zones.fillHomeLocations(homeLocation);
+		} else {
+			for (int p = 0; p < totalPopulation; p++) {
+				homeLocation[p] = (byte) (p % TOTAL_LOCATIONS);
+			}
+		}
+
+		// (Re-)create arrays of transport modes chosen by individuals (recently)
+		// and their departure times. (Garbage collection will handle any
+		// previous ones). These are filled in by resetSim().
+		carPreference = new float[totalPopulation];
+		departSlot = new byte[totalPopulation];
+		
+		// Journeys made, either all to the work area or from the matrix
+		// (each person's pair is also filled in by resetSim())
+		od = (odMatrix != null) ? odMatrix : TO_WORK_AREA;
+		pairs = od.getPairCount();
+		odPair = od.isToWorkArea() ? null : new byte[totalPopulation];
+		roadworksPenaltyByPair = new float[pairs];
+		costTable = new LocationCostTable(od);
+		
+		// Random numbers for individuals come from a fixed seed if requested,
+		// otherwise a new one. Either way resetSim() will regenerate the same
+		// population each time until re-initialised.
+		populationSeed = prefInstance.getUseRandSeed() ?
+				prefInstance.getRandSeed() : new Random().nextLong();
+		
+		// Set up departure time slots
+		initSlots();
+		
+		// Choose between car and bike only, or between all modes
+		initModeChoice();
+		
+		// Share out each day's work between worker threads
+		initWorkers();
+		
+		// Build each person's social network (if any)
+		carShareYesterday = null;
+		initSocial();
+
+		// Complete initialisation by chaining through to final setup function
+		resetSim();		
+	}
+
+	/**
+	 * (Re-)set simulator time to day 0. Ensure that if only setup function is
+	 * called that the initial simulation setup is exactly the same as the last
+	 * time (including rand seed if specified in configuration preferences)
+	 */
+	public void resetSim() {
+
+		// Reset simulator state for day 0
+		simDay = 0;
+		steadyDays = 0;
+		finished = false;
+		steadyUntil = 0;
+		
+		// (Re-)generate (random) usual mode of transport for each commuter
+		initPeople(0, totalPopulation);
+		if (networkOffsets != null) {
+			for (int p = 0; p < totalPopulation; p++) {
+				carShareYesterday[p] = (carPreference[p] + 1.0f) / 2.0f;
+			}
+		}
+		
+		// No history of congestion by departure time yet
+		for (int j = 0; j < slotCongestion.length; j++) {
+			slotCongestion[j] = 1.0;
+		}
+		slotCongestionVersion++;
+		
+		// Restart event scheduling (seeded if requested in Prefs), clearing
+		// any bad weather or roadworks 
+		eventScheduler.reset(prefInstance.getUseRandSeed(), prefInstance.getRandSeed());
+		updateEventState();
+		
+		// At day 0, assume average cars goes with global preference
+		// (or car ownership)
+		double initCarProb = (zones != null) ? zones.getMeanCarOwnership()
+				: prefInstance.getInitCarProb();
+		totalCarsAv = initCarProb * totalPopulation;
+		
+		// Road congestion from that many cars until there are actual ones
+		initRoadCongestion();
+
+		// Reset accumulated cars on road adjacent to this location
+		// over the "last few days". (This will erroneously make average
+		// congestion look very low at the start of the simulation).
+		for (int i = 0; i < TOTAL_LOCATIONS; i++) {
+			for (int j = 0; j < CONGESTION_AVERAGING_TIME; j++) {
+				carsAccumByLoc[i][j] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Randomly generate the initial state of a range of people
+	 * 
+	 * @param from		first person (P)
+	 * @param to		last person (P) + 1
+	 */
+	private void initPeople(int from, int to) {
+		
+		// Get probabilities of preference for each mode of transport
+		// (from each zone's car ownership if the population comes from zones)
+		double initCarProb = prefInstance.getInitCarProb();
+		int zone = 0;
+		int zoneEnd = to;
+		if (zones != null && from < to) {
+			zone = zones.getZone(from);
+			zoneEnd = zones.getFirstPerson(zone + 1);
+			initCarProb = zones.getCarOwnership(zone);
+		}
+
+		// For each person randomly select a preferred mode of transport to
+		// start with, based on probabilities of each mode. Everyone initially
+		// sets off in the peak (middle) departure time slot.
+		byte peakSlot = (byte) (departureSlots / 2);
+		for (int p = from; p < to; p++) {
+			while (p >= zoneEnd) {
+				zone++;
+				zoneEnd = zones.getFirstPerson(zone + 1);
+				initCarProb = zones.getCarOwnership(zone);
+			}
+			double rnd01 = AgentRandom.uniform(populationSeed, p, 0,
+					AgentRandom.STREAM_INIT_PREFERENCE);
+			if (rnd01 < initCarProb) {
+				carPreference[p] = 1.0f;
+			}
+			else {
+				carPreference[p] = -1.0f;
+			}
+			departSlot[p] = peakSlot;
+			if (odPair != null) {
+				odPair[p] = (byte) od.choosePair(homeLocation[p], AgentRandom.uniform(
+						populationSeed, p, 0, AgentRandom.STREAM_OD_PAIR));
+			}
+		}
+	}
+
+	/**
+	 * Grow or shrink the population to the size per location in Prefs,
+	 * without disturbing anyone who stays. As locations are interleaved,
+	 * people are simply added or removed at the end (the same number at
+	 * each location). New people get the same initial state (and random
+	 * number streams) they would have had from initSim().
+	 */
+	private void resizePopulation() {
+		int oldPopulation = totalPopulation;
+		totalPopulation = prefInstance.getPopulationPerLoc() * TOTAL_LOCATIONS;
+		Arrays.fill(residentsByLoc, prefInstance.getPopulationPerLoc());
+		
+		homeLocation = Arrays.copyOf(homeLocation, totalPopulation);
+		carPreference = Arrays.copyOf(carPreference, totalPopulation);
+		departSlot = Arrays.copyOf(departSlot, totalPopulation);
+		if (odPair != null) {
+			odPair = Arrays.copyOf(odPair, totalPopulation);
+		}
+		for (int p = oldPopulation; p < totalPopulation; p++) {
+			homeLocation[p] = (byte) (p % TOTAL_LOCATIONS);
+		}
+		initPeople(oldPopulation, totalPopulation);
+		
+		// Keep congestion at the same level relative to the population size
+		totalCarsAv = totalCarsAv * totalPopulation / oldPopulation;
+		initRoadCongestion();
+		
+		// Re-divide the work between worker threads
+		initWorkers();
+		
+		// Rebuild the social network to include everyone
+		initSocial();
+	}
+
+	/**
+	 * Set up road congestion by segment for the capacity in Prefs (starting
+	 * from the average number of cars spread evenly over the day), or drop
+	 * it if congestion is to come from total cars
+	 */
+	private void initRoadCongestion() {
+		double capacity = prefInstance.getRoadCapacity();
+		if (capacity == 0.0) {
+			roadCongestion = null;
+		} else {
+			roadCongestion = new RoadCongestion(od, TOTAL_LOCATIONS, departureSlots,
+					capacity * totalPopulation);
+			double carsByLoc[] = new double[TOTAL_LOCATIONS];
+			for (int i = 0; i < TOTAL_LOCATIONS; i++) {
+				carsByLoc[i] = totalCarsAv * residentsByLoc[i] / totalPopulation;
+			}
+			roadCongestion.estimate(carsByLoc);
+		}
+		slotCongestionVersion++;
+	}
+	
+	/**
+	 * (Re-)build the social network for the size and locality in Prefs, or
+	 * drop it if there is to be no social influence. Anyone already in the
+	 * population keeps their share of car use yesterday; anyone new starts
+	 * from their individual preference.
+	 */
+	private void initSocial() {
+		int meanSize = prefInstance.getSocialNeighbours();
+		if (meanSize == 0) {
+			networkOffsets = null;
+			networkPeople = null;
+			carShareYesterday = null;
+			carShareToday = null;
+			return;
+		}
+		
+		buildNetwork(meanSize, prefInstance.getSocialLocalShare());
+		
+		int oldPopulation = 0;
+		if (carShareYesterday == null) {
+			carShareYesterday = new float[totalPopulation];
+		} else {
+			oldPopulation = Math.min(carShareYesterday.length, totalPopulation);
+			carShareYesterday = Arrays.copyOf(carShareYesterday, totalPopulation);
+		}
+		for (int p = oldPopulation; p < totalPopulation; p++) {
+			carShareYesterday[p] = (carPreference[p] + 1.0f) / 2.0f;
+		}
+		carShareToday = new float[totalPopulation];
+	}
+	
+	/**
+	 * Build a random social network. Each person's network size is drawn
+	 * uniformly from 1 .. 2 * meanSize - 1, and each member is someone else
+	 * at the same location (with probability localShare) or anyone at all.
+	 * Members are drawn from each person's own random number streams, so the
+	 * network only depends on the population seed, however the work is split
+	 * between worker threads.
+	 * 
+	 * @param meanSize		average network size
+	 * @param localShare	share of network members from the same location
+	 * @throws IllegalArgumentException if the network has too many members
+	 */
+	private void buildNetwork(int meanSize, final double localShare) {
+		final int population = totalPopulation;
+		final long seed = populationSeed;
+		
+		// Where each person's network starts
+		final int offsets[] = new int[population + 1];
+		long edges = 0;
+		for (int p = 0; p < population; p++) {
+			offsets[p] = (int) edges;
+			edges += 1 + (int) (AgentRandom.uniform(seed, p, 0, AgentRandom.STREAM_NETWORK_SIZE)
+					* (2 * meanSize - 1));
+			if (edges > Integer.MAX_VALUE - 8)
+				throw new IllegalArgumentException("social network too large ("
+						+ population + " people with " + meanSize + " neighbours each)");
+		}
+		offsets[population] = (int) edges;
+		
+		// People grouped by location (people at location L are
+		// byLocation[locationStart[L] .. locationStart[L + 1] - 1])
+		final int locationStart[] = new int[TOTAL_LOCATIONS + 1];
+		for (int p = 0; p < population; p++) {
+			locationStart[homeLocation[p] + 1]++;
+		}
+		for (int i = 0; i < TOTAL_LOCATIONS; i++) {
+			locationStart[i + 1] += locationStart[i];
+		}
+		final int byLocation[] = new int[population];
+		int next[] = Arrays.copyOf(locationStart, TOTAL_LOCATIONS);
+		for (int p = 0; p < population; p++) {
+			byLocation[next[homeLocation[p]]++] = p;
+		}
+		
+		// Choose everyone's network members, a chunk of people per worker
+		final int people[] = new int[(int) edges];
+		Runnable chunks[] = new Runnable[workerCount];
+		for (int w = 0; w < workerCount; w++) {
+			final int from = chunkStart(w);
+			final int to = chunkStart(w + 1);
+			chunks[w] = new Runnable() {
+				public void run() {
+					for (int p = from; p < to; p++) {
+						int location = homeLocation[p];
+						int start = locationStart[location];
+						int residents = locationStart[location + 1] - start;
+						for (int e = offsets[p]; e < offsets[p + 1]; e++) {
+							double pick = AgentRandom.uniform(seed, p, e,
+									AgentRandom.STREAM_NETWORK_PERSON);
+							int member;
+							if (residents > 1 && AgentRandom.uniform(seed, p, e,
+									AgentRandom.STREAM_NETWORK_LOCAL) < localShare) {
+								int i = (int) (pick * residents);
+								member = byLocation[start + i];
+								if (member == p) {
+									member = byLocation[start + (i + 1) % residents];
+								}
+							} else {
+								member = (int) (pick * population);
+								if (member == p) {
+									member = (member + 1) % population;
+								}
+							}
+							people[e] = member;
+						}
+					}
+				}
+			};
+		}
+		runChunks(chunks);
+		
+		networkOffsets = offsets;
+		networkPeople = people;
+	}
+
+	/**
+	 * (Re-)create per departure time slot arrays for the number of slots
+	 * in Prefs
+	 */
+	private void initSlots() {
+		departureSlots = prefInstance.getDepartureSlots();
+		departureSlots = (departureSlots < 1) ? 1 : departureSlots;
+		departureSlots = (departureSlots > MAX_DEPARTURE_SLOTS) ? MAX_DEPARTURE_SLOTS
+				: departureSlots;
+		slotCongestion = new double[departureSlots * pairs];
+		slotCarsByPair = new double[departureSlots * pairs];
+		slotJourneyCars = new double[departureSlots * pairs];
+	}
+
+	/**
+	 * Choose between car and bike only, or between all modes, as in Prefs
+	 */
+	private void initModeChoice() {
+		modeChoice = prefInstance.getMultiModeChoice() ?
+				new ModeChoiceModel(modeParamsInst, od) : null;
+	}
+
+	/**
+	 * Apply updated preferences, re-initialising only the parts of the
+	 * simulation whose inputs have actually changed:
+	 * <ul>
+	 * <li> random seed - whole new population (initSim())
+	 * <li> population size - people added or removed at each location
+	 * <li> initial car preference - restart from day 0 (resetSim())
+	 * <li> maximum days - histories resized, keeping results so far
+	 * <li> departure time slots - everyone's slot rescaled to the new number
+	 * <li> multi-mode choice - model switched from the next day
+	 * <li> social network size or locality - network rebuilt
+	 * <li> road capacity - road congestion restarted from average cars
+	 * <li> weather/roadworks probabilities - next automatic events redrawn
+	 * <li> anything else - just used from the next day
+	 * </ul>
+	 * 
+	 * @param updated	new preferences (copied into this engine's Prefs)
+	 * @return short description of what was re-initialised
+	 */
+	public String applyPrefs(Prefs updated) {
+		if (updated.sameAs(prefInstance))
+			return "no changes";
+		Prefs old = new Prefs(prefInstance);
+		prefInstance.copyFrom(updated);
+		
+		if (updated.getUseRandSeed() != old.getUseRandSeed()
+				|| (updated.getUseRandSeed() && updated.getRandSeed() != old.getRandSeed())) {
+			initSim();
+			return "new population generated";
+		}
+		
+		String done = "";
+		if (updated.getPopulationPerLoc() != old.getPopulationPerLoc()) {
+			if (zones == null) {
+				resizePopulation();
+				done += "population resized, ";
+			} else {
+				done += "population per location ignored (set by the zone table), ";
+			}
+		}
+		if (updated.getMaxSimDays() != old.getMaxSimDays()) {
+			resizeHistories();
+			done += "histories resized, ";
+		}
+		
+		if (updated.getInitCarProb() != old.getInitCarProb()) {
+			// (Everything else that may have changed too is set up as for a
+			// new simulation: resetSim() also restarts road congestion)
+			initSlots();
+			initModeChoice();
+			initWorkers();
+			initSocial();
+			resetSim();
+			return done + "restarted from day 0";
+		}
+		
+		if (updated.getDepartureSlots() != old.getDepartureSlots()) {
+			int oldSlots = departureSlots;
+			initSlots();
+			initWorkers();
+			
+			// Map each slot's centre to the new slot containing it, so the
+			// peak stays the peak (and one slot becomes the new peak slot)
+			for (int p = 0; p < totalPopulation; p++) {
+				departSlot[p] = (byte) ((2 * departSlot[p] + 1) * departureSlots / (2 * oldSlots));
+			}
+			for (int j = 0; j < slotCongestion.length; j++) {
+				slotCongestion[j] = 1.0;
+			}
+			slotCongestionVersion++;
+			done += "departure slots rescaled, ";
+		}
+		
+		if (updated.getDepartureSlots() != old.getDepartureSlots()
+				|| updated.getRoadCapacity() != old.getRoadCapacity()) {
+			initRoadCongestion();
+			done += "road congestion reset, ";
+		}
+		
+		if (updated.getMultiModeChoice() != old.getMultiModeChoice()) {
+			initModeChoice();
+			done += "mode choice switched, ";
+		}
+		
+		if (updated.getSocialNeighbours() != old.getSocialNeighbours()
+				|| updated.getSocialLocalShare() != old.getSocialLocalShare()) {
+			initSocial();
+			done += "social network rebuilt, ";
+		}
+		
+		if (updated.getRainStartProbability() != old.getRainStartProbability()
+				|| updated.getRainMaxDays() != old.getRainMaxDays()
+				|| updated.getRoadworksStartProbability() != old.getRoadworksStartProbability()
+				|| updated.getRoadworksMaxDays() != old.getRoadworksMaxDays()) {
+			eventScheduler.redrawAuto(simDay);
+			done += "automatic events redrawn, ";
+		}
+		
+		return done + "continuing from day " + simDay;
+	}
+
+	/**
+	 * Resize histories to the maximum number of days in Prefs, keeping
+	 * results so far (up to the new maximum)
+	 */
+	private void resizeHistories() {
+		maxSimDays = prefInstance.getMaxSimDays();
+		int maxDaysPlus1 = maxSimDays + 1;
+		rainHistory = Arrays.copyOf(rainHistory, maxDaysPlus1);
+		roadworksHistory = Arrays.copyOf(roadworksHistory, maxDaysPlus1);
+		carTotalsHistory = Arrays.copyOf(carTotalsHistory, maxDaysPlus1);
+		bikeTotalsHistory = Arrays.copyOf(bikeTotalsHistory, maxDaysPlus1);
+		totalCarsAvHistory = Arrays.copyOf(totalCarsAvHistory, maxDaysPlus1);
+		carsByLocationHistory = Arrays.copyOf(carsByLocationHistory,
+				maxDaysPlus1 * TOTAL_LOCATIONS);
+		simDay = (simDay > maxSimDays) ? maxSimDays : simDay;
+	}
+
+	/**
+	 * Save everything needed to carry on from the current day, plus the
+	 * results so far (see restore())
+	 */
+	public SimCheckpoint checkpoint() {
+		return new SimCheckpoint(simDay, carPreference.clone(), departSlot.clone(),
+				(carShareYesterday == null) ? null : carShareYesterday.clone(),
+				slotCongestion.clone(),
+				(roadCongestion == null) ? null : roadCongestion.getCongestion().clone(),
+				totalCarsAv, steadyDays, lastCarCommuters.clone(),
+				lastTotalCarsAv, finished, steadyUntil, eventScheduler.saveState(),
+				Arrays.copyOf(carTotalsHistory, simDay),
+				Arrays.copyOf(bikeTotalsHistory, simDay),
+				Arrays.copyOf(totalCarsAvHistory, simDay),
+				Arrays.copyOf(rainHistory, simDay),
+				Arrays.copyOf(roadworksHistory, simDay),
+				Arrays.copyOf(carsByLocationHistory, simDay * TOTAL_LOCATIONS),
+				residentsByLoc.clone());
+	}
+
+	/**
+	 * Carry on from a checkpoint. The simulation must have been initialised
+	 * (initSim()) from the same preferences as when the checkpoint was made,
+	 * apart from maximum days. (Pre-scheduled scenario events are not part
+	 * of the checkpoint, so must also be the same).
+	 * 
+	 * @throws IllegalArgumentException if the checkpoint does not fit
+	 */
+	public void restore(SimCheckpoint checkpoint) {
+		if (checkpoint.carPreference.length != totalPopulation
+				|| !Arrays.equals(checkpoint.getResidentsByLocation(), residentsByLoc)
+				|| checkpoint.slotCongestion.length != slotCongestion.length)
+			throw new IllegalArgumentException("checkpoint is for a different population");
+		if ((checkpoint.carShares == null) != (carShareYesterday == null))
+			throw new IllegalArgumentException("checkpoint is for a different social network");
+		if ((checkpoint.roadCongestion == null) != (roadCongestion == null))
+			throw new IllegalArgumentException("checkpoint is for a different road congestion model");
+		if (checkpoint.days > maxSimDays)
+			throw new IllegalArgumentException("checkpoint is beyond maximum days");
+		
+		simDay = checkpoint.days;
+		System.arraycopy(checkpoint.carPreference, 0, carPreference, 0, totalPopulation);
+		System.arraycopy(checkpoint.departSlot, 0, departSlot, 0, totalPopulation);
+		if (carShareYesterday != null) {
+			System.arraycopy(checkpoint.carShares, 0, carShareYesterday, 0, totalPopulation);
+		}
+		System.arraycopy(checkpoint.slotCongestion, 0, slotCongestion, 0, slotCongestion.length);
+		if (roadCongestion != null) {
+			System.arraycopy(checkpoint.roadCongestion, 0, roadCongestion.getCongestion(), 0,
+					slotCongestion.length);
+		}
+		slotCongestionVersion++;
+		totalCarsAv = checkpoint.totalCarsAv;
+		
+		System.arraycopy(checkpoint.getCarTotalsHistory(), 0, carTotalsHistory, 0, simDay);
+		System.arraycopy(checkpoint.getBikeTotalsHistory(), 0, bikeTotalsHistory, 0, simDay);
+		System.arraycopy(checkpoint.getTotalCarsAvHistory(), 0, totalCarsAvHistory, 0, simDay);
+		System.arraycopy(checkpoint.getRainHistory(), 0, rainHistory, 0, simDay);
+		System.arraycopy(checkpoint.getRoadworksHistory(), 0, roadworksHistory, 0, simDay);
+		System.arraycopy(checkpoint.getCarsByLocationHistory(), 0, carsByLocationHistory, 0,
+				simDay * TOTAL_LOCATIONS);
+		carTotalToday = (simDay > 0) ? carTotalsHistory[simDay - 1] : 0;
+		bikeTotalToday = (simDay > 0) ? bikeTotalsHistory[simDay - 1] : 0;
+		
+		eventScheduler.restoreState(checkpoint.eventState);
+		updateEventState();
+		
+		steadyDays = checkpoint.steadyDays;
+		System.arraycopy(checkpoint.lastCarCommuters, 0, lastCarCommuters, 0, TOTAL_LOCATIONS);
+		lastTotalCarsAv = checkpoint.lastTotalCarsAv;
+		
+		// Stopped for good unless this run goes on past the next event
+		finished = checkpoint.finished && checkpoint.steadyUntil >= maxSimDays;
+		steadyUntil = finished ? checkpoint.steadyUntil : 0;
+		// (Nothing has changed since the checkpoint was made)
+		lastParamsVersion = modelParamsInst.getSnapshot().getVersion();
+		lastEventStateVersion = eventStateVersion;
+	}
+	
+	//-------------------------------------------------------------------------|
+	
+	/**
+	 * Step simulator on by 1 day
+	 * 
+	 * @return false if already at the end of the simulation buffer
+	 */
+	public boolean step() {
+		
+		// Bail out if we are at the end of the simulation buffer
+		// (or have already stopped at a steady state)
+		if (simDay >= maxSimDays || finished)
+			return false;
+
+		// Handle bad weather and roadworks starting or finishing today
+		// (nothing to do unless today is an event boundary)
+		if (eventScheduler.advanceTo(simDay)) {
+			updateEventState();
+		}
+
+		// Get simulation model adjustable parameters (one consistent set
+		// for the whole step, even if sliders move meanwhile)
+		params = modelParamsInst.getSnapshot();
+		
+		// Rate at which individual preferences adapt to today's conditions
+		habitRate = (float) prefInstance.getHabitLearningRate();
+		
+		// Departure time choice settings
+		slotDelayWeight = prefInstance.getSlotDelayWeight();
+		slotRevisionProb = prefInstance.getSlotRevisionProb();
+		
+		// Get total cars (from previous day) and standardise to up to +2.0 max
+		// to allow saturation. (If everyone drove total cars = population)
+		stdTotalCarsAv = 2.0 * totalCarsAv / totalPopulation;
+		
+		// Tabulate cost factors common to each location for today's
+		// conditions (only recalculated if anything has changed)
+		updateCostTables();
+		
+		// With road congestion by segment, first try out today's decisions
+		// (if asked for) and each time move congestion towards what they
+		// would cause, to approach the day's equilibrium
+		if (roadCongestion != null) {
+			int rounds = prefInstance.getCongestionIterations();
+			for (int k = 1; k < rounds; k++) {
+				trialRound = true;
+				try {
+					decisionPass();
+				} finally {
+					trialRound = false;
+				}
+				mergeSlotCars();
+				roadCongestion.average(slotCarsByPair, k);
+				slotCongestionVersion++;
+				updateCostTables();
+			}
+		}
+		
+		// For each person decide whether they will take car or bike today
+		// (split between worker threads for large populations)
+		if (tripLog != null && (tripShares == null || tripShares.length != totalPopulation)) {
+			tripShares = new float[totalPopulation];
+		}
+		decisionPass();
+		
+		// Pack everyone's decisions for the log (written in the background)
+		if (tripLog != null) {
+			tripLog.logDay(simDay, totalPopulation, departureSlots, departSlot, tripShares);
+		}
+		
+		// Today's choices are what everyone's network sees tomorrow
+		if (networkOffsets != null) {
+			float swap[] = carShareYesterday;
+			carShareYesterday = carShareToday;
+			carShareToday = swap;
+		}
+		
+		// Merge each worker's partial sums over all people
+		double sumFavourCarNotBike = 0.0;
+		for (int i = 0; i < TOTAL_LOCATIONS; i++) {
+			idealCarCommuters[i] = 0.0;
+		}
+		for (int w = 0; w < workerCount; w++) {
+			sumFavourCarNotBike += sumFavourStripes[w];
+			for (int i = 0; i < TOTAL_LOCATIONS; i++) {
+				idealCarCommuters[i] += idealCarStripes[w][i];
+			}
+		}
+		
+		// Work out commuters by each mode from the summed 1 / denominators
+		if (modeChoice != null) {
+			updateModeTotals(sumFavourCarNotBike);
+		}
+		
+		// Work out congestion in each departure time slot (felt tomorrow)
+		updateSlotCongestion();
+		if (roadCongestion != null) {
+			mergeSlotCars();
+			roadCongestion.update(slotCarsByPair);
+			slotCongestionVersion++;
+		}
+		
+		// TODO: this is an estimation... we haven't converted to actual decisions yet
+		carTotalToday = (int) (sumFavourCarNotBike + 0.5);
+		bikeTotalToday = (modeChoice == null) ? totalPopulation - carTotalToday
+				: (int) (modeTotalsToday[ModeParams.BIKE] + 0.5);
+		
+		// Record today's totals across whole population
+		carTotalsHistory[simDay] = carTotalToday;
+		bikeTotalsHistory[simDay] = bikeTotalToday;
+		
+		// Get moving averager length parameter (from slider)
+		int movingAveragerLen = params.getAveragerLen();
+
+		// Calculate moving sum average of total cars
+		// (a proxy for congestion)
+		int day = simDay;
+		int movingSumTotalCars = 0;
+		int count = 0;
+		while (day >= 0 && count < movingAveragerLen) {
+			movingSumTotalCars += carTotalsHistory[day];
+			count++;
+			day--;
+		}
+		totalCarsAv = ((double) movingSumTotalCars) / count;
+		totalCarsAvHistory[simDay] = totalCarsAv;
+		rainHistory[simDay] = rainToday;
+		roadworksHistory[simDay] = roadworksToday;
+		for (int i = 0; i < TOTAL_LOCATIONS; i++) {
+			carsByLocationHistory[simDay * TOTAL_LOCATIONS + i] = (float) idealCarCommuters[i];
+		}
+
+		simDay++;
+
+		// Skip ahead (or stop) if nothing much is changing any more
+		checkSteadyState();
+
+		return true;
+	}
+
+	/**
+	 * Detect the simulation settling down: the overall and every location's
+	 * car share changing by no more than the tolerance for a number of days
+	 * in a row, with no change of parameters, weather or roadworks. Once
+	 * settled nothing will change until the next weather/roadworks event
+	 * boundary, so either fast-forward to it (repeating today's results) or,
+	 * if there are no more events to come, stop early.
+	 * <p>
+	 * (Fast-forwarding is an approximation: any slow drift within the
+	 * tolerance, e.g. from habit learning, is frozen over the skipped days).
+	 */
+	private void checkSteadyState() {
+		double tolerance = prefInstance.getSteadyStateTolerance();
+		
+		boolean steady = tolerance > 0.0
+				&& params.getVersion() == lastParamsVersion
+				&& eventStateVersion == lastEventStateVersion
+				&& Math.abs(totalCarsAv - lastTotalCarsAv) <= tolerance * totalPopulation;
+		for (int i = 0; steady && i < TOTAL_LOCATIONS; i++) {
+			steady = Math.abs(idealCarCommuters[i] - lastCarCommuters[i])
+					<= tolerance * residentsByLoc[i];
+		}
+		steadyDays = steady ? steadyDays + 1 : 0;
+		
+		lastParamsVersion = params.getVersion();
+		lastEventStateVersion = eventStateVersion;
+		lastTotalCarsAv = totalCarsAv;
+		System.arraycopy(idealCarCommuters, 0, lastCarCommuters, 0, TOTAL_LOCATIONS);
+		
+		if (steadyDays < prefInstance.getSteadyStateWindow())
+			return;
+		
+		int untilDay = Math.min(maxSimDays, eventScheduler.getNextBoundary());
+		if (prefInstance.getSteadyStateFastForward()) {
+			int lastDay = simDay - 1;
+			Arrays.fill(carTotalsHistory, simDay, untilDay, carTotalsHistory[lastDay]);
+			Arrays.fill(bikeTotalsHistory, simDay, untilDay, bikeTotalsHistory[lastDay]);
+			Arrays.fill(totalCarsAvHistory, simDay, untilDay, totalCarsAvHistory[lastDay]);
+			Arrays.fill(rainHistory, simDay, untilDay, rainToday);
+			Arrays.fill(roadworksHistory, simDay, untilDay, roadworksToday);
+			for (int d = simDay; d < untilDay; d++) {
+				System.arraycopy(carsByLocationHistory, lastDay * TOTAL_LOCATIONS,
+						carsByLocationHistory, d * TOTAL_LOCATIONS, TOTAL_LOCATIONS);
+			}
+			simDay = (untilDay > simDay) ? untilDay : simDay;
+		} else if (untilDay >= maxSimDays) {
+			finished = true;
+			steadyUntil = eventScheduler.getNextBoundary();
+		}
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Tabulate cost factors common to each (slot, journey) for today's
+	 * conditions (only recalculated if anything has changed)
+	 */
+	private void updateCostTables() {
+		double road[] = (roadCongestion == null) ? null : roadCongestion.getCongestion();
+		if (modeChoice == null) {
+			costTable.update(departureSlots, params, rainToday, stdTotalCarsAv,
+					slotCongestion, road, slotCongestionVersion, roadworksPenaltyByPair,
+					eventStateVersion);
+		} else {
+			modeChoice.rebuild(departureSlots, rainToday, stdTotalCarsAv, slotCongestion,
+					road, roadworksPenaltyByPair, params.getIndividual(), params.getSocial());
+		}
+	}
+
+	/**
+	 * Run today's decisions for the whole population, either directly or
+	 * as one chunk of people per worker thread.
+	 */
+	private void decisionPass() {
+		runChunks(decisionChunks);
+	}
+
+	/**
+	 * Run chunks of work (no more than workerCount), the first on this
+	 * thread and the rest on worker threads (or on this thread too, if no
+	 * worker is free), and wait for them all. Nothing is allocated (unlike
+	 * ExecutorService.invokeAll(), which creates futures, queue entries and
+	 * lock waiters every time), so a long run makes no garbage here however
+	 * many days it has.
+	 */
+	private void runChunks(Runnable chunks[]) {
+		if (chunks.length == 1) {
+			chunks[0].run();
+			return;
+		}
+		
+		steppingThread = Thread.currentThread();
+		chunkFailure = null;
+		chunksPending.set(chunks.length - 1);
+		for (int c = 1; c < chunks.length; c++) {
+			chunkTasks[c - 1].chunk = chunks[c];
+			workerPool.execute(chunkTasks[c - 1]);
+		}
+		chunks[0].run();
+		
+		// Wait for the workers (even if interrupted, since they are using
+		// this engine's arrays)
+		boolean interrupted = false;
+		while (chunksPending.get() > 0) {
+			LockSupport.park(this);
+			interrupted |= Thread.interrupted();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (chunkFailure != null)
+			throw chunkFailure;
+	}
+
+	/**
+	 * For each person in a chunk of the population, decide whether they will
+	 * take car or bike today (and when they will set off). Results are summed
+	 * into this worker's own stripe of the partial sum arrays.
+	 * 
+	 * @param worker	worker index (selects partial sum stripe)
+	 * @param from		first person (P) index in chunk
+	 * @param to		last person (P) index in chunk + 1
+	 */
+	private void decideChunk(int worker, int from, int to) {
+		
+		double idealCarCommuters[] = idealCarStripes[worker];
+		double slotCars[] = slotCarStripes[worker];
+		double invDenominators[] = invDenominatorStripes[worker];
+		for (int i = 0; i < idealCarCommuters.length; i++) {
+			idealCarCommuters[i] = 0.0;
+		}
+		for (int i = 0; i < slotCars.length; i++) {
+			slotCars[i] = 0.0;
+			invDenominators[i] = 0.0;
+		}
+		double sumFavourCarNotBike = 0.0;
+		
+		// Individual preference and social influence weightings for today
+		int slideIndividual = params.getIndividual();
+		int slideSocial = params.getSocial();
+		
+		// Trial rounds change nobody's state (see step())
+		boolean trial = trialRound;
+		
+		// Social network (if any) and its members' choices yesterday
+		int offsets[] = networkOffsets;
+		int neighbours[] = networkPeople;
+		float sharesYesterday[] = carShareYesterday;
+		float sharesToday[] = carShareToday;
+		float sharesLogged[] = tripShares;
+		
+		// Journey (origin-destination pair) by person, if not their location
+		byte pairByPerson[] = odPair;
+		
+		// Car vs bike common cost factors for today
+		double conditionsCost[] = costTable.getConditions();
+		float conditionsExperienced[] = costTable.getExperienced();
+		
+		// Multi-mode choice tables for today (if in use)
+		double expCarUtility[] = null;
+		double expOtherModes[] = null;
+		double conditionsFavourCar[] = null;
+		if (modeChoice != null) {
+			expCarUtility = modeChoice.getExpUtility(ModeParams.CAR);
+			expOtherModes = modeChoice.getExpOtherModes();
+			conditionsFavourCar = modeChoice.getConditionsFavourCar();
+		}
+		
+		// For each person in turn, decide whether they will take car or bike today.
+		// Calculate each cost factor (cf) in turn, limiting its range to +/-100.
+		// The mean value of these ranges from -100(bike) to + 100(car).
+		for (int p = from; p < to; p++) {
+			
+			int location = homeLocation[p];
+			int pair = (pairByPerson == null) ? location : pairByPerson[p];
+			
+			// Departure time slot (occasionally reconsidered)
+			int slot = departSlot[p];
+			if (departureSlots > 1 && AgentRandom.uniform(populationSeed, p, simDay,
+					AgentRandom.STREAM_SLOT_REVISION) < slotRevisionProb) {
+				slot = chooseDepartureSlot(p, pair);
+				if (!trial) {
+					departSlot[p] = (byte) slot;
+				}
+			}
+			int slotPair = slot * pairs + pair;
+			
+			// Individual preference (-ve or +ve)
+			float preference = carPreference[p];
+			
+			// Share of this person's network going by car yesterday
+			float networkShare = 0.5f;
+			if (offsets != null) {
+				int first = offsets[p];
+				int last = offsets[p + 1];
+				float sum = 0.0f;
+				for (int e = first; e < last; e++) {
+					sum += sharesYesterday[neighbours[e]];
+				}
+				networkShare = sum / (last - first);
+			}
+			
+			// Share of car use (0.0 .. 1.0) and how far today's conditions alone
+			// favoured car (-1.0 (Bike) .. +1.0 (Car))
+			double favourCarNotBike;
+			float experienced;
+			
+			if (modeChoice == null) {
+				
+				// Common cost factors (time/effort, expense, weather, congestion,
+				// roadworks) looked up for this slot and journey
+				double cfConditions = conditionsCost[slotPair];
+				double cfIndividual = slideIndividual * preference;
+				double cfSocial = slideSocial * (2.0 * networkShare - 1.0);
+						
+				// Find mean cost factor and reduce to range 0.0 (Bike) .. 1.0 (Car)
+				favourCarNotBike = (cfConditions + cfIndividual + cfSocial) / 200.0 + 0.5;
+				favourCarNotBike = (favourCarNotBike > 1.0) ? 1.0 : favourCarNotBike;
+				favourCarNotBike = (favourCarNotBike < 0.0) ? 0.0 : favourCarNotBike;
+				
+				experienced = conditionsExperienced[slotPair];
+			}
+			else {
+				
+				// Probability of taking the car from the logit tables. The other
+				// modes' shares follow from the summed 1 / denominator later.
+				double expCar = expCarUtility[slotPair] * modeChoice.expPreference(preference)
+						* modeChoice.expSocial(networkShare);
+				double invDenominator = 1.0 / (expCar + expOtherModes[slotPair]);
+				favourCarNotBike = expCar * invDenominator;
+				invDenominators[slotPair] += invDenominator;
+				
+				experienced = (float) conditionsFavourCar[slotPair];
+			}
+									
+			sumFavourCarNotBike += favourCarNotBike;
+			
+			idealCarCommuters[location] += favourCarNotBike;
+			slotCars[slotPair] += favourCarNotBike;
+			if (trial)
+				continue;
+			
+			if (offsets != null) {
+				sharesToday[p] = (float) favourCarNotBike;
+			}
+			if (sharesLogged != null) {
+				sharesLogged[p] = (float) favourCarNotBike;
+			}
+			
+			// Habit formation: nudge preference towards what today's conditions
+			// favoured. Updated in place here so the dynamics cost no extra pass
+			// over the population.
+			carPreference[p] = preference + habitRate * (experienced - preference);
+		}
+		
+		sumFavourStripes[worker] = sumFavourCarNotBike;
+	}
+
+	/**
+	 * Total up today's commuters by each mode. Each person's share of mode M
+	 * is exp(utility M) / denominator, and exp(utility M) is the same for
+	 * everyone in a (slot, journey), so only the 1 / denominators need
+	 * to have been summed.
+	 * 
+	 * @param carTotal	total share of car use over all people
+	 */
+	private void updateModeTotals(double carTotal) {
+		for (int m = 0; m < ModeParams.TOTAL_MODES; m++) {
+			modeTotalsToday[m] = 0.0;
+		}
+		modeTotalsToday[ModeParams.CAR] = carTotal;
+		
+		for (int j = 0; j < departureSlots * pairs; j++) {
+			double invDenominators = 0.0;
+			for (int w = 0; w < workerCount; w++) {
+				invDenominators += invDenominatorStripes[w][j];
+			}
+			for (int m = ModeParams.BIKE; m < ModeParams.TOTAL_MODES; m++) {
+				modeTotalsToday[m] += modeChoice.getExpUtility(m)[j] * invDenominators;
+			}
+		}
+	}
+
+	/**
+	 * Choose the departure time slot with the lowest cost for a commuter,
+	 * trading off yesterday's congestion in each slot against the personal
+	 * cost of setting off earlier or later than the peak (preferred) slot.
+	 * 
+	 * @param p			person (P) index
+	 * @param pair		origin-destination pair of person
+	 * @return chosen slot
+	 */
+	private int chooseDepartureSlot(int p, int pair) {
+		int peakSlot = departureSlots / 2;
+		
+		// Each person's aversion to travelling off-peak is fixed, but differs
+		// from person to person (0.5 .. 1.5 times the average)
+		double delayAversion = slotDelayWeight * (0.5 + AgentRandom.uniform(populationSeed,
+				p, 0, AgentRandom.STREAM_SLOT_TOLERANCE));
+		
+		int bestSlot = peakSlot;
+		double bestCost = Double.MAX_VALUE;
+		for (int slot = 0; slot < departureSlots; slot++) {
+			double cost = delayAversion * Math.abs(slot - peakSlot)
+					+ slotCongestion[slot * pairs + pair];
+			if (cost < bestCost) {
+				bestCost = cost;
+				bestSlot = slot;
+			}
+		}
+		return bestSlot;
+	}
+
+	/**
+	 * Merge the workers' histograms of cars by departure time slot and
+	 * origin-destination pair and find the resulting congestion in each slot
+	 * relative to the daily average. Cars load every road segment on their
+	 * journey (all the way in to the work area, for most), and each
+	 * commuter meets the cars on every segment of their own journey.
+	 */
+	private void updateSlotCongestion() {
+		if (departureSlots == 1)
+			return;
+		
+		mergeSlotCars();
+		
+		for (int slot = 0; slot < departureSlots; slot++) {
+			int base = slot * pairs;
+			
+			// Cars on each road segment (from every journey using it),
+			// totalled from the work area outwards
+			od.segmentCars(slotCarsByPair, base, segmentCarsIn, segmentCarsOut);
+			ODMatrix.runningTotals(segmentCarsIn);
+			ODMatrix.runningTotals(segmentCarsOut);
+			
+			// Cars met along each whole journey
+			for (int r = 0; r < pairs; r++) {
+				slotJourneyCars[base + r] = od.journeySum(r, segmentCarsIn, segmentCarsOut);
+			}
+		}
+		
+		for (int r = 0; r < pairs; r++) {
+			double allSlots = 0.0;
+			for (int slot = 0; slot < departureSlots; slot++) {
+				allSlots += slotJourneyCars[slot * pairs + r];
+			}
+			for (int slot = 0; slot < departureSlots; slot++) {
+				int j = slot * pairs + r;
+				slotCongestion[j] = (allSlots > 0.0) ?
+						departureSlots * slotJourneyCars[j] / allSlots : 1.0;
+			}
+		}
+		slotCongestionVersion++;
+	}
+
+	/**
+	 * Merge the workers' histograms of cars by departure time slot and
+	 * origin-destination pair into slotCarsByPair
+	 */
+	private void mergeSlotCars() {
+		for (int j = 0; j < slotCarsByPair.length; j++) {
+			double sum = 0.0;
+			for (int w = 0; w < workerCount; w++) {
+				sum += slotCarStripes[w][j];
+			}
+			slotCarsByPair[j] = sum;
+		}
+	}
+
+	/**
+	 * Split the population into chunks, one per worker thread, and create
+	 * each worker's partial sum stripes. Only worth using several threads
+	 * for large populations.
+	 */
+	private void initWorkers() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		workerCount = Math.min(processors, totalPopulation / MIN_PEOPLE_PER_WORKER);
+		workerCount = (workerCount < 1) ? 1 : workerCount;
+		
+		idealCarStripes = new double[workerCount][TOTAL_LOCATIONS];
+		slotCarStripes = new double[workerCount][departureSlots * pairs];
+		invDenominatorStripes = new double[workerCount][departureSlots * pairs];
+		sumFavourStripes = new double[workerCount];
+		
+		decisionChunks = new Runnable[workerCount];
+		chunkTasks = new ChunkTask[workerCount - 1];
+		for (int w = 0; w < workerCount; w++) {
+			final int worker = w;
+			final int from = chunkStart(w);
+			final int to = chunkStart(w + 1);
+			decisionChunks[w] = new Runnable() {
+				public void run() {
+					decideChunk(worker, from, to);
+				}
+			};
+			if (w > 0) {
+				chunkTasks[w - 1] = new ChunkTask();
+			}
+		}
+		
+		// Worker threads are created once and never hold up program exit
+		// (one fewer than processors, as the stepping thread does a chunk too)
+		if (workerCount > 1) {
+			createWorkerPool(processors - 1);
+		}
+	}
+
+	/**
+	 * First person (P) in a worker's chunk of the population
+	 */
+	private int chunkStart(int worker) {
+		return (int) ((long) totalPopulation * worker / workerCount);
+	}
+
+	/**
+	 * Runs a chunk of work on a worker thread and signals when it is done
+	 * (see runChunks())
+	 */
+	private class ChunkTask implements Runnable {
+		Runnable chunk;
+		
+		public void run() {
+			try {
+				chunk.run();
+			} catch (RuntimeException e) {
+				chunkFailure = e;
+			} finally {
+				if (chunksPending.decrementAndGet() == 0) {
+					LockSupport.unpark(steppingThread);
+				}
+			}
+		}
+	}
+
+	private static synchronized void createWorkerPool(int threads) {
+		if (workerPool == null) {
+			workerPool = new WorkerPool("Simulator worker", threads);
+		}
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Pick up today's bad weather and roadworks from the event scheduler
+	 */
+	private void updateEventState() {
+		rainToday = eventScheduler.isRaining();
+		roadworksToday = eventScheduler.getActiveRoadworks() > 0;
+		od.roadworksPenalty(eventScheduler.getRoadworksPenaltyByLoc(), roadworksPenaltyByPair);
+		eventStateVersion++;
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Classname: SimEvent
+ */
+
+package commuterSim;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * A timed event (a spell of bad weather or a set of roadworks) that is
+ * active from its start day up to (but not including) its end day.
+ */
+public class SimEvent implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Kinds of event the simulator knows how to apply
+	 */
+	public enum Type { RAIN, ROADWORKS }
+
+	/**
+	 * Day used as end day for events that last until explicitly ended
+	 */
+	public static final int OPEN_ENDED = Integer.MAX_VALUE;
+
+	/**
+	 * Orders events by the day they start
+	 */
+	public static final Comparator<SimEvent> START_ORDER = new Comparator<SimEvent>() {
+		public int compare(SimEvent a, SimEvent b) {
+			return (a.startDay < b.startDay) ? -1 : ((a.startDay == b.startDay) ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Orders events by the day they end
+	 */
+	public static final Comparator<SimEvent> END_ORDER = new Comparator<SimEvent>() {
+		public int compare(SimEvent a, SimEvent b) {
+			return (a.endDay < b.endDay) ? -1 : ((a.endDay == b.endDay) ? 0 : 1);
+		}
+	};
+
+	private Type type;
+	private int startDay;
+	private int endDay;
+
+	/**
+	 * Residential location index of roadworks. (This will affect all residents
+	 * at that location and commuting from further away).
+	 */
+	private int location;
+
+	/**
+	 * Relative severity of roadworks (1.0 = standard roadworks)
+	 */
+	private float severity;
+
+	/**
+	 * Whether the EventScheduler generated this event itself (and so may
+	 * reuse the object once the event has finished)
+	 */
+	private boolean automatic = false;
+
+	/**
+	 * Create an event of standard severity
+	 *
+	 * @param type			kind of event
+	 * @param startDay		first simulation day the event is active
+	 * @param endDay		first simulation day the event is no longer active
+	 * @param location		residential location index (ignored for rain)
+	 */
+	public SimEvent(Type type, int startDay, int endDay, int location) {
+		this(type, startDay, endDay, location, 1.0f);
+	}
+
+	/**
+	 * Create an event
+	 *
+	 * @param type			kind of event
+	 * @param startDay		first simulation day the event is active
+	 * @param endDay		first simulation day the event is no longer active
+	 * @param location		residential location index (ignored for rain)
+	 * @param severity		relative severity (ignored for rain)
+	 */
+	public SimEvent(Type type, int startDay, int endDay, int location, float severity) {
+		this.type = type;
+		this.startDay = startDay;
+		this.endDay = endDay;
+		this.location = location;
+		this.severity = severity;
+	}
+
+	/**
+	 * Turn this into a new automatically generated event (reusing the
+	 * object of one that has finished)
+	 */
+	void setAutomatic(Type type, int startDay, int endDay, int location, float severity) {
+		this.type = type;
+		this.startDay = startDay;
+		this.endDay = endDay;
+		this.location = location;
+		this.severity = severity;
+		automatic = true;
+	}
+
+	boolean isAutomatic() {
+		return automatic;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public int getStartDay() {
+		return startDay;
+	}
+
+	public int getEndDay() {
+		return endDay;
+	}
+
+	public int getLocation() {
+		return location;
+	}
+
+	public float getSeverity() {
+		return severity;
+	}
+}
@@ -36,35 +36,58 @@ public class SimRender extends JPanel{
 
 	private int locationCount = 1;
 	
-	public void drawBars(double[] idealCarCommuters, int locations, int totalPopulation) {
+	public void drawBars(double[] idealCarCommuters, int locations, int residentsByLoc[]) {
 		locationCount = locations;
 		for (int i = 0; i < locations; i++) {
 			carCommuters[i] = (int) (idealCarCommuters[i] + 0.5);
-			bikeCommuters[i] = totalPopulation/10 - carCommuters[i];
+			bikeCommuters[i] = residentsByLoc[i] - carCommuters[i];
 		}
 		repaint();
 	}
 
+	/**
+	 * Most residents at any location (for scaling bars to fit)
+	 */
+	static int maxResidents(int residentsByLoc[]) {
+		int most = 0;
+		for (int residents : residentsByLoc) {
+			most = Math.max(most, residents);
+		}
+		return most;
+	}
+
 	public void paintComponent(Graphics g) {
 		super.paintComponent(g);
+		paintBars(g, getHeight(), carCommuters, bikeCommuters, locationCount, 10.0);
 		
-		int canvasHeight = getHeight();
+		// TODO: Might want to use built in Graphics2D methods
+	}
+
+	/**
+	 * Render bar graphs of car (red) and bike (green) commuters for each
+	 * location (also used to render snapshots off screen, see ChartExport).
+	 * 
+	 * @param g						graphics to draw on
+	 * @param canvasHeight			height of area to draw in (pixels)
+	 * @param carCommuters			car commuters by location
+	 * @param bikeCommuters			bike commuters by location
+	 * @param locations				number of locations
+	 * @param pixelsPerCommuter		bar height scale
+	 */
+	static void paintBars(Graphics g, int canvasHeight, int carCommuters[],
+			int bikeCommuters[], int locations, double pixelsPerCommuter) {
 		int blockWidth = 10;
 		
-		// Render bar graphs of car(red) and bike(green) commuters for the
-		// (10) different locations.
-		for (int i = 0; i < locationCount; i++) {
+		for (int i = 0; i < locations; i++) {
 			int xStart = 20 + i * 30;
 			int yEnd = canvasHeight - 10;
-			int blockHeightCar = carCommuters[i]*10;
-			int blockHeightBike = bikeCommuters[i]*10;
+			int blockHeightCar = (int) (carCommuters[i] * pixelsPerCommuter + 0.5);
+			int blockHeightBike = (int) (bikeCommuters[i] * pixelsPerCommuter + 0.5);
 			
 			g.setColor(Color.red);
 			g.fillRect(xStart, yEnd - blockHeightCar, blockWidth, blockHeightCar);
 			g.setColor(Color.green);
 			g.fillRect(xStart + 10, yEnd - blockHeightBike, blockWidth, blockHeightBike);
 		}
-		
-		// TODO: Might want to use built in Graphics2D methods
 	}
 }
@@ -0,0 +1,405 @@
+/*
+ * Classname: TripLog
+ */
+
+package commuterSim;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Log of every person's decisions on every simulated day (for validating
+ * the model against individual travel diaries), written to a binary file
+ * as the simulation runs.
+ * <p>
+ * Each day, each person's departure time slot and car share (their
+ * probability of going by car, quantised to shareBits bits, so with 1 bit
+ * just car or not) are packed into as few bits as will hold them, person
+ * 0 first, from the least significant bit of each byte up. The packed day
+ * is compressed (deflate) and written by a background thread, so the
+ * simulation only pays for the packing. A fixed number of days' buffers
+ * are in flight at once: if compression falls that far behind, logDay()
+ * waits for a buffer to come free rather than using more memory.
+ * <p>
+ * File format (big-endian ints): a header of MAGIC, VERSION and shareBits,
+ * then for each day logged: day, population, departure slots, compressed
+ * length and the compressed (zlib) bytes. Days skipped over at a steady
+ * state (see SimEngine.checkSteadyState()) have no block of their own:
+ * everyone's decisions are as on the last day logged before them. Read
+ * back with TripLog.Reader.
+ */
+public class TripLog implements Closeable {
+
+	public static final int MAGIC = 0x43545250;	// "CTRP"
+	public static final int VERSION = 1;
+
+	public static final int MAX_SHARE_BITS = 16;
+
+	/**
+	 * Days packed but not yet written (each holding a buffer)
+	 */
+	private static final int IN_FLIGHT_DAYS = 4;
+
+	/**
+	 * One day's packed decisions, passed to the writer thread and back
+	 */
+	private static final class Block {
+		int day;
+		int population;
+		int departureSlots;
+		int length;
+		byte packed[] = new byte[0];
+	}
+
+	/**
+	 * Tells the writer thread there are no more days
+	 */
+	private static final Block END = new Block();
+
+	private final FileChannel channel;
+	private final int shareBits;
+	private final int maxShare;
+
+	private final BlockingQueue<Block> free = new ArrayBlockingQueue<Block>(IN_FLIGHT_DAYS);
+	private final BlockingQueue<Block> full = new ArrayBlockingQueue<Block>(IN_FLIGHT_DAYS + 1);
+	private final Thread writer;
+
+	/**
+	 * Writer thread's compressor, compressed bytes and block header
+	 */
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte compressed[] = new byte[0];
+	private final ByteBuffer blockHeader = ByteBuffer.allocate(16);
+
+	/**
+	 * First error writing the file (after which days are discarded)
+	 */
+	private volatile IOException error = null;
+
+	private boolean closed = false;
+
+	/**
+	 * Create the file (replacing any existing one) and start writing
+	 *
+	 * @param file		file to write
+	 * @param shareBits	bits for each person's car share, 1 .. MAX_SHARE_BITS
+	 */
+	public TripLog(File file, int shareBits) throws IOException {
+		if (shareBits < 1 || shareBits > MAX_SHARE_BITS)
+			throw new IllegalArgumentException("share bits must be 1 to " + MAX_SHARE_BITS);
+		this.shareBits = shareBits;
+		maxShare = (1 << shareBits) - 1;
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(12);
+		header.putInt(MAGIC).putInt(VERSION).putInt(shareBits).flip();
+		try {
+			writeFully(header);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		for (int b = 0; b < IN_FLIGHT_DAYS; b++) {
+			free.add(new Block());
+		}
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeBlocks();
+			}
+		}, "TripLog");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Bits needed for a departure time slot (none with only one slot)
+	 */
+	public static int slotBits(int departureSlots) {
+		return 32 - Integer.numberOfLeadingZeros(departureSlots - 1);
+	}
+
+	/**
+	 * Pack a day's decisions and queue them to be written. Waits only if
+	 * IN_FLIGHT_DAYS days are already waiting to be written.
+	 *
+	 * @param day				simulation day
+	 * @param population		number of people
+	 * @param departureSlots	number of departure time slots
+	 * @param departSlot		departure time slot by person
+	 * @param carShare			car share (0.0 .. 1.0) by person
+	 */
+	public void logDay(int day, int population, int departureSlots, byte departSlot[],
+			float carShare[]) {
+		if (closed)
+			throw new IllegalStateException("trip log closed");
+		Block block;
+		try {
+			block = free.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if (error != null) {
+			free.add(block);
+			return;
+		}
+
+		int slotBits = slotBits(departureSlots);
+		int recordBits = slotBits + shareBits;
+		int length = (int) (((long) population * recordBits + 7) / 8);
+		if (block.packed.length < length) {
+			block.packed = new byte[length];
+		}
+		block.day = day;
+		block.population = population;
+		block.departureSlots = departureSlots;
+		block.length = length;
+
+		// Records are at most 23 bits, so always fit alongside the < 8 bits
+		// still waiting to be written
+		byte packed[] = block.packed;
+		float scale = maxShare;
+		long bits = 0L;
+		int waiting = 0;
+		int i = 0;
+		for (int p = 0; p < population; p++) {
+			int share = (int) (carShare[p] * scale + 0.5f);
+			bits |= (long) (departSlot[p] | (share << slotBits)) << waiting;
+			waiting += recordBits;
+			while (waiting >= 8) {
+				packed[i++] = (byte) bits;
+				bits >>>= 8;
+				waiting -= 8;
+			}
+		}
+		if (waiting > 0) {
+			packed[i] = (byte) bits;
+		}
+
+		full.add(block);
+	}
+
+	/**
+	 * Write any days still queued and close the file
+	 *
+	 * @throws IOException if anything could not be written
+	 */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		full.add(END);
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		deflater.end();
+		channel.close();
+		if (error != null)
+			throw error;
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * The writer thread's loop: compress and write each day queued, and
+	 * return its buffer, until END
+	 */
+	private void writeBlocks() {
+		while (true) {
+			Block block;
+			try {
+				block = full.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (block == END)
+				return;
+			if (error == null) {
+				try {
+					writeBlock(block);
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+			free.add(block);
+		}
+	}
+
+	private void writeBlock(Block block) throws IOException {
+		deflater.reset();
+		deflater.setInput(block.packed, 0, block.length);
+		deflater.finish();
+		if (compressed.length < block.length / 2 + 64) {
+			compressed = new byte[block.length / 2 + 64];
+		}
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == compressed.length) {
+				byte bigger[] = new byte[compressed.length * 2];
+				System.arraycopy(compressed, 0, bigger, 0, length);
+				compressed = bigger;
+			}
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+
+		blockHeader.clear();
+		blockHeader.putInt(block.day).putInt(block.population).putInt(block.departureSlots)
+				.putInt(length).flip();
+		writeFully(blockHeader);
+		writeFully(ByteBuffer.wrap(compressed, 0, length));
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * Reads a trip log back, a day at a time
+	 */
+	public static class Reader implements Closeable {
+
+		private final DataInputStream in;
+		private final int shareBits;
+		private final Inflater inflater = new Inflater();
+		private byte compressed[] = new byte[0];
+		private byte packed[] = new byte[0];
+
+		private int day;
+		private int population;
+		private int departureSlots;
+
+		public Reader(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					throw new IOException(file + ": not a trip log");
+				shareBits = in.readInt();
+				if (shareBits < 1 || shareBits > MAX_SHARE_BITS)
+					throw new IOException(file + ": invalid share bits " + shareBits);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		public int getShareBits() {
+			return shareBits;
+		}
+
+		/**
+		 * Read the next day logged
+		 *
+		 * @return false at the end of the log
+		 */
+		public boolean next() throws IOException {
+			try {
+				day = in.readInt();
+			} catch (EOFException e) {
+				return false;
+			}
+			population = in.readInt();
+			departureSlots = in.readInt();
+			int length = in.readInt();
+			if (population < 0 || departureSlots < 1 || length < 0)
+				throw new IOException("invalid trip log block for day " + day);
+			if (compressed.length < length) {
+				compressed = new byte[length];
+			}
+			in.readFully(compressed, 0, length);
+
+			int recordBits = slotBits(departureSlots) + shareBits;
+			int packedLength = (int) (((long) population * recordBits + 7) / 8);
+			if (packed.length < packedLength) {
+				packed = new byte[packedLength];
+			}
+			inflater.reset();
+			inflater.setInput(compressed, 0, length);
+			try {
+				int n = 0;
+				while (n < packedLength) {
+					int inflated = inflater.inflate(packed, n, packedLength - n);
+					if (inflated == 0 && (inflater.finished() || inflater.needsInput()
+							|| inflater.needsDictionary()))
+						break;
+					n += inflated;
+				}
+				if (n != packedLength)
+					throw new IOException("truncated trip log block for day " + day);
+			} catch (DataFormatException e) {
+				throw new IOException("corrupt trip log block for day " + day);
+			}
+			return true;
+		}
+
+		public int getDay() {
+			return day;
+		}
+
+		public int getPopulation() {
+			return population;
+		}
+
+		public int getDepartureSlots() {
+			return departureSlots;
+		}
+
+		/**
+		 * Person's departure time slot on the current day
+		 */
+		public int getSlot(int p) {
+			int slotBits = slotBits(departureSlots);
+			return record(p) & ((1 << slotBits) - 1);
+		}
+
+		/**
+		 * Person's car share (0.0 .. 1.0, to shareBits bits) on the current day
+		 */
+		public double getCarShare(int p) {
+			int maxShare = (1 << shareBits) - 1;
+			return (double) (record(p) >>> slotBits(departureSlots)) / maxShare;
+		}
+
+		public void close() throws IOException {
+			inflater.end();
+			in.close();
+		}
+
+		private int record(int p) {
+			int recordBits = slotBits(departureSlots) + shareBits;
+			long bit = (long) p * recordBits;
+			int i = (int) (bit >>> 3);
+			long bits = 0L;
+			for (int b = 0; b < 4 && i + b < packed.length; b++) {
+				bits |= (long) (packed[i + b] & 0xff) << (8 * b);
+			}
+			return (int) (bits >>> (bit & 7)) & ((1 << recordBits) - 1);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Classname: WorkerPool
+ */
+
+package commuterSim;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed set of daemon worker threads for running short, repeated tasks
+ * (such as each day's chunks of decisions) without allocating anything.
+ * <p>
+ * Unlike an ExecutorService there is no queue: each worker has a one task
+ * mailbox, and a task given to the pool goes to the first idle worker, or
+ * if every worker is busy (e.g. with another engine's tasks) is run there
+ * and then by the calling thread. Idle workers sleep (park) until given a
+ * task. Nothing reports when a task has finished, so tasks must signal
+ * that themselves.
+ */
+public class WorkerPool {
+
+	private final Thread workers[];
+
+	/**
+	 * Task given to each worker, or null while it is idle
+	 */
+	private final AtomicReferenceArray<Runnable> mailboxes;
+
+	/**
+	 * Start the worker threads
+	 *
+	 * @param name		name of each thread
+	 * @param size		number of threads
+	 */
+	public WorkerPool(String name, int size) {
+		workers = new Thread[size];
+		mailboxes = new AtomicReferenceArray<Runnable>(size);
+		for (int w = 0; w < size; w++) {
+			final int worker = w;
+			workers[w] = new Thread(new Runnable() {
+				public void run() {
+					work(worker);
+				}
+			}, name);
+			workers[w].setDaemon(true);
+			workers[w].start();
+		}
+	}
+
+	public int size() {
+		return workers.length;
+	}
+
+	/**
+	 * Run a task on an idle worker, or on this thread if none is idle
+	 */
+	public void execute(Runnable task) {
+		for (int w = 0; w < workers.length; w++) {
+			if (mailboxes.compareAndSet(w, null, task)) {
+				LockSupport.unpark(workers[w]);
+				return;
+			}
+		}
+		task.run();
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * A worker's loop: run each task it is given, sleeping in between. (The
+	 * mailbox is only emptied once the task has finished, so the worker is
+	 * not given another meanwhile).
+	 */
+	private void work(int worker) {
+		Thread thread = Thread.currentThread();
+		while (true) {
+			Runnable task = mailboxes.get(worker);
+			if (task == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			try {
+				task.run();
+			} catch (Throwable e) {
+				// Report it, but keep the worker going for the next task
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+			} finally {
+				mailboxes.set(worker, null);
+			}
+		}
+	}
+}
@@ -0,0 +1,478 @@
+/*
+ * Classname: ZoneTable
+ */
+
+package commuterSim;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Residential zones to synthesise the population from (instead of the same
+ * number of residents at every location, see Prefs.getPopulationPerLoc()),
+ * read from a CSV file with a line per zone:
+ * <pre>
+ * zone,population,distance,carOwnership
+ * </pre>
+ * where zone is any identifier (not used), distance is the distance to the
+ * work area (in any units) and carOwnership (0 .. 1) the share of residents
+ * with a car, used as their probability of initially preferring the car.
+ * An optional header line, blank lines and lines starting with '#' are
+ * skipped. Each zone's residents live at the location nearest to it, the
+ * locations being spaced evenly along the road out to the furthest zone.
+ * <p>
+ * Large tables (hundreds of thousands of zones) are read quickly by
+ * mapping the file into memory and parsing chunks of it in parallel, each
+ * into its own arrays, which are then joined. Immutable once loaded, so
+ * one table can be shared by any number of engines.
+ */
+public final class ZoneTable {
+
+	private static final int TOTAL_LOCATIONS = SimEngine.TOTAL_LOCATIONS;
+
+	/**
+	 * Smallest chunk of the file worth parsing on a separate thread (bytes)
+	 */
+	private static final int MIN_CHUNK_BYTES = 1 << 16;
+
+	/**
+	 * Chunks per parsing thread (more than one, to balance the load)
+	 */
+	private static final int CHUNKS_PER_WORKER = 4;
+
+	private static final int WORKERS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Parsing threads, shared by all loads (created when first needed)
+	 */
+	private static ExecutorService parsePool = null;
+
+	/**
+	 * By zone, in file order
+	 */
+	private final int population[];
+	private final float distance[];
+	private final float carOwnership[];
+	private final byte location[];
+
+	/**
+	 * Index of the first person (P) in each zone, and after the last
+	 * (people are numbered zone by zone in file order)
+	 */
+	private final int firstPerson[];
+
+	private final int residentsByLoc[] = new int[TOTAL_LOCATIONS];
+	private final double meanCarOwnership;
+	private final long fingerprint;
+
+	private ZoneTable(int population[], float distance[], float carOwnership[])
+			throws IOException {
+		this.population = population;
+		this.distance = distance;
+		this.carOwnership = carOwnership;
+		int zones = population.length;
+
+		float furthest = 0.0f;
+		for (int z = 0; z < zones; z++) {
+			furthest = Math.max(furthest, distance[z]);
+		}
+
+		location = new byte[zones];
+		firstPerson = new int[zones + 1];
+		long people = 0;
+		double carOwners = 0.0;
+		long hash = 1125899906842597L;
+		for (int z = 0; z < zones; z++) {
+			int nearest = (furthest > 0.0f) ? (int) (distance[z] / furthest * TOTAL_LOCATIONS) : 0;
+			location[z] = (byte) Math.min(nearest, TOTAL_LOCATIONS - 1);
+			residentsByLoc[location[z]] += population[z];
+			firstPerson[z] = (int) people;
+			people += population[z];
+			if (people > Integer.MAX_VALUE - 8)
+				throw new IOException("zone table population is too large: over "
+						+ (Integer.MAX_VALUE - 8));
+			carOwners += (double) population[z] * carOwnership[z];
+			hash = 31 * hash + population[z];
+			hash = 31 * hash + Float.floatToIntBits(distance[z]);
+			hash = 31 * hash + Float.floatToIntBits(carOwnership[z]);
+		}
+		firstPerson[zones] = (int) people;
+		if (people == 0)
+			throw new IOException("zone table has no residents");
+		meanCarOwnership = carOwners / people;
+		fingerprint = hash;
+	}
+
+	/**
+	 * Read a zone table from a CSV file
+	 *
+	 * @throws IOException if the file cannot be read or a line is invalid
+	 *         (giving its line number)
+	 */
+	public static ZoneTable load(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		ByteBuffer buffer;
+		try {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("zone file is too large (over 2 GB): " + file);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// (The mapping stays valid after the channel is closed)
+			channel.close();
+		}
+		int size = buffer.limit();
+
+		// Split into chunks of whole lines
+		int chunks = Math.max(1, Math.min(WORKERS * CHUNKS_PER_WORKER, size / MIN_CHUNK_BYTES));
+		int start[] = new int[chunks + 1];
+		start[chunks] = size;
+		for (int c = 1; c < chunks; c++) {
+			int p = Math.max(start[c - 1], (int) ((long) size * c / chunks));
+			while (p < size && p > 0 && buffer.get(p - 1) != '\n') {
+				p++;
+			}
+			start[c] = p;
+		}
+
+		List<Chunk> parsed = new ArrayList<Chunk>(chunks);
+		if (chunks == 1) {
+			parsed.add(new Chunk(buffer, 0, size, true));
+		} else {
+			List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>(chunks);
+			for (int c = 0; c < chunks; c++) {
+				// (Each with its own view of the buffer, as buffers are not
+				// thread safe)
+				final ByteBuffer chunkBuffer = buffer.duplicate();
+				final int from = start[c];
+				final int to = start[c + 1];
+				final boolean first = (c == 0);
+				tasks.add(new Callable<Chunk>() {
+					public Chunk call() {
+						return new Chunk(chunkBuffer, from, to, first);
+					}
+				});
+			}
+			try {
+				for (Future<Chunk> future : getParsePool().invokeAll(tasks)) {
+					parsed.add(future.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("zone file loading interrupted");
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		// Report the first bad line, numbered over the whole file
+		int lines = 0;
+		int zones = 0;
+		for (Chunk chunk : parsed) {
+			if (chunk.error != null)
+				throw new IOException(file + ": line " + (lines + chunk.errorLine) + ": "
+						+ chunk.error);
+			lines += chunk.lines;
+			zones += chunk.zones;
+		}
+
+		int population[] = new int[zones];
+		float distance[] = new float[zones];
+		float carOwnership[] = new float[zones];
+		int z = 0;
+		for (Chunk chunk : parsed) {
+			System.arraycopy(chunk.population, 0, population, z, chunk.zones);
+			System.arraycopy(chunk.distance, 0, distance, z, chunk.zones);
+			System.arraycopy(chunk.carOwnership, 0, carOwnership, z, chunk.zones);
+			z += chunk.zones;
+		}
+		return new ZoneTable(population, distance, carOwnership);
+	}
+
+	/**
+	 * Zone table from arrays of zones (as read from a file, see load())
+	 *
+	 * @throws IllegalArgumentException if there are no residents or too many
+	 */
+	static ZoneTable fromZones(int population[], float distance[], float carOwnership[]) {
+		try {
+			return new ZoneTable(population.clone(), distance.clone(), carOwnership.clone());
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+
+	//-------------------------------------------------------------------------|
+	// Accessor Methods
+	//-------------------------------------------------------------------------|
+
+	public int getZoneCount() {
+		return population.length;
+	}
+
+	public int getTotalPopulation() {
+		return firstPerson[population.length];
+	}
+
+	/**
+	 * Residents at each location (do not modify)
+	 */
+	public int[] getResidentsByLocation() {
+		return residentsByLoc;
+	}
+
+	/**
+	 * Share of all residents with a car
+	 */
+	public double getMeanCarOwnership() {
+		return meanCarOwnership;
+	}
+
+	/**
+	 * Index of the first person (P) in a zone (or the total population for
+	 * zone getZoneCount())
+	 */
+	public int getFirstPerson(int zone) {
+		return firstPerson[zone];
+	}
+
+	/**
+	 * Share of a zone's residents with a car
+	 */
+	public float getCarOwnership(int zone) {
+		return carOwnership[zone];
+	}
+
+	/**
+	 * Zone a person (P) lives in
+	 */
+	public int getZone(int person) {
+		int zone = Arrays.binarySearch(firstPerson, person);
+		if (zone < 0) {
+			return -zone - 2;
+		}
+		// (Skip any empty zones starting at the same person)
+		while (firstPerson[zone + 1] == person) {
+			zone++;
+		}
+		return zone;
+	}
+
+	/**
+	 * Hash of everything in the table that affects a simulation (e.g. to
+	 * tell cached results from different tables apart)
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Fill in everyone's residential location
+	 *
+	 * @param homeLocation	location by person (P), getTotalPopulation() long
+	 */
+	public void fillHomeLocations(byte homeLocation[]) {
+		for (int z = 0; z < population.length; z++) {
+			Arrays.fill(homeLocation, firstPerson[z], firstPerson[z + 1], location[z]);
+		}
+	}
+
+	//-------------------------------------------------------------------------|
+
+	/**
+	 * The zones in one chunk of the file, parsed straight from the mapped
+	 * bytes (without creating a String per line or field)
+	 */
+	private static final class Chunk {
+		int zones = 0;
+		int population[] = new int[256];
+		float distance[] = new float[256];
+		float carOwnership[] = new float[256];
+
+		/**
+		 * Lines in the chunk, and the first bad one (numbered from 1 within
+		 * the chunk) if any
+		 */
+		int lines = 0;
+		String error = null;
+		int errorLine;
+
+		private final ByteBuffer buffer;
+		private int pos;
+		private int lineEnd;
+
+		Chunk(ByteBuffer buffer, int from, int to, boolean first) {
+			this.buffer = buffer;
+			pos = from;
+			while (pos < to && error == null) {
+				lineEnd = pos;
+				while (lineEnd < to && buffer.get(lineEnd) != '\n') {
+					lineEnd++;
+				}
+				lines++;
+				int next = lineEnd + 1;
+				if (lineEnd > pos && buffer.get(lineEnd - 1) == '\r') {
+					lineEnd--;
+				}
+				parseLine(first && lines == 1);
+				pos = next;
+			}
+		}
+
+		private void parseLine(boolean mayBeHeader) {
+			skipSpaces();
+			if (pos == lineEnd || buffer.get(pos) == '#')
+				return;
+
+			// Zone identifier (skipped)
+			while (pos < lineEnd && buffer.get(pos) != ',') {
+				pos++;
+			}
+			if (pos == lineEnd) {
+				fail("expected zone,population,distance,carOwnership");
+				return;
+			}
+			pos++;
+			skipSpaces();
+			if (mayBeHeader && (pos == lineEnd || !isNumberStart(buffer.get(pos))))
+				return;
+
+			double people = number("population");
+			double miles = number("distance");
+			double owners = number("carOwnership");
+			if (error != null)
+				return;
+			skipSpaces();
+			if (pos != lineEnd) {
+				fail("expected 4 fields");
+			} else if (!(people >= 0.0 && people <= Integer.MAX_VALUE) || people != Math.rint(people)) {
+				fail("population must be a whole number, 0 or more");
+			} else if (!(miles >= 0.0) || Double.isInfinite(miles)) {
+				fail("distance must be 0 or more");
+			} else if (!(owners >= 0.0 && owners <= 1.0)) {
+				fail("carOwnership must be from 0 to 1");
+			} else {
+				add((int) people, (float) miles, (float) owners);
+			}
+		}
+
+		private void add(int people, float miles, float owners) {
+			if (zones == population.length) {
+				population = Arrays.copyOf(population, 2 * zones);
+				distance = Arrays.copyOf(distance, 2 * zones);
+				carOwnership = Arrays.copyOf(carOwnership, 2 * zones);
+			}
+			population[zones] = people;
+			distance[zones] = miles;
+			carOwnership[zones] = owners;
+			zones++;
+		}
+
+		/**
+		 * Parse the next field as a number (and skip the comma after it).
+		 * Plain decimals are converted directly; anything else (e.g. with
+		 * an exponent) via Double.parseDouble().
+		 */
+		private double number(String field) {
+			if (error != null)
+				return 0.0;
+			skipSpaces();
+			int fieldStart = pos;
+			boolean negative = false;
+			if (pos < lineEnd && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+				negative = buffer.get(pos) == '-';
+				pos++;
+			}
+			long mantissa = 0;
+			int digits = 0;
+			int decimals = -1;
+			for (; pos < lineEnd; pos++) {
+				byte b = buffer.get(pos);
+				if (b >= '0' && b <= '9') {
+					mantissa = 10 * mantissa + (b - '0');
+					digits++;
+					decimals += (decimals >= 0) ? 1 : 0;
+				} else if (b == '.' && decimals < 0) {
+					decimals = 0;
+				} else {
+					break;
+				}
+			}
+			int fieldEnd = pos;
+			while (pos < lineEnd && buffer.get(pos) != ',') {
+				pos++;
+			}
+			int end = pos;
+			if (pos < lineEnd) {
+				pos++;
+			}
+			while (end > fieldEnd && buffer.get(end - 1) == ' ') {
+				end--;
+			}
+
+			// Exact for up to 15 digits (a correctly rounded quotient of
+			// exactly representable values)
+			if (end == fieldEnd && digits > 0 && digits <= 15) {
+				double value = (decimals > 0) ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+				return negative ? -value : value;
+			}
+			byte text[] = new byte[end - fieldStart];
+			for (int i = 0; i < text.length; i++) {
+				text[i] = buffer.get(fieldStart + i);
+			}
+			String value = new String(text, StandardCharsets.US_ASCII).trim();
+			try {
+				return Double.parseDouble(value);
+			} catch (NumberFormatException e) {
+				fail(field + ": not a number: " + value);
+				return 0.0;
+			}
+		}
+
+		private void skipSpaces() {
+			while (pos < lineEnd && (buffer.get(pos) == ' ' || buffer.get(pos) == '\t')) {
+				pos++;
+			}
+		}
+
+		private static boolean isNumberStart(byte b) {
+			return (b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+';
+		}
+
+		private void fail(String message) {
+			if (error == null) {
+				error = message;
+				errorLine = lines;
+			}
+		}
+	}
+
+	private static final double POWERS_OF_TEN[] = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+	};
+
+	private static synchronized ExecutorService getParsePool() {
+		if (parsePool == null) {
+			parsePool = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ZoneTable");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return parsePool;
+	}
+}